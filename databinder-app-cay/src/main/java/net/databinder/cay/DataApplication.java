@@ -1,6 +1,7 @@
 package net.databinder.cay;
 
 import net.databinder.DataApplicationBase;
+import net.databinder.models.cay.BatchLoadingListener;
 
 import org.apache.wicket.request.cycle.RequestCycle;
 import org.apache.wicket.request.cycle.RequestCycleContext;
@@ -10,9 +11,14 @@ import org.apache.wicket.request.cycle.RequestCycleContext;
  */
 public abstract class DataApplication extends DataApplicationBase {
 
-  /** Does nothing, no init required. */
+  /**
+   * Adds a BatchLoadingListener, so that the data object models of a page are
+   * loaded together.
+   * @see BatchLoadingListener
+   */
   @Override
   protected void dataInit() {
+    getComponentPreOnBeforeRenderListeners().add(new BatchLoadingListener());
   }
 
   /** Returns DataRequestCycle instance for Cayenne. */
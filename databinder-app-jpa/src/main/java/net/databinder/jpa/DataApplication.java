@@ -20,6 +20,7 @@ import javax.persistence.EntityManagerFactory;
 
 import net.databinder.DataApplicationBase;
 import net.databinder.components.jpa.DataBrowser;
+import net.databinder.models.jpa.BatchLoadingListener;
 
 import org.apache.wicket.Application;
 import org.apache.wicket.WicketRuntimeException;
@@ -43,10 +44,16 @@ JPAApplication {
    * see related methods to override specific tasks.
    * @see #buildEntityManagerFactory(Object) aoe
    * @see #mountDataBrowser()
+   * @see BatchLoadingListener
+   * @see EarlyReleaseListener
    */
   @Override
   protected void dataInit() {
     buildEntityManagerFactory(null, configureEMF());
+    getComponentPreOnBeforeRenderListeners().add(new BatchLoadingListener());
+    if (isEarlyEntityManagerRelease()) {
+      getComponentPostOnBeforeRenderListeners().add(new EarlyReleaseListener());
+    }
     if (isDataBrowserAllowed()) {
       mountDataBrowser();
     }
@@ -93,12 +100,56 @@ JPAApplication {
   }
 
   /**
+   * Retains the factory and reads its entity metadata.
    * @param key object, or null for the default factory w
    * @param sf EntityManager factory to retain
+   * @see EntityMetadataRegistry
    */
   protected void setEntityManagerFactory(final Object key,
       final EntityManagerFactory sf) {
     entityManagerFactories.put(key, sf);
+    EntityMetadataRegistry.register(sf);
+  }
+
+  /**
+   * Retains the factory of a read replica and routes the primary's replica
+   * reads to it.
+   * @param key primary factory key, or null for the default factory
+   * @param replicaKey key to retain the replica's factory under
+   * @param sf EntityManager factory of the replica
+   * @see Databinder#setReplicaKey(String, String)
+   */
+  protected void setReplicaEntityManagerFactory(final String key,
+      final String replicaKey, final EntityManagerFactory sf) {
+    setEntityManagerFactory(replicaKey, sf);
+    Databinder.setReplicaKey(key, replicaKey);
+  }
+
+  /**
+   * Releases and closes the retained EntityManager factories, so that a
+   * redeployed application does not leave them referenced statically.
+   * @see Databinder#releaseEntityManagerFactory(EntityManagerFactory)
+   */
+  @Override
+  protected void onDestroy() {
+    for (final EntityManagerFactory sf : entityManagerFactories.values()) {
+      Databinder.releaseEntityManagerFactory(sf);
+      if (sf.isOpen()) {
+        sf.close();
+      }
+    }
+    entityManagerFactories.clear();
+    super.onDestroy();
+  }
+
+  /**
+   * Returns false by default. Override to release entity managers, and their
+   * connections, after pages have run onBeforeRender. Pages must then not
+   * read unloaded associations while rendering.
+   * @return true to add an EarlyReleaseListener
+   */
+  protected boolean isEarlyEntityManagerRelease() {
+    return false;
   }
 
   /**
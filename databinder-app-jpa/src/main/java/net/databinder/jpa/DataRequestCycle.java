@@ -18,6 +18,7 @@
 
 package net.databinder.jpa;
 
+import java.util.HashMap;
 import java.util.HashSet;
 
 import javax.persistence.EntityManager;
@@ -36,6 +37,17 @@ import org.slf4j.LoggerFactory;
  * Uncomitted transactions are rolled back. Uses keyed JPA entity manager
  * factories from Databinder service.
  * </p>
+ * <p>
+ * Entity managers are bound as {@link LazyEntityManager}s, which create the
+ * real entity manager and take a connection only on the first query,
+ * persist or transaction. With early release enabled in DataApplication,
+ * they are released again once the page has run onBeforeRender, before its
+ * markup is streamed.
+ * </p>
+ * <p>
+ * Work the request hands to other threads can use its entity managers
+ * through a scope from {@link #captureEntityManagers()}.
+ * </p>
  * @see Databinder
  * @author Nathan Hamblen
  */
@@ -45,6 +57,10 @@ JPARequestCycle {
   /** Keys for entity manager factories that have been opened for this request */
   protected HashSet<String> keys = new HashSet<String>();
 
+  /** Bindings made for this request, by factory key */
+  private final HashMap<String, EntityManagerScope.Handle> handles =
+    new HashMap<String, EntityManagerScope.Handle>();
+
   private static final Logger log = LoggerFactory
   .getLogger(DataRequestCycle.class);
 
@@ -54,11 +70,13 @@ JPARequestCycle {
 
   /** Roll back active transactions and close entity manager. */
   protected void closeEntityManager(final String key) {
-    final EntityManager em = Databinder.getEntityManager(key);
+    final EntityManager em =
+      Databinder.getEntityManagerContext(key).currentEntityManager();
 
     if (em.isOpen()) {
       try {
-        if (em.getTransaction().isActive()) {
+        if (LazyEntityManager.isInitialized(em)
+            && em.getTransaction().isActive()) {
           log.debug("Rolling back uncomitted transaction.");
           em.getTransaction().rollback();
         }
@@ -77,20 +95,71 @@ JPARequestCycle {
   }
 
   /**
-   * Open a entity manager and begin a transaction for the keyed entity manager
-   * factory.
+   * Open a lazy entity manager for the keyed entity manager factory.
    * @param key object, or null for the default factory
    * @return newly opened entity manager
    */
   protected EntityManager openEntityManager(final String key) {
     final EntityManagerFactory emf = Databinder.getEntityManagerFactory(key);
-    final EntityManagerContext emc = Databinder.getEntityManagerContext(key);
-    final EntityManager em = emf.createEntityManager();
-    emc.bind(em);
-    keys.add(key);
+    final EntityManager em = LazyEntityManager.create(emf);
+    bindEntityManager(key, em);
     return em;
   }
 
+  /**
+   * Binds an entity manager for the rest of this request.
+   * @param key object, or null for the default factory
+   * @param em entity manager to bind
+   */
+  protected void bindEntityManager(final String key, final EntityManager em) {
+    final EntityManagerScope.Handle previous = handles.remove(key);
+    if (previous != null) {
+      previous.detach();
+    }
+    handles.put(key, EntityManagerScope.of(
+        Databinder.getEntityManagerContext(key), em).attach());
+    keys.add(key);
+  }
+
+  /**
+   * Unbinds the keyed entity manager bound for this request.
+   * @param key object, or null for the default factory
+   */
+  protected void unbindEntityManager(final String key) {
+    final EntityManagerScope.Handle handle = handles.remove(key);
+    if (handle != null) {
+      handle.detach();
+    } else {
+      Databinder.getEntityManagerContext(key).unbind();
+    }
+  }
+
+  /**
+   * Captures this request's entity managers and Wicket thread context, to be
+   * attached by work run on other threads. Entity managers must be opened
+   * (e.g. with {@link Databinder#getEntityManager(String)}) before capture,
+   * and the work must finish before the request ends and closes them.
+   * @return scope of the entity managers opened so far
+   */
+  public EntityManagerScope captureEntityManagers() {
+    return EntityManagerScope.capture(keys.toArray(new String[keys.size()]));
+  }
+
+  /**
+   * Hands back the connections of this request's entity managers that have
+   * no active transaction. They stay bound and reopen if used again, but
+   * entities loaded so far are detached.
+   * @see EarlyReleaseListener
+   */
+  public void releaseEntityManagers() {
+    for (final String key : keys) {
+      final EntityManagerContext emc = Databinder.getEntityManagerContext(key);
+      if (emc.hasBind() && LazyEntityManager.release(emc.currentEntityManager())) {
+        log.debug("Released entity manager before rendering.");
+      }
+    }
+  }
+
   /**
    * Closes all JPA entity managers opened for this request. If a transaction
    * has not been committed, it will be rolled back before closing the entity
@@ -103,9 +172,10 @@ JPARequestCycle {
       final EntityManagerContext emc = Databinder.getEntityManagerContext(key);
       if (emc.hasBind()) {
         closeEntityManager(key);
-        emc.unbind();
+        unbindEntityManager(key);
       }
     }
+    Databinder.invalidateChanged();
   }
 
   /**
@@ -0,0 +1,40 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.databinder.jpa;
+
+import org.apache.wicket.Component;
+import org.apache.wicket.Page;
+import org.apache.wicket.application.IComponentOnBeforeRenderListener;
+import org.apache.wicket.request.cycle.RequestCycle;
+
+/**
+ * Releases the request's entity managers once a page has run onBeforeRender,
+ * by which time data tables and list views have read their rows, so that no
+ * connection is held while markup is streamed. Added to the application's
+ * post-onBeforeRender listeners by DataApplication if
+ * isEarlyEntityManagerRelease() returns true.
+ * @see DataRequestCycle#releaseEntityManagers()
+ */
+public class EarlyReleaseListener implements IComponentOnBeforeRenderListener {
+
+  public void onBeforeRender(final Component component) {
+    if (component instanceof Page) {
+      final RequestCycle cycle = RequestCycle.get();
+      if (cycle instanceof DataRequestCycle) {
+        ((DataRequestCycle) cycle).releaseEntityManagers();
+      }
+    }
+  }
+}
@@ -25,6 +25,7 @@ import javax.persistence.PersistenceException;
 import net.databinder.jpa.DataRequestCycle;
 import net.databinder.jpa.Databinder;
 import net.databinder.jpa.EntityManagerContext;
+import net.databinder.jpa.LazyEntityManager;
 import net.databinder.jpa.conv.components.IConversationPage;
 
 import org.apache.wicket.Page;
@@ -96,8 +97,7 @@ public class DataConversationRequestCycle extends DataRequestCycle {
 			if (em != null && em.isOpen()) {
 				try {
 					em.getTransaction().begin();
-					Databinder.getEntityManagerContext(key).bind(em);
-					keys.add(key);
+					bindEntityManager(key, em);
 					return;
 				} catch (final PersistenceException e) {
 					log.warn(
@@ -121,6 +121,7 @@ public class DataConversationRequestCycle extends DataRequestCycle {
 	 */
 	@Override
 	protected void onEndRequest() {
+		Databinder.invalidateChanged();
 		for (final String key : keys) {
 			final EntityManagerContext emc = Databinder
 					.getEntityManagerContext(key);
@@ -129,7 +130,8 @@ public class DataConversationRequestCycle extends DataRequestCycle {
 			}
 			final EntityManager em = emc.currentEntityManager();
 			boolean transactionComitted = false;
-			if (em.getTransaction().isActive()) {
+			if (LazyEntityManager.isInitialized(em)
+					&& em.getTransaction().isActive()) {
 				em.getTransaction().rollback();
 			} else {
 				transactionComitted = true;
@@ -151,7 +153,7 @@ public class DataConversationRequestCycle extends DataRequestCycle {
 					em.close();
 				}
 			}
-			emc.unbind();
+			unbindEntityManager(key);
 		}
 	}
 
@@ -171,7 +173,7 @@ public class DataConversationRequestCycle extends DataRequestCycle {
 					}
 				} finally {
 					em.close();
-					emc.unbind();
+					unbindEntityManager(key);
 				}
 			}
 			openEntityManager(key);
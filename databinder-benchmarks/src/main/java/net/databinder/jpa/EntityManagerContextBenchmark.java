@@ -0,0 +1,163 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.databinder.jpa;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of looking up the request's entity manager from 64 threads at
+ * once, as every model and provider does on each use. {@code slots} goes
+ * through {@link DefaultEntityManagerContext}; {@code synchronizedMap}
+ * repeats the per-thread map behind a static synchronized accessor that the
+ * contexts used before, for comparison. Neither needs a database: the factory
+ * and entity managers are stubs.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(64)
+public class EntityManagerContextBenchmark {
+
+  /** Factories and contexts shared by all threads. */
+  @State(Scope.Benchmark)
+  public static class Factories {
+    EntityManagerFactory factory;
+    DefaultEntityManagerContext context;
+
+    @Setup
+    public void setUp() {
+      factory = stub(EntityManagerFactory.class, null);
+      context = new DefaultEntityManagerContext(factory);
+    }
+
+    @TearDown
+    public void tearDown() {
+      Databinder.releaseEntityManagerFactory(factory);
+    }
+  }
+
+  /** One request thread with its entity manager bound both ways. */
+  @State(Scope.Thread)
+  public static class Request {
+    EntityManagerFactory factory;
+    DefaultEntityManagerContext context;
+
+    @Setup(Level.Trial)
+    public void bind(final Factories factories) {
+      factory = factories.factory;
+      context = factories.context;
+      final EntityManager em = stub(EntityManager.class, factory);
+      context.bind(em);
+      SynchronizedMapContext.bind(factory, em);
+    }
+
+    @TearDown(Level.Trial)
+    public void unbind() {
+      context.unbind();
+      SynchronizedMapContext.unbind(factory);
+    }
+  }
+
+  @Benchmark
+  public EntityManager slots(final Request request) {
+    return request.context.currentEntityManager();
+  }
+
+  @Benchmark
+  public EntityManager synchronizedMap(final Request request) {
+    return SynchronizedMapContext.current(request.factory);
+  }
+
+  /** The lookup the contexts made before per-thread slots. */
+  static class SynchronizedMapContext {
+    private static final ThreadLocal<Map<Object, EntityManager>> context =
+      new ThreadLocal<Map<Object, EntityManager>>();
+
+    static EntityManager current(final EntityManagerFactory factory) {
+      final Map<Object, EntityManager> emMap = entityManagerMap(false);
+      return emMap == null ? null : emMap.get(factory);
+    }
+
+    static void bind(final EntityManagerFactory factory,
+        final EntityManager em) {
+      entityManagerMap(true).put(factory, em);
+    }
+
+    static void unbind(final EntityManagerFactory factory) {
+      final Map<Object, EntityManager> emMap = entityManagerMap(false);
+      if (emMap != null) {
+        emMap.remove(factory);
+      }
+    }
+
+    private static synchronized Map<Object, EntityManager> entityManagerMap(
+        final boolean createMap) {
+      Map<Object, EntityManager> emMap = context.get();
+      if (emMap == null && createMap) {
+        emMap = new HashMap<Object, EntityManager>();
+        context.set(emMap);
+      }
+      return emMap;
+    }
+  }
+
+  /**
+   * @return proxy of the interface with identity equality, answering
+   *         getEntityManagerFactory() with the given factory and anything
+   *         else with null
+   */
+  private static <T> T stub(final Class<T> type,
+      final EntityManagerFactory factory) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(),
+        new Class<?>[] { type }, new InvocationHandler() {
+          public Object invoke(final Object proxy, final Method method,
+              final Object[] args) {
+            final String name = method.getName();
+            if (name.equals("hashCode")) {
+              return System.identityHashCode(proxy);
+            } else if (name.equals("equals")) {
+              return proxy == args[0];
+            } else if (name.equals("getEntityManagerFactory")) {
+              return factory;
+            }
+            return null;
+          }
+        }));
+  }
+}
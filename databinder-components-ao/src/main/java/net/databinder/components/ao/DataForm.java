@@ -4,6 +4,7 @@ import java.io.Serializable;
 import java.sql.SQLException;
 
 import net.databinder.ao.Databinder;
+import net.databinder.models.ao.CountCache;
 import net.databinder.models.ao.EntityModel;
 import net.java.ao.EntityManager;
 import net.java.ao.RawEntity;
@@ -32,6 +33,16 @@ public class DataForm<T extends RawEntity<K>, K extends Serializable>
 		}
 	}
 
+	/**
+	 * Drops cached counts of the entity type once the transaction is committed, so that no
+	 * request can cache the count from before the change in between.
+	 */
+	@Override
+	protected void onSubmit() {
+		super.onSubmit();
+		CountCache.invalidate(getEntityModel().getEntityType());
+	}
+
 	public EntityModel<T, K> getEntityModel() {
 		return (EntityModel<T, K>) ((CompoundPropertyModel) getModel()).getChainedModel();
 	}
@@ -46,6 +57,12 @@ public class DataForm<T extends RawEntity<K>, K extends Serializable>
 		protected void inSubmitTransaction(final EntityManager entityManager) throws SQLException {
 			Databinder.getEntityManager().delete((RawEntity)DataForm.this.getModelObject());
 		}
+		/** Drops cached counts of the entity type after commit. */
+		@Override
+		public void onSubmit() {
+			super.onSubmit();
+			CountCache.invalidate(getEntityModel().getEntityType());
+		}
 		@Override
 		protected void afterSubmit() {
 			getEntityModel().unbind();
@@ -216,6 +216,7 @@ public class DataForm<T> extends DataFormBase<T> {
     if (!em.contains(model.getObject())) {
       onBeforeSave(model);
       em.persist(model.getObject());
+      Databinder.entityChanged(model.getObject().getClass());
       // updating binding status; though it will happen on detach
       // some UI components may like to know sooner.
       getPersistentObjectModel().checkBinding();
@@ -280,6 +281,7 @@ public class DataForm<T> extends DataFormBase<T> {
     }
     em.remove(modelObject);
     em.flush();
+    Databinder.entityChanged(modelObject.getClass());
     return true;
   }
 
@@ -49,6 +49,9 @@ public class DataFormBase<T> extends Form<T> {
 
   /**
    * Commit transaction if no errors are registered for any form component.
+   * The class of the model object is recorded as changed, since updates are
+   * dirty checked and not otherwise seen, and cached counts and results of
+   * the classes changed in the request are then dropped.
    * @return true if transaction was committed
    */
   protected boolean commitTransactionIfValid() {
@@ -58,6 +61,12 @@ public class DataFormBase<T> extends Form<T> {
         em.flush(); // needed for conv. EntityManagers, harmless otherwise
         onBeforeCommit();
         em.getTransaction().commit();
+        final Object modelObject = getModelObject();
+        if (modelObject != null) {
+          Databinder.entityChanged(modelObject.getClass());
+        }
+        Databinder.markWritten();
+        Databinder.invalidateChanged();
         em.getTransaction().begin();
         return true;
       }
@@ -0,0 +1,314 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006
+ * Nathan Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package net.databinder.components.jpa;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
+
+import net.databinder.models.jpa.JPAProvider;
+
+import org.apache.wicket.WicketRuntimeException;
+import org.apache.wicket.request.Response;
+import org.apache.wicket.request.resource.AbstractResource;
+import org.apache.wicket.request.resource.ContentDisposition;
+import org.apache.wicket.util.lang.PropertyResolver;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.ejb.HibernateQuery;
+
+/**
+ * Streams every entity of a {@link JPAProvider}, with its restrictions and
+ * sort order, as CSV or JSON straight to the response. Rows are read through
+ * a forward-only JDBC cursor with a fetch size, and the persistence context is
+ * cleared after every batch, so memory use does not grow with the number of
+ * rows. Use with a ResourceLink:
+ * <pre>
+ * add(new ResourceLink&lt;Void&gt;("export", new JPAExportResource&lt;Player&gt;(
+ *     provider, JPAExportResource.Format.CSV, "nameFirst", "nameLast")));
+ * </pre>
+ * Where the query can not be unwrapped to a Hibernate query, rows are read in
+ * pages of the batch size instead.
+ */
+public class JPAExportResource<T> extends AbstractResource {
+
+  private static final long serialVersionUID = 1L;
+
+  /** Output formats. */
+  public enum Format {
+    CSV("text/csv", "csv"), JSON("application/json", "json");
+
+    private final String contentType;
+    private final String extension;
+
+    private Format(final String contentType, final String extension) {
+      this.contentType = contentType;
+      this.extension = extension;
+    }
+  }
+
+  /** Default number of rows read between clearing the persistence context. */
+  public static final int DEFAULT_BATCH_SIZE = 500;
+
+  private final JPAProvider<T> provider;
+
+  private final Format format;
+
+  private final String[] properties;
+
+  private String fileName = "export";
+
+  private int batchSize = DEFAULT_BATCH_SIZE;
+
+  /**
+   * @param provider source of the rows, its restrictions and order
+   * @param format output format
+   * @param properties property expressions of the exported columns, also used
+   *          as CSV headers and JSON keys
+   */
+  public JPAExportResource(final JPAProvider<T> provider, final Format format,
+      final String... properties) {
+    this.provider = provider;
+    this.format = format;
+    this.properties = properties.clone();
+  }
+
+  /**
+   * @param fileName download file name without extension
+   * @return this, for chaining
+   */
+  public JPAExportResource<T> setFileName(final String fileName) {
+    this.fileName = fileName;
+    return this;
+  }
+
+  /**
+   * @param batchSize JDBC fetch size and number of rows between clearing the
+   *          persistence context
+   * @return this, for chaining
+   */
+  public JPAExportResource<T> setBatchSize(final int batchSize) {
+    this.batchSize = batchSize;
+    return this;
+  }
+
+  @Override
+  protected ResourceResponse newResourceResponse(final Attributes attributes) {
+    final ResourceResponse response = new ResourceResponse();
+    response.setContentType(format.contentType + "; charset=UTF-8");
+    response.setTextEncoding("UTF-8");
+    response.setFileName(fileName + "." + format.extension);
+    response.setContentDisposition(ContentDisposition.ATTACHMENT);
+    response.disableCaching();
+    response.setWriteCallback(new WriteCallback() {
+      @Override
+      public void writeData(final Attributes attributes) {
+        try {
+          final Writer out =
+            new OutputStreamWriter(
+                new ResponseOutputStream(attributes.getResponse()), "UTF-8");
+          export(out);
+          out.flush();
+        } catch (final IOException e) {
+          throw new WicketRuntimeException("Export failed", e);
+        }
+      }
+    });
+    return response;
+  }
+
+  /**
+   * Writes all rows to the writer.
+   * @param out destination, flushed after each batch
+   */
+  protected void export(final Writer out) throws IOException {
+    final EntityManager em = provider.getEntityManager();
+    final Query query = provider.createOrderedQuery();
+    writeHeader(out);
+    final org.hibernate.Query hq = hibernateQuery(query);
+    int row = 0;
+    if (hq != null) {
+      final ScrollableResults results =
+        hq.setFetchSize(batchSize).setReadOnly(true).scroll(
+            ScrollMode.FORWARD_ONLY);
+      try {
+        while (results.next()) {
+          writeRow(out, results.get(0), row++);
+          if (row % batchSize == 0) {
+            em.clear();
+            out.flush();
+          }
+        }
+      } finally {
+        results.close();
+      }
+    } else {
+      for (;;) {
+        query.setFirstResult(row);
+        query.setMaxResults(batchSize);
+        final List<?> batch = query.getResultList();
+        for (final Object o : batch) {
+          writeRow(out, o, row++);
+        }
+        em.clear();
+        out.flush();
+        if (batch.size() < batchSize) {
+          break;
+        }
+      }
+    }
+    writeFooter(out);
+  }
+
+  /** Writes bytes through to a Wicket response. */
+  private static class ResponseOutputStream extends OutputStream {
+    private final Response response;
+
+    ResponseOutputStream(final Response response) {
+      this.response = response;
+    }
+
+    @Override
+    public void write(final int b) {
+      response.write(new byte[] { (byte) b });
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) {
+      final byte[] chunk = new byte[len];
+      System.arraycopy(b, off, chunk, 0, len);
+      response.write(chunk);
+    }
+  }
+
+  /** @return the Hibernate query behind a JPA query, or null */
+  private static org.hibernate.Query hibernateQuery(final Query query) {
+    if (query instanceof HibernateQuery) {
+      return ((HibernateQuery) query).getHibernateQuery();
+    }
+    try {
+      return query.unwrap(org.hibernate.Query.class);
+    } catch (final PersistenceException e) {
+      return null;
+    }
+  }
+
+  protected void writeHeader(final Writer out) throws IOException {
+    if (format == Format.CSV) {
+      for (int i = 0; i < properties.length; i++) {
+        if (i > 0) {
+          out.write(',');
+        }
+        writeCsv(out, properties[i]);
+      }
+      out.write("\r\n");
+    } else {
+      out.write('[');
+    }
+  }
+
+  protected void writeRow(final Writer out, final Object entity, final int row)
+  throws IOException {
+    if (format == Format.CSV) {
+      for (int i = 0; i < properties.length; i++) {
+        if (i > 0) {
+          out.write(',');
+        }
+        final Object value = PropertyResolver.getValue(properties[i], entity);
+        if (value != null) {
+          writeCsv(out, value.toString());
+        }
+      }
+      out.write("\r\n");
+    } else {
+      out.write(row == 0 ? "\n{" : ",\n{");
+      for (int i = 0; i < properties.length; i++) {
+        if (i > 0) {
+          out.write(',');
+        }
+        writeJsonString(out, properties[i]);
+        out.write(':');
+        writeJsonValue(out, PropertyResolver.getValue(properties[i], entity));
+      }
+      out.write('}');
+    }
+  }
+
+  protected void writeFooter(final Writer out) throws IOException {
+    if (format == Format.JSON) {
+      out.write("\n]\n");
+    }
+  }
+
+  private static void writeCsv(final Writer out, final String value)
+  throws IOException {
+    if (value.indexOf(',') < 0 && value.indexOf('"') < 0
+        && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+      out.write(value);
+      return;
+    }
+    out.write('"');
+    out.write(value.replace("\"", "\"\""));
+    out.write('"');
+  }
+
+  private static void writeJsonValue(final Writer out, final Object value)
+  throws IOException {
+    if (value == null) {
+      out.write("null");
+    } else if (value instanceof Number || value instanceof Boolean) {
+      out.write(value.toString());
+    } else {
+      writeJsonString(out, value.toString());
+    }
+  }
+
+  private static void writeJsonString(final Writer out, final String value)
+  throws IOException {
+    out.write('"');
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      switch (c) {
+      case '"':
+        out.write("\\\"");
+        break;
+      case '\\':
+        out.write("\\\\");
+        break;
+      case '\n':
+        out.write("\\n");
+        break;
+      case '\r':
+        out.write("\\r");
+        break;
+      case '\t':
+        out.write("\\t");
+        break;
+      default:
+        if (c < 0x20) {
+          out.write(String.format("\\u%04x", (int) c));
+        } else {
+          out.write(c);
+        }
+      }
+    }
+    out.write('"');
+  }
+}
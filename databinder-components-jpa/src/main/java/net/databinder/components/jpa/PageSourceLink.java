@@ -1,7 +1,5 @@
 package net.databinder.components.jpa;
 
-import javax.persistence.EntityManager;
-
 import net.databinder.jpa.Databinder;
 
 import org.apache.wicket.Page;
@@ -68,7 +66,11 @@ public class PageSourceLink<T> extends BookmarkablePageLink {
 
   /** Sets the id parameter to the identifier given by JPA */
   protected void setParameters() {
-    final EntityManager em = Databinder.getEntityManager();
-    em.getEntityManagerFactory().getPersistenceUnitUtil().getIdentifier(getModelObject());
+    final Object o = getModelObject();
+    if (o != null) {
+      getPageParameters().set(idParameter,
+          Databinder.getEntityMetadataRegistry(
+          Databinder.DEFAULT_PERSISTENCE_UNIT_NAME).getIdentifier(o));
+    }
   }
 }
@@ -90,6 +90,10 @@ public class QueryPanel extends Panel {
    */
   private String executionInfo;
 
+  private String factoryKey;
+
+  private boolean readFromReplica;
+
   /**
    * Constructs an {@link QueryPanel}
    * @param id the panel identifier. Must not be null.
@@ -157,7 +161,7 @@ public class QueryPanel extends Panel {
         }
 
         public int size() {
-          final EntityManager sess = Databinder.getEntityManager();
+          final EntityManager sess = getEntityManager();
           final Query query = sess.createQuery(getQuery());
           return query.getResultList().size();
         }
@@ -172,7 +176,7 @@ public class QueryPanel extends Panel {
         }
 
         public Iterator iterator(final int first, final int count) {
-          final EntityManager em = Databinder.getEntityManager();
+          final EntityManager em = getEntityManager();
           final long start = System.nanoTime();
           try {
             final Query q = em.createQuery(getQuery());
@@ -187,7 +191,7 @@ public class QueryPanel extends Panel {
         }
       };
       IColumn[] columns;
-      final EntityManager em = Databinder.getEntityManager();
+      final EntityManager em = getEntityManager();
       final Query q = em.createQuery(query.getQuery());
       final String[] aliases = null;
       final javax.persistence.metamodel.Type<?>[] returnTypes = null;
@@ -223,7 +227,7 @@ public class QueryPanel extends Panel {
             returnType.getPersistenceType();
           final Class<?> clss = persistenceType.getDeclaringClass();
           final EntityType<?> entityType =
-            Databinder.getEntityManagerFactory().getMetamodel().entity(clss);
+            getEntityManager().getMetamodel().entity(clss);
           final List<IColumn> cols = new ArrayList<IColumn>();
           final String idProp = entityType.getIdType().toString();
           cols.add(new PropertyColumn(new Model(idProp), idProp));
@@ -284,4 +288,35 @@ public class QueryPanel extends Panel {
     this.executionInfo = executionInfo;
   }
 
+  /** @return key of the factory queried, or null for the default */
+  public String getFactoryKey() {
+    return factoryKey;
+  }
+
+  /** @param factoryKey key of the factory to query, or null for the default */
+  public void setFactoryKey(final String factoryKey) {
+    this.factoryKey = factoryKey;
+  }
+
+  public boolean isReadFromReplica() {
+    return readFromReplica;
+  }
+
+  /**
+   * @param readFromReplica true to run queries on the factory's replica while
+   *          the request has not written; updates then fail
+   * @see Databinder#setReplicaKey(String, String)
+   */
+  public void setReadFromReplica(final boolean readFromReplica) {
+    this.readFromReplica = readFromReplica;
+  }
+
+  private EntityManager getEntityManager() {
+    if (readFromReplica) {
+      return Databinder.getReadEntityManager(factoryKey);
+    }
+    return factoryKey == null ? Databinder.getEntityManager() : Databinder
+        .getEntityManager(factoryKey);
+  }
+
 }
@@ -1,15 +1,14 @@
 package net.databinder.components.jpa;
 
-import static net.databinder.util.JPAUtil.propertyStringExpressionToPath;
-
 import java.io.Serializable;
+import java.util.List;
 
-import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.Predicate;
-import javax.persistence.criteria.Root;
 
 import net.databinder.components.AjaxCell;
 import net.databinder.components.AjaxOnKeyPausedUpdater;
+import net.databinder.jpa.SearchIndex;
+import net.databinder.models.jpa.BasicPredicateBuilder;
 import net.databinder.models.jpa.PropertyQueryBinder;
 import net.databinder.util.CriteriaDefinition;
 import net.databinder.util.JPAUtil;
@@ -31,6 +30,13 @@ import org.apache.wicket.request.resource.PackageResourceReference;
  * must implement the onUpdate method to register external components for
  * updating. It is possible to override the search button text with the key
  * "searchbutton.text" The SearchPanel model maps to the text of the search.
+ * <p>
+ * The criteria definition is restricted to the search text each time its
+ * query is performed, through the {@link SearchIndex} registered for the class
+ * and search property if there is one, or else LIKE. Either way an entity
+ * matches when every word of the text is contained in the property, ignoring
+ * case, in any order. Earlier versions matched the whole text, untrimmed and
+ * case sensitively, against the trimmed property.
  * @author Nathan Hamblen
  */
 public abstract class SearchPanel<T extends Serializable> extends Panel {
@@ -52,6 +58,8 @@ public abstract class SearchPanel<T extends Serializable> extends Panel {
     super(id, new Model<String>());
     this.ajaxOnKeyPausedUpdater = ajaxOnKeyPausedUpdater;
     this.criteriaDefinition = criteriaDefinition;
+    criteriaDefinition.addPredicateBuilder(new SearchPredicateBuilder(
+        searchProperty));
     add(new SearchForm("searchForm", searchProperty));
   }
 
@@ -62,6 +70,8 @@ public abstract class SearchPanel<T extends Serializable> extends Panel {
     super(id, searchModel);
     this.ajaxOnKeyPausedUpdater = ajaxOnKeyPausedUpdater;
     this.criteriaDefinition = criteriaDefinition;
+    criteriaDefinition.addPredicateBuilder(new SearchPredicateBuilder(
+        searchProperty));
     add(new SearchForm("searchForm", searchProperty));
   }
 
@@ -133,8 +143,6 @@ public abstract class SearchPanel<T extends Serializable> extends Panel {
         @Override
         public void onClick(final AjaxRequestTarget target) {
           resetSearchModelObject();
-          final CriteriaDefinition<T> cd = criteriaDefinition;
-          cd.cleanLikePredicates();
           target.addComponent(searchWrap);
           target.addComponent(clearWrap);
           onUpdate(target);
@@ -153,17 +161,6 @@ public abstract class SearchPanel<T extends Serializable> extends Panel {
         @Override
         protected void onSubmit(final AjaxRequestTarget target,
             final Form<?> form) {
-          final CriteriaDefinition<T> cd = criteriaDefinition;
-          cd.cleanLikePredicates();
-          final String search = SearchPanel.this.getSearchModel().getObject();
-          if (search != null) {
-            final CriteriaBuilder cb = cd.getCriteriaBuilder();
-            final Root<T> root = cd.getRoot();
-            final Predicate p =
-              cb.like(cb.trim(propertyStringExpressionToPath(root, searchProperty)),
-                  getSearch());
-            cd.addPredicate(p);
-          }
           SearchPanel.this.onUpdate(target);
         }
 
@@ -199,4 +196,32 @@ public abstract class SearchPanel<T extends Serializable> extends Panel {
   public IModel<String> getSearchModel() {
     return (IModel<String>) getDefaultModel();
   }
+
+  /** Restricts the criteria definition to the current search text. */
+  private class SearchPredicateBuilder extends BasicPredicateBuilder<T> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String searchProperty;
+
+    SearchPredicateBuilder(final String searchProperty) {
+      super(criteriaDefinition);
+      this.searchProperty = searchProperty;
+    }
+
+    @Override
+    public void build(final List<Predicate> predicates) {
+      final String search = getSearchModel().getObject();
+      if (search != null) {
+        final CriteriaDefinition<T> cd = getCriteriaDefinition();
+        final SearchIndex index =
+          SearchIndex.get(cd.getEntityClass(), searchProperty);
+        final Predicate indexed =
+          index == null ? null : index.createPredicate(cd.getCriteriaBuilder(),
+              cd.getRoot(), search);
+        predicates.add(indexed != null ? indexed : SearchIndex
+            .createLikePredicate(cd, search, searchProperty));
+      }
+    }
+  }
 }
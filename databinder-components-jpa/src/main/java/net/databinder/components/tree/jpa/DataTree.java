@@ -2,6 +2,7 @@ package net.databinder.components.tree.jpa;
 
 import java.io.Serializable;
 import java.util.Collection;
+import java.util.Enumeration;
 import java.util.List;
 
 import javax.persistence.criteria.CriteriaBuilder;
@@ -13,6 +14,7 @@ import javax.swing.tree.TreeModel;
 
 import net.databinder.components.tree.data.DataTreeObject;
 import net.databinder.models.jpa.BasicPredicateBuilder;
+import net.databinder.models.jpa.JPABatchLoader;
 import net.databinder.models.jpa.JPAListModel;
 import net.databinder.models.jpa.JPAObjectModel;
 import net.databinder.util.CriteriaDefinition;
@@ -191,6 +193,26 @@ public abstract class DataTree<T extends DataTreeObject<T>> extends BaseTree {
     // Do nothing by default
   }
 
+  /**
+   * Registers the node models with the request's batch loader, so that
+   * expanded nodes are loaded with one query per entity class.
+   */
+  @Override
+  public void onBeforeRender() {
+    final DefaultMutableTreeNode root = getRootNode();
+    if (root != null) {
+      final Enumeration<?> nodes = root.breadthFirstEnumeration();
+      while (nodes.hasMoreElements()) {
+        final Object node =
+          ((DefaultMutableTreeNode) nodes.nextElement()).getUserObject();
+        if (node instanceof IModel<?>) {
+          JPABatchLoader.register((IModel<?>) node);
+        }
+      }
+    }
+    super.onBeforeRender();
+  }
+
   @Override
   public void onDetach() {
     super.onDetach();
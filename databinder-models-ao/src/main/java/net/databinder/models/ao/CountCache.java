@@ -0,0 +1,92 @@
+package net.databinder.models.ao;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.databinder.ao.Databinder;
+
+/**
+ * Count results shared by all requests for a time to live, keyed by manager
+ * key, entity type and query. Counts may be stale by up to their time to
+ * live; DataForm drops the counts of an entity type when it saves or deletes
+ * one, and other writers may call {@link #invalidate(Class)} likewise.
+ * @see EntityProvider#setCountTtl(long)
+ * @see EntityListModel#setCountTtl(long)
+ */
+@SuppressWarnings("unchecked")
+public final class CountCache {
+
+	/** Most counts held; the least recently used are dropped beyond. */
+	public static final int MAX_ENTRIES = 500;
+
+	private static final Map<List<Object>, Entry> entries = new LinkedHashMap<List<Object>, Entry>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<List<Object>, Entry> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	private CountCache() { }
+
+	/**
+	 * @param managerKey key of the EntityManager to count with
+	 * @param entityType entity type counted
+	 * @param query query counted
+	 * @param ttl milliseconds a count is reused for; 0 or less always counts
+	 * @return the cached or current count
+	 */
+	public static int count(final Object managerKey, final Class entityType,
+			final QueryTemplate query, final long ttl) throws SQLException {
+		if (ttl <= 0) {
+			return Databinder.getEntityManager(managerKey).count(entityType, query.newQuery());
+		}
+		final List<Object> key = Arrays.asList(managerKey, entityType, query);
+		synchronized (entries) {
+			final Entry e = entries.get(key);
+			if (e != null && e.expires > System.currentTimeMillis()) {
+				return e.count;
+			}
+		}
+		final int count = Databinder.getEntityManager(managerKey).count(entityType, query.newQuery());
+		synchronized (entries) {
+			entries.put(key, new Entry(entityType, count, System.currentTimeMillis() + ttl));
+		}
+		return count;
+	}
+
+	/** Drops the counts of the entity type and of its supertypes. */
+	public static void invalidate(final Class entityType) {
+		synchronized (entries) {
+			for (final Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+				if (it.next().entityType.isAssignableFrom(entityType)) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/** Drops all counts. */
+	public static void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	private static class Entry {
+		private final Class entityType;
+		private final int count;
+		private final long expires;
+
+		Entry(final Class entityType, final int count, final long expires) {
+			this.entityType = entityType;
+			this.count = count;
+			this.expires = expires;
+		}
+	}
+}
@@ -11,12 +11,20 @@ import net.java.ao.RawEntity;
 import org.apache.wicket.WicketRuntimeException;
 import org.apache.wicket.model.LoadableDetachableModel;
 
+/**
+ * List of the entities matching a query. The query is kept as given, so later
+ * changes to it apply from the next request on; each request reads it through
+ * a QueryTemplate copied once.
+ */
 @SuppressWarnings("unchecked")
 public class EntityListModel<T extends RawEntity> extends LoadableDetachableModel<List<T>> {
 
 	private Class<T> entityType;
 	private Query query;
 	private Object managerKey;
+	private long countTtl;
+	private transient QueryTemplate template;
+	private transient Integer count;
 	
 	public EntityListModel(Class<T> entityType) {
 		this (entityType, Query.select());
@@ -25,19 +33,60 @@ public class EntityListModel<T extends RawEntity> extends LoadableDetachableMode
 		this.entityType = entityType;
 		this.query = query;
 	}
+
+	/** @return copy of the query for this request */
+	private QueryTemplate getTemplate() {
+		if (template == null)
+			template = new QueryTemplate(query);
+		return template;
+	}
 	
 	@Override
 	protected List<T> load() {
 		try {
-			return (List<T>) Arrays.asList(Databinder.getEntityManager(managerKey).find(entityType, query));
+			return (List<T>) Arrays.asList(Databinder.getEntityManager(managerKey).find(entityType, getTemplate().newQuery()));
 		} catch (SQLException e) {
 			throw new WicketRuntimeException("Error loading list", e);
 		}
 	}
+
+	/**
+	 * @return size of the list if loaded, otherwise the number of matching
+	 * entities, counted once per request unless a count time to live is set
+	 */
+	public int getCount() {
+		if (isAttached())
+			return getObject().size();
+		if (count == null) {
+			try {
+				count = CountCache.count(managerKey, entityType, getTemplate(), countTtl);
+			} catch (SQLException e) {
+				throw new WicketRuntimeException("Error counting list", e);
+			}
+		}
+		return count;
+	}
+
+	@Override
+	protected void onDetach() {
+		template = null;
+		count = null;
+	}
+
 	public Object getManagerKey() {
 		return managerKey;
 	}
 	public void setManagerKey(Object managerKey) {
 		this.managerKey = managerKey;
 	}
+	/**
+	 * @param countTtl milliseconds getCount() reuses a count for across requests
+	 * through the CountCache; 0, the default, counts in every request
+	 */
+	public void setCountTtl(long countTtl) {
+		this.countTtl = countTtl;
+	}
+	public long getCountTtl() {
+		return countTtl;
+	}
 }
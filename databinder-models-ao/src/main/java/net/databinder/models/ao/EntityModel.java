@@ -1,7 +1,6 @@
 package net.databinder.models.ao;
 
 import java.io.Serializable;
-import java.lang.reflect.Method;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -11,9 +10,6 @@ import net.databinder.models.BindingModel;
 import net.databinder.models.LoadableWritableModel;
 import net.java.ao.Common;
 import net.java.ao.RawEntity;
-import net.java.ao.schema.FieldNameConverter;
-
-import org.apache.wicket.util.string.Strings;
 
 public class EntityModel<T extends RawEntity<K>, K extends Serializable>
 		extends LoadableWritableModel<Object> implements BindingModel<Object> {
@@ -79,24 +75,20 @@ public class EntityModel<T extends RawEntity<K>, K extends Serializable>
 	 */
 	public Map<String, Object> getFieldMap() {
 		final Map<String, Object> properties = getPropertyStore(), fields = new HashMap<String, Object>();
-		final FieldNameConverter conv = Databinder.getEntityManager(managerKey).getFieldNameConverter();
+		final EntityTypeMetadata md = getMetadata();
 		for (final Entry<String, Object> e : properties.entrySet()) {
-			String field = e.getKey();
-			final String prop = Strings.capitalize(field);
-			for (final Method m : entityType.getMethods()) {
-				// match getter or setter
-				if (m.getName().substring(3).equals(prop)) {
-					field = conv.getName(m);
-					break;
-				}
-			}
 			if (e.getValue() != null) {
-				fields.put(field, e.getValue());
+				fields.put(md.getFieldName(e.getKey()), e.getValue());
 			}
 		}
 		return fields;
 	}
 
+	/** @return cached field mapping of the entity type */
+	public EntityTypeMetadata getMetadata() {
+		return EntityTypeMetadata.get(entityType, Databinder.getEntityManager(managerKey).getFieldNameConverter());
+	}
+
 	public Class<T> getEntityType() {
 		return entityType;
 	}
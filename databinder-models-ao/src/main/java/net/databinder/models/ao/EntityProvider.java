@@ -11,14 +11,23 @@ import net.java.ao.RawEntity;
 
 import org.apache.wicket.WicketRuntimeException;
 import org.apache.wicket.model.IModel;
-import org.apache.wicket.util.lang.WicketObjects;
 
+/**
+ * Provider of the entities matching a query. The query is kept as given, so
+ * later changes to it apply from the next request on. It is copied into a
+ * QueryTemplate once per request, and each page is read with a fresh Query
+ * from the template. The count is kept until the provider is detached, and
+ * longer if a count time to live is set.
+ */
 @SuppressWarnings("unchecked")
 public class EntityProvider extends PropertyDataProvider {
 
 	private final Class entityType;
 	private final Query query;
 	private Object managerKey;
+	private long countTtl;
+	private transient QueryTemplate template;
+	private transient Integer size;
 
 	public EntityProvider(final Class entityType) {
 		this (entityType, Query.select());
@@ -29,9 +38,17 @@ public class EntityProvider extends PropertyDataProvider {
 		this.query = query;
 	}
 
+	/** @return copy of the query for this request */
+	private QueryTemplate getTemplate() {
+		if (template == null) {
+			template = new QueryTemplate(query);
+		}
+		return template;
+	}
+
 	public Iterator iterator(final int first, final int count) {
 		try {
-			final Query q = ((Query) WicketObjects.cloneObject(query)).offset(first).limit(count);
+			final Query q = getTemplate().newQuery(first, count);
 
 			return Arrays.asList(Databinder.getEntityManager(managerKey).find(entityType, q)).iterator();
 		} catch (final SQLException e) {
@@ -40,11 +57,14 @@ public class EntityProvider extends PropertyDataProvider {
 	}
 
 	public int size() {
-		try {
-			return Databinder.getEntityManager(managerKey).count(entityType, query);
-		} catch (final SQLException e) {
-			throw new WicketRuntimeException(e);
+		if (size == null) {
+			try {
+				size = CountCache.count(managerKey, entityType, getTemplate(), countTtl);
+			} catch (final SQLException e) {
+				throw new WicketRuntimeException(e);
+			}
 		}
+		return size;
 	}
 
 	@Override
@@ -52,8 +72,12 @@ public class EntityProvider extends PropertyDataProvider {
 		return new EntityModel((RawEntity)object);
 	}
 
+	/** Clears the query copy and count kept for this request. */
 	@Override
-	public void detach() { }
+	public void detach() {
+		template = null;
+		size = null;
+	}
 
 	public Object getManagerKey() {
 		return managerKey;
@@ -62,4 +86,18 @@ public class EntityProvider extends PropertyDataProvider {
 	public void setManagerKey(final Object managerKey) {
 		this.managerKey = managerKey;
 	}
+
+	/**
+	 * Shares the count with other requests through the CountCache.
+	 * @param countTtl milliseconds a count is reused for; 0, the default, counts in every request
+	 * @return this, for chaining
+	 */
+	public EntityProvider setCountTtl(final long countTtl) {
+		this.countTtl = countTtl;
+		return this;
+	}
+
+	public long getCountTtl() {
+		return countTtl;
+	}
 }
@@ -0,0 +1,79 @@
+package net.databinder.models.ao;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.java.ao.schema.FieldNameConverter;
+
+import org.apache.wicket.util.string.Strings;
+
+/**
+ * Property to field name mapping of an entity type, worked out once per entity
+ * type and FieldNameConverter and shared by all models and requests.
+ * @see EntityModel#getFieldMap()
+ */
+public final class EntityTypeMetadata {
+
+	private static final ConcurrentMap<List<Object>, EntityTypeMetadata> cache =
+		new ConcurrentHashMap<List<Object>, EntityTypeMetadata>();
+
+	/** Field names by capitalized property name. */
+	private final Map<String, String> fields = new HashMap<String, String>();
+
+	private EntityTypeMetadata(final Class<?> entityType, final FieldNameConverter conv) {
+		for (final Method m : entityType.getMethods()) {
+			final String prop = getPropertyName(m);
+			// first accessor found names the field
+			if (prop != null && !fields.containsKey(prop)) {
+				fields.put(prop, conv.getName(m));
+			}
+		}
+	}
+
+	/** @return capitalized property of a get, is or set accessor, or null */
+	private static String getPropertyName(final Method m) {
+		final String name = m.getName();
+		final int params = m.getParameterTypes().length;
+		if (name.length() > 3 && name.startsWith("get") && params == 0
+				|| name.length() > 3 && name.startsWith("set") && params == 1) {
+			return name.substring(3);
+		}
+		if (name.length() > 2 && name.startsWith("is") && params == 0) {
+			return name.substring(2);
+		}
+		return null;
+	}
+
+	/**
+	 * @param entityType entity interface
+	 * @param conv field name converter of the entity's EntityManager
+	 * @return the shared metadata of the entity type
+	 */
+	public static EntityTypeMetadata get(final Class<?> entityType, final FieldNameConverter conv) {
+		final List<Object> key = Arrays.<Object>asList(entityType, conv);
+		EntityTypeMetadata md = cache.get(key);
+		if (md == null) {
+			md = new EntityTypeMetadata(entityType, conv);
+			final EntityTypeMetadata raced = cache.putIfAbsent(key, md);
+			if (raced != null) {
+				md = raced;
+			}
+		}
+		return md;
+	}
+
+	/**
+	 * @param property Wicket property name, e.g. <code>firstName</code>
+	 * @return database field of the property, or the property itself if the
+	 * entity has no accessor for it
+	 */
+	public String getFieldName(final String property) {
+		final String field = fields.get(Strings.capitalize(property));
+		return field == null ? property : field;
+	}
+}
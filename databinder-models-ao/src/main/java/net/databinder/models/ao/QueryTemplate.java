@@ -0,0 +1,136 @@
+package net.databinder.models.ao;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import net.java.ao.Query;
+import net.java.ao.RawEntity;
+
+import org.apache.wicket.util.lang.Objects;
+
+/**
+ * Immutable copy of an ActiveObjects Query. The EntityManager resolves fields
+ * into the queries it is given, and providers page by setting the offset and
+ * limit, so a shared Query must not be handed out directly; a template hands
+ * out fresh Query instances built from its parts instead, which costs a few
+ * setter calls rather than the serialization round trip of
+ * WicketObjects.cloneObject. Templates are equal if their queries are, and
+ * serve as keys of the {@link CountCache}.
+ */
+@SuppressWarnings("unchecked")
+public final class QueryTemplate implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String fields;
+	private final boolean distinct;
+	private final Class tableType;
+	private final String table;
+	private final String whereClause;
+	private final Object[] whereParams;
+	private final String orderClause;
+	private final String groupClause;
+	private final int limit;
+	private final int offset;
+	private final Map<Class, String> joins;
+
+	/** @param query select query to copy; later changes to it are not seen */
+	public QueryTemplate(final Query query) {
+		fields = join(query.getFields());
+		distinct = query.isDistinct();
+		tableType = query.getTableType();
+		table = query.getTable();
+		whereClause = query.getWhereClause();
+		whereParams = query.getWhereParams() == null ? null : query.getWhereParams().clone();
+		orderClause = query.getOrderClause();
+		groupClause = query.getGroupClause();
+		limit = query.getLimit();
+		offset = query.getOffset();
+		joins = query.getJoins() == null ? new LinkedHashMap<Class, String>()
+				: new LinkedHashMap<Class, String>(query.getJoins());
+	}
+
+	private static String join(final String[] fields) {
+		if (fields == null || fields.length == 0) {
+			return "*";
+		}
+		final StringBuilder sb = new StringBuilder(fields[0]);
+		for (int i = 1; i < fields.length; i++) {
+			sb.append(',').append(fields[i]);
+		}
+		return sb.toString();
+	}
+
+	/** @return new query equal to the copied one */
+	public Query newQuery() {
+		final Query q = Query.select(fields);
+		if (distinct) {
+			q.distinct();
+		}
+		if (tableType != null) {
+			q.from(tableType);
+		} else if (table != null) {
+			q.from(table);
+		}
+		if (whereClause != null) {
+			q.where(whereClause, whereParams == null ? new Object[0] : whereParams.clone());
+		}
+		if (orderClause != null) {
+			q.order(orderClause);
+		}
+		if (groupClause != null) {
+			q.group(groupClause);
+		}
+		if (limit >= 0) {
+			q.limit(limit);
+		}
+		if (offset >= 0) {
+			q.offset(offset);
+		}
+		for (final Entry<Class, String> e : joins.entrySet()) {
+			if (e.getValue() == null) {
+				q.join(e.getKey());
+			} else {
+				q.join(e.getKey(), e.getValue());
+			}
+		}
+		return q;
+	}
+
+	/**
+	 * @param first offset of the page
+	 * @param count maximum number of rows
+	 * @return new query for the page
+	 */
+	public Query newQuery(final int first, final int count) {
+		return newQuery().offset(first).limit(count);
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (!(obj instanceof QueryTemplate)) {
+			return false;
+		}
+		final QueryTemplate o = (QueryTemplate) obj;
+		return distinct == o.distinct && limit == o.limit && offset == o.offset
+				&& fields.equals(o.fields) && Objects.equal(tableType, o.tableType)
+				&& Objects.equal(table, o.table) && Objects.equal(whereClause, o.whereClause)
+				&& Arrays.equals(whereParams, o.whereParams)
+				&& Objects.equal(orderClause, o.orderClause)
+				&& Objects.equal(groupClause, o.groupClause) && joins.equals(o.joins);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(new Object[] { fields, tableType, table, whereClause,
+				Arrays.hashCode(whereParams), orderClause, groupClause, limit, offset, joins });
+	}
+
+	@Override
+	public String toString() {
+		return fields + " " + whereClause + " " + Arrays.toString(whereParams);
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * Databinder: a simple bridge from Wicket to Hibernate
+ * Copyright (C) 2006  Nathan Hamblen nathan@technically.us
+
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package net.databinder.models.cay;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.cayenne.DataObject;
+import org.apache.cayenne.ObjectId;
+import org.apache.cayenne.PersistenceState;
+import org.apache.cayenne.access.DataContext;
+import org.apache.cayenne.access.ObjectStore;
+import org.apache.cayenne.exp.Expression;
+import org.apache.cayenne.exp.ExpressionFactory;
+import org.apache.cayenne.query.SelectQuery;
+import org.apache.wicket.Component;
+import org.apache.wicket.MarkupContainer;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.model.IChainingModel;
+import org.apache.wicket.model.IModel;
+import org.apache.wicket.model.IWrapModel;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.util.visit.IVisit;
+import org.apache.wicket.util.visit.IVisitor;
+
+/**
+ * Request-scoped loader for {@link DataObjectModel}s. Models register their
+ * ObjectId before they are loaded; the first load of a registered entity then
+ * fetches every pending id of that entity with one query per chunk, instead
+ * of one query per model. Ids of objects already registered in the context,
+ * or whose rows are in the DataDomain's shared snapshot cache, are left out
+ * of the query: DataObjectUtils.objectForPK serves those without a round
+ * trip. The loader lives in the current {@link RequestCycle}'s metadata and
+ * is discarded with it.
+ * @see DataObjectModel#load()
+ * @see BatchLoadingListener
+ */
+public class DataObjectBatchLoader {
+
+	/** Default number of ids fetched by a single query. */
+	public static final int DEFAULT_CHUNK_SIZE = 100;
+
+	private static final MetaDataKey<DataObjectBatchLoader> LOADER = new MetaDataKey<DataObjectBatchLoader>() {
+		private static final long serialVersionUID = 1L;
+	};
+
+	/** Ids registered but not yet fetched, by entity name. */
+	private Map<String, Set<ObjectId>> pending = new HashMap<String, Set<ObjectId>>();
+
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+	/**
+	 * @return loader for the current request, or null if called outside of a
+	 * request cycle
+	 */
+	public static DataObjectBatchLoader get() {
+		RequestCycle cycle = RequestCycle.get();
+		if (cycle == null)
+			return null;
+		DataObjectBatchLoader loader = cycle.getMetaData(LOADER);
+		if (loader == null) {
+			loader = new DataObjectBatchLoader();
+			cycle.setMetaData(LOADER, loader);
+		}
+		return loader;
+	}
+
+	/**
+	 * Registers the DataObjectModel behind the given model, unwrapping compound
+	 * and chaining models as needed. Models that are attached, or hold a new
+	 * or retained object, are ignored.
+	 * @param model any model, possibly wrapping a DataObjectModel
+	 */
+	public static void register(IModel<?> model) {
+		DataObjectModel<?> dataModel = unwrap(model);
+		if (dataModel != null && !dataModel.isAttached() && dataModel.isBatchable()) {
+			DataObjectBatchLoader loader = get();
+			if (loader != null)
+				loader.register(dataModel.getObjectId());
+		}
+	}
+
+	/**
+	 * Registers the models of the given component and all of its children.
+	 * @param root component whose hierarchy is to be registered
+	 */
+	public static void registerModels(Component root) {
+		register(root.getDefaultModel());
+		if (root instanceof MarkupContainer) {
+			((MarkupContainer) root).visitChildren(new IVisitor<Component, Void>() {
+				public void component(Component component, IVisit<Void> visit) {
+					register(component.getDefaultModel());
+				}
+			});
+		}
+	}
+
+	private static DataObjectModel<?> unwrap(IModel<?> model) {
+		IModel<?> cur = model;
+		while (cur != null) {
+			if (cur instanceof DataObjectModel)
+				return (DataObjectModel<?>) cur;
+			else if (cur instanceof IWrapModel)
+				cur = ((IWrapModel<?>) cur).getWrappedModel();
+			else if (cur instanceof IChainingModel)
+				cur = ((IChainingModel<?>) cur).getChainedModel();
+			else
+				return null;
+		}
+		return null;
+	}
+
+	/**
+	 * Sets the maximum number of ids fetched by a single query.
+	 * @param chunkSize ids per query
+	 * @return this, for chaining
+	 */
+	public DataObjectBatchLoader setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+		return this;
+	}
+
+	/**
+	 * Marks an id to be fetched with the next batch for its entity.
+	 * @param id permanent id of a data object
+	 */
+	public void register(ObjectId id) {
+		if (id == null || id.isTemporary())
+			return;
+		Set<ObjectId> ids = pending.get(id.getEntityName());
+		if (ids == null) {
+			ids = new LinkedHashSet<ObjectId>();
+			pending.put(id.getEntityName(), ids);
+		}
+		ids.add(id);
+	}
+
+	/**
+	 * Fetches all pending ids of the given id's entity into the context if the
+	 * id is pending, so that a following DataObjectUtils.objectForPK finds it
+	 * registered. Does nothing otherwise.
+	 * @param context context to fetch into
+	 * @param id id about to be loaded
+	 */
+	public void load(DataContext context, ObjectId id) {
+		Set<ObjectId> ids = pending.get(id.getEntityName());
+		if (ids == null || !ids.contains(id))
+			return;
+		pending.remove(id.getEntityName());
+		ObjectStore store = context.getObjectStore();
+		List<ObjectId> missing = new ArrayList<ObjectId>(ids.size());
+		for (ObjectId pendingId : ids)
+			if (!isKnown(store, pendingId))
+				missing.add(pendingId);
+		if (missing.size() < 2)
+			return; // nothing gained over objectForPK
+		Iterator<ObjectId> it = missing.iterator();
+		while (it.hasNext()) {
+			Expression qualifier = null;
+			for (int i = 0; i < chunkSize && it.hasNext(); i++) {
+				Expression match = ExpressionFactory.matchAllDbExp(it.next().getIdSnapshot(), Expression.EQUAL_TO);
+				qualifier = qualifier == null ? match : qualifier.orExp(match);
+			}
+			context.performQuery(new SelectQuery(id.getEntityName(), qualifier));
+		}
+	}
+
+	/**
+	 * @return true if the object is registered and resolved in the context, or
+	 * its row is in the shared snapshot cache
+	 */
+	private static boolean isKnown(ObjectStore store, ObjectId id) {
+		Object node = store.getNode(id);
+		if (node instanceof DataObject && ((DataObject) node).getPersistenceState() != PersistenceState.HOLLOW)
+			return true;
+		return store.getCachedSnapshot(id) != null;
+	}
+}
@@ -26,6 +26,7 @@ import org.apache.cayenne.DataObject;
 import org.apache.cayenne.DataObjectUtils;
 import org.apache.cayenne.ObjectId;
 import org.apache.cayenne.PersistenceState;
+import org.apache.cayenne.access.DataContext;
 
 /**
  * Basic model mapping to a single Cayenne data object. Detaches at the end
@@ -43,13 +44,18 @@ public class DataObjectModel<T extends DataObject> extends LoadableWritableModel
 	
 	public DataObjectModel(ObjectId id) {
 		this.id = id;
+		DataObjectBatchLoader.register(this);
 	}
 
 	public DataObjectModel(DataObject object) {
 		id = object.getObjectId();
+		DataObjectBatchLoader.register(this);
 	}
 
-	/** Loads from storage unless the object has been retained. */
+	/**
+	 * Loads from storage unless the object has been retained. Ids registered
+	 * with the request's DataObjectBatchLoader are fetched together.
+	 */
 	@SuppressWarnings("unchecked")
 	@Override
 	protected T load() {
@@ -57,7 +63,11 @@ public class DataObjectModel<T extends DataObject> extends LoadableWritableModel
 			Databinder.getContext().registerNewObject(retainedObject);
 			return retainedObject;
 		}
-		return (T) DataObjectUtils.objectForPK(Databinder.getContext(), id);
+		DataContext context = Databinder.getContext();
+		DataObjectBatchLoader loader = DataObjectBatchLoader.get();
+		if (loader != null)
+			loader.load(context, id);
+		return (T) DataObjectUtils.objectForPK(context, id);
 	}
 
 	/**
@@ -89,6 +99,16 @@ public class DataObjectModel<T extends DataObject> extends LoadableWritableModel
 		}
 	}
 	
+	/** @return id of the bound object, temporary if it is new */
+	public ObjectId getObjectId() {
+		return id;
+	}
+
+	/** @return true if the model loads its object by a permanent id */
+	boolean isBatchable() {
+		return retainedObject == null && id != null && !id.isTemporary();
+	}
+
 	public boolean isBound() {
 		return !id.isTemporary();
 	}
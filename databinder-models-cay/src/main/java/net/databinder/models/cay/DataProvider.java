@@ -29,32 +29,73 @@ import org.apache.cayenne.query.SelectQuery;
 import org.apache.wicket.model.IModel;
 
 /**
- * IDataProvider implementation for Cayenne. Note that because Cayenne pagination
- * is abstracted through a java.util.List, this provider has no performance advantage 
- * over a PageableListView with a page size set in the SelectQuery.
+ * IDataProvider implementation for Cayenne. The query is performed paginated:
+ * Cayenne selects only the ids of all matching rows and resolves objects one
+ * page at a time, so reading a page costs the id query plus one query for the
+ * page's rows rather than loading every row. The paginated list is kept until
+ * detach(), so size() and iterator() share one query per request. Give the
+ * provider the rows per page of the table that shows it, so that each page is
+ * resolved in a single query.
  * @author Nathan Hamblen
  */
 public class DataProvider extends PropertyDataProvider {
 	
+	/** Page size set on queries that have none. */
+	public static final int DEFAULT_PAGE_SIZE = 20;
+	
 	private SelectQuery query;
+	
+	/** Paginated result for the current request, or null. */
+	private transient List list;
 
 	public DataProvider(SelectQuery query) {
+		this(query, query.getPageSize() > 0 ? query.getPageSize() : DEFAULT_PAGE_SIZE);
+	}
+	
+	/**
+	 * @param query query to perform paginated
+	 * @param pageSize rows per page of the table showing this provider
+	 */
+	public DataProvider(SelectQuery query, int pageSize) {
 		this.query = query;
+		query.setPageSize(pageSize);
 	}
 	
+	/**
+	 * @param pageSize number of objects resolved together, normally the rows per page
+	 * @return this, for chaining
+	 */
+	public DataProvider setPageSize(int pageSize) {
+		query.setPageSize(pageSize);
+		list = null;
+		return this;
+	}
+	
+	/** @return paginated result, performed once per request */
 	public List getList() {
-		return Databinder.getContext().performQuery(query);
+		if (list == null)
+			list = Databinder.getContext().performQuery(query);
+		return list;
 	}
 	
+	/** Resolves only the objects of the requested range. */
 	public Iterator iterator(int first, int count) {
-		query.setPageSize(count);
-		return getList().subList(first, first + count).iterator();
+		List all = getList();
+		int from = Math.min(first, all.size());
+		return all.subList(from, Math.min(from + count, all.size())).iterator();
 	}
 	
+	/** @return number of matching rows, known from the id query */
 	public int size() {
 		return getList().size();
 	}
 	
+	/** Forgets the result of this request. */
+	@Override
+	public void detach() {
+		list = null;
+	}
+	
 	@Override
 	protected IModel dataModel(Object object) {
 		return new DataObjectModel((DataObject)object);
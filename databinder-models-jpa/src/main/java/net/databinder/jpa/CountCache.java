@@ -0,0 +1,48 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.databinder.jpa;
+
+/**
+ * Cache of row counts for data providers. Counts are stored under the root
+ * entity class of the counted query and a key describing its restrictions;
+ * changing any entity of that class (or a subclass) drops its counts.
+ * @see Databinder#getCountCache()
+ * @see CountCacheListener
+ */
+public interface CountCache {
+
+  /**
+   * @param entityClass root class of the count query
+   * @param key restrictions and parameters of the count query
+   * @return the cached count, or null if not present or expired
+   */
+  Integer get(Class<?> entityClass, Object key);
+
+  /**
+   * @param entityClass root class of the count query
+   * @param key restrictions and parameters of the count query
+   * @param count the count to remember
+   */
+  void put(Class<?> entityClass, Object key, int count);
+
+  /**
+   * Drops counts of the entity class and of its superclasses.
+   * @param entityClass class of a persisted, updated or removed entity
+   */
+  void invalidate(Class<?> entityClass);
+
+  /** Drops all counts. */
+  void clear();
+}
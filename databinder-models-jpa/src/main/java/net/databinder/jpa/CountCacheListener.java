@@ -0,0 +1,49 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.databinder.jpa;
+
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+
+/**
+ * Entity listener dropping cached counts and query results of an entity's
+ * class whenever one is persisted, updated or removed, and again after the
+ * request commits. It also marks the request as written, so that replica
+ * reads fall back to the primary. Register it for all entities as a default
+ * listener in <code>META-INF/orm.xml</code>:
+ * <pre>
+ * &lt;persistence-unit-metadata&gt;
+ *   &lt;persistence-unit-defaults&gt;
+ *     &lt;entity-listeners&gt;
+ *       &lt;entity-listener class="net.databinder.jpa.CountCacheListener"/&gt;
+ *     &lt;/entity-listeners&gt;
+ *   &lt;/persistence-unit-defaults&gt;
+ * &lt;/persistence-unit-metadata&gt;
+ * </pre>
+ * or for selected entities with <code>@EntityListeners</code>.
+ * @see Databinder#getCountCache()
+ * @see Databinder#getQueryResultCache()
+ * @see Databinder#entityChanged(Class)
+ */
+public class CountCacheListener {
+
+  @PostPersist
+  @PostUpdate
+  @PostRemove
+  public void entityChanged(final Object entity) {
+    Databinder.entityChanged(entity.getClass());
+  }
+}
@@ -14,10 +14,22 @@
 
 package net.databinder.jpa;
 
+import java.util.HashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 
 import org.apache.wicket.Application;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.Session;
 import org.apache.wicket.WicketRuntimeException;
 import org.apache.wicket.request.cycle.RequestCycle;
 
@@ -27,6 +39,14 @@ import org.apache.wicket.request.cycle.RequestCycle;
  * ManagedEntityManagerContext and DataRequestCycle listener when present, but
  * neither is required so long as a "current" {@link EntityManager} is available
  * from the {@link EntityManagerFactory} supplied by the application.
+ * <p>
+ * A factory may be given a read replica with
+ * {@link #setReplicaKey(String, String)}. Models and providers marked to read
+ * from the replica then query it through
+ * {@link #getReadEntityManager(String)}, until the request writes or opens a
+ * transaction on the primary; from then on, and for
+ * {@link #getReplicaLag()} milliseconds in the same session, they read from
+ * the primary so that users see their own writes.
  * @see JPAApplication
  * @author Nathan Hamblen
  * @author fbencosme@kitsd.com
@@ -38,6 +58,47 @@ public class Databinder {
    */
   public static final String DEFAULT_PERSISTENCE_UNIT_NAME = "persistenceUnit";
 
+  private static volatile CountCache countCache = new TimedCountCache();
+
+  private static volatile QueryResultCache queryResultCache =
+    new QueryResultCache();
+
+  /** Default time a session reads from the primary after writing, in ms. */
+  public static final long DEFAULT_REPLICA_LAG = 5000;
+
+  /** Replica factory keys by primary factory key. */
+  private static final ConcurrentMap<String, String> replicaKeys =
+    new ConcurrentHashMap<String, String>();
+
+  private static volatile long replicaLag = DEFAULT_REPLICA_LAG;
+
+  private static volatile ShardResolver shardResolver;
+
+  /** Default number of threads running background queries. */
+  public static final int DEFAULT_QUERY_THREADS = 4;
+
+  private static volatile ExecutorService queryExecutor =
+    newQueryExecutor(DEFAULT_QUERY_THREADS);
+
+  /** Entity changes reported and committed, for state kept across requests. */
+  private static final AtomicLong changeCount = new AtomicLong();
+
+  private static final MetaDataKey<Boolean> WRITTEN =
+    new MetaDataKey<Boolean>() {
+      private static final long serialVersionUID = 1L;
+    };
+
+  private static final MetaDataKey<Long> PRIMARY_UNTIL =
+    new MetaDataKey<Long>() {
+      private static final long serialVersionUID = 1L;
+    };
+
+  /** Entity classes changed in the request, invalidated again on commit. */
+  private static final MetaDataKey<HashSet<Class<?>>> CHANGED =
+    new MetaDataKey<HashSet<Class<?>>>() {
+      private static final long serialVersionUID = 1L;
+    };
+
   /**
    * @return default {@link EntityManagerFactory}, as returned by the
    *         application
@@ -65,6 +126,278 @@ public class Databinder {
     "Please implement JPAApplication in your Application subclass.");
   }
 
+  /**
+   * @param key factory key, or null for the default factory
+   * @return entity metadata for the keyed factory
+   * @see EntityMetadataRegistry
+   */
+  public static EntityMetadataRegistry getEntityMetadataRegistry(
+      final String key) {
+    return EntityMetadataRegistry.get(getEntityManagerFactory(key));
+  }
+
+  /**
+   * Forgets everything kept statically for a factory, its entity metadata and
+   * its entity manager slot. Call it when closing a factory, as
+   * DataApplication does on destroy.
+   * @param factory entity manager factory being closed
+   */
+  public static void releaseEntityManagerFactory(
+      final EntityManagerFactory factory) {
+    EntityMetadataRegistry.unregister(factory);
+    EntityManagerSlots.release(factory);
+  }
+
+  /**
+   * @return cache used by data providers for row counts
+   * @see CountCacheListener
+   */
+  public static CountCache getCountCache() {
+    return countCache;
+  }
+
+  /**
+   * Replaces the count cache, e.g. with a {@link TimedCountCache} of a
+   * different time to live.
+   * @param cache count cache to use from now on
+   */
+  public static void setCountCache(final CountCache cache) {
+    countCache = cache;
+  }
+
+  /**
+   * @return cache used by cacheable list models and providers for results
+   * @see CountCacheListener
+   */
+  public static QueryResultCache getQueryResultCache() {
+    return queryResultCache;
+  }
+
+  /**
+   * Replaces the query result cache, e.g. with one of a different size.
+   * @param cache result cache to use from now on
+   */
+  public static void setQueryResultCache(final QueryResultCache cache) {
+    queryResultCache = cache;
+  }
+
+  /**
+   * @return executor of background queries, the counts of providers with
+   *         combined fetch and the per-shard queries of sharded providers
+   */
+  public static ExecutorService getQueryExecutor() {
+    return queryExecutor;
+  }
+
+  /**
+   * Replaces the executor of background queries. Each running query holds a
+   * database connection of its own, so the executor should be bounded well
+   * below the connection pool; callers run a query themselves when the
+   * executor rejects it. The previous executor is not shut down.
+   * @param executor executor to use from now on
+   * @see #newQueryExecutor(int)
+   */
+  public static void setQueryExecutor(final ExecutorService executor) {
+    queryExecutor = executor;
+  }
+
+  /**
+   * @param threads most queries to run at once; as many more may wait
+   * @return executor of daemon threads that rejects queries beyond those
+   */
+  public static ExecutorService newQueryExecutor(final int threads) {
+    return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(threads), new ThreadFactory() {
+          public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, "databinder-query");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+  }
+
+  /**
+   * Routes reads of models and providers marked to read from a replica.
+   * @param key primary factory key, or null for the default factory
+   * @param replicaKey key of the replica's factory, or null to read from the
+   *          primary again
+   */
+  public static void setReplicaKey(final String key, final String replicaKey) {
+    if (replicaKey == null) {
+      replicaKeys.remove(resolveKey(key));
+    } else {
+      replicaKeys.put(resolveKey(key), replicaKey);
+    }
+  }
+
+  /**
+   * @param key primary factory key, or null for the default factory
+   * @return key of the primary's replica factory, or null if it has none
+   */
+  public static String getReplicaKey(final String key) {
+    return replicaKeys.get(resolveKey(key));
+  }
+
+  /**
+   * @return time a session keeps reading from the primary after a write, in
+   *         milliseconds
+   */
+  public static long getReplicaLag() {
+    return replicaLag;
+  }
+
+  /**
+   * @param lag time a session keeps reading from the primary after a write, to
+   *          cover the replica's replication delay, in milliseconds
+   */
+  public static void setReplicaLag(final long lag) {
+    replicaLag = lag;
+  }
+
+  /**
+   * Drops cached counts and results of an entity class and marks the request
+   * as written. The class is remembered for the request and dropped again by
+   * {@link #invalidateChanged()} once the change is committed, as another
+   * request may cache the uncommitted state in between. Called by
+   * CountCacheListener and data forms; call it after changing entities by
+   * other means.
+   * @param entityClass class of a persisted, updated or removed entity
+   */
+  public static void entityChanged(final Class<?> entityClass) {
+    countCache.invalidate(entityClass);
+    queryResultCache.invalidate(entityClass);
+    changeCount.incrementAndGet();
+    final RequestCycle cycle = RequestCycle.get();
+    if (cycle != null) {
+      HashSet<Class<?>> changed = cycle.getMetaData(CHANGED);
+      if (changed == null) {
+        changed = new HashSet<Class<?>>();
+        cycle.setMetaData(CHANGED, changed);
+      }
+      changed.add(entityClass);
+    }
+    markWritten();
+  }
+
+  /**
+   * Drops cached counts and results of the entity classes changed so far in
+   * the request, again. Called by data forms after commit and by the request
+   * cycle at the end of the request; call it after committing by other means.
+   */
+  public static void invalidateChanged() {
+    final RequestCycle cycle = RequestCycle.get();
+    final HashSet<Class<?>> changed =
+      cycle == null ? null : cycle.getMetaData(CHANGED);
+    if (changed != null) {
+      cycle.setMetaData(CHANGED, null);
+      for (final Class<?> entityClass : changed) {
+        countCache.invalidate(entityClass);
+        queryResultCache.invalidate(entityClass);
+      }
+      changeCount.incrementAndGet();
+    }
+  }
+
+  /**
+   * @return number that grows with every {@link #entityChanged(Class)} and
+   *         {@link #invalidateChanged()} that found changes; state derived
+   *         from entities and kept across requests is stale once it differs
+   */
+  public static long getChangeCount() {
+    return changeCount.get();
+  }
+
+  /**
+   * Records that the current request wrote to a primary, so that its remaining
+   * reads, and those of the session for the replica lag, go to the primary.
+   * Called by CountCacheListener on entity changes and by data forms on
+   * commit; call it after writing by other means.
+   */
+  public static void markWritten() {
+    final RequestCycle cycle = RequestCycle.get();
+    if (cycle != null) {
+      cycle.setMetaData(WRITTEN, Boolean.TRUE);
+    }
+    if (replicaLag > 0 && Session.exists()) {
+      Session.get().setMetaData(PRIMARY_UNTIL,
+          System.currentTimeMillis() + replicaLag);
+    }
+  }
+
+  /**
+   * @param key primary factory key, or null for the default factory
+   * @return true if reads must go to the primary: the request or, within the
+   *         replica lag, the session has written, or a transaction is active
+   *         on the primary's bound entity manager; a lazy entity manager not
+   *         yet used has none and is left uninitialized
+   */
+  public static boolean isPrimaryRequired(final String key) {
+    final RequestCycle cycle = RequestCycle.get();
+    if (cycle != null && cycle.getMetaData(WRITTEN) != null) {
+      return true;
+    }
+    if (Session.exists()) {
+      final Long until = Session.get().getMetaData(PRIMARY_UNTIL);
+      if (until != null && until > System.currentTimeMillis()) {
+        return true;
+      }
+    }
+    final EntityManagerContext emc = getEntityManagerContext(resolveKey(key));
+    if (!emc.hasBind()) {
+      return false;
+    }
+    final EntityManager em = emc.currentEntityManager();
+    return LazyEntityManager.isInitialized(em)
+    && em.getTransaction().isActive();
+  }
+
+  /**
+   * @param key primary factory key, or null for the default factory
+   * @return entity manager of the key's replica if it has one and the primary
+   *         is not required, otherwise of the primary
+   * @see #isPrimaryRequired(String)
+   */
+  public static EntityManager getReadEntityManager(final String key) {
+    final String replicaKey = getReplicaKey(key);
+    if (replicaKey != null && !isPrimaryRequired(key)) {
+      return getEntityManager(replicaKey);
+    }
+    return key == null ? getEntityManager() : getEntityManager(key);
+  }
+
+  /** @return resolver of sharded entities' factories, or null if none */
+  public static ShardResolver getShardResolver() {
+    return shardResolver;
+  }
+
+  /**
+   * @param resolver resolver of sharded entities' factories, or null to
+   *          disable sharding
+   */
+  public static void setShardResolver(final ShardResolver resolver) {
+    shardResolver = resolver;
+  }
+
+  /**
+   * @param key factory key to use if the entity is not sharded
+   * @param entityClass class of the entity
+   * @param id entity identifier, or null
+   * @return factory key of the entity's shard, or the given key
+   */
+  public static String getShardKey(final String key,
+      final Class<?> entityClass, final Object id) {
+    final ShardResolver resolver = shardResolver;
+    if (resolver == null || entityClass == null || id == null) {
+      return key;
+    }
+    final String shard = resolver.getFactoryKey(entityClass, id);
+    return shard == null ? key : shard;
+  }
+
+  private static String resolveKey(final String key) {
+    return key == null ? DEFAULT_PERSISTENCE_UNIT_NAME : key;
+  }
+
   public static EntityManagerContext getEntityManagerContext() {
     return getEntityManagerContext(DEFAULT_PERSISTENCE_UNIT_NAME);
   }
@@ -92,7 +425,8 @@ public class Databinder {
    */
   public static EntityManager getEntityManager(final String persistenceUnit) {
     dataEntityManagerRequested(persistenceUnit);
-    return getEntityManagerFactory(persistenceUnit).createEntityManager();
+    return getEntityManagerContext(resolveKey(persistenceUnit))
+    .currentEntityManager();
   }
 
   /**
@@ -160,7 +494,9 @@ public class Databinder {
    * consider using projections / scalar queries instead. <b>Note</b> This
    * method uses a ManagedEntityManagerContext. With JTA or other forms of
    * current {@link EntityManager} lookup a wrapping {@link EntityManager} will
-   * not be detected and a new one will always be created.
+   * not be detected and a new one will always be created. On a thread other
+   * than the request's, attach an {@link EntityManagerScope} captured on the
+   * request thread first to use its entity manager.
    * @param unit work to be performed in thread-bound {@link EntityManager}
    * @param key or null for the default factory
    * @see EntityManagerUnit
@@ -174,9 +510,10 @@ public class Databinder {
     }
 
     final EntityManager em = getEntityManagerFactory(key).createEntityManager();
+    final EntityManagerScope.Handle handle =
+      EntityManagerScope.of(emc, em).attach();
     try {
       em.getTransaction().begin();
-      emc.bind(em);
       return unit.run(em);
     } finally {
       try {
@@ -185,7 +522,7 @@ public class Databinder {
         }
       } finally {
         em.close();
-        emc.unbind();
+        handle.detach();
       }
     }
   }
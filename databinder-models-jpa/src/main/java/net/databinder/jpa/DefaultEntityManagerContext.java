@@ -1,23 +1,28 @@
 package net.databinder.jpa;
 
 import java.io.Serializable;
-import java.util.HashMap;
 import java.util.Map;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.PersistenceException;
 
+/**
+ * Binds entity managers to the current thread, one per factory. Lookups go to
+ * a per-thread slot array indexed by the factory's slot, taking no lock.
+ */
 public class DefaultEntityManagerContext implements Serializable,
 EntityManagerContext {
 
   private static final long serialVersionUID = 1L;
 
-  private static final ThreadLocal<Map<Object, EntityManager>> context =
-    new ThreadLocal<Map<Object, EntityManager>>();
+  private static final EntityManagerSlots context = new EntityManagerSlots();
 
   private final EntityManagerFactory factory;
 
+  /** Slot index of the factory plus one, or 0 until resolved. */
+  private transient int slot;
+
   public DefaultEntityManagerContext(final EntityManagerFactory factory) {
     this.factory = factory;
   }
@@ -26,7 +31,7 @@ EntityManagerContext {
    * @see net.databinder.jpa.EntityManagerContext#currentEntityManager()
    */
   public EntityManager currentEntityManager() {
-    final EntityManager current = existingEntityManager(factory);
+    final EntityManager current = context.get(slot());
     if (current == null) {
       throw new PersistenceException(
       "No EntityManger currently bound to execution context");
@@ -40,7 +45,7 @@ EntityManagerContext {
    * @return True if there is currently a entity manager bound.
    */
   public boolean hasBind() {
-    return existingEntityManager(factory) != null;
+    return context.get(slot()) != null;
   }
 
   /**
@@ -50,7 +55,9 @@ EntityManagerContext {
    * @return Any previously bound entity manager (should be null in most cases).
    */
   public EntityManager bind(final EntityManager em) {
-    return entityManagerMap(true).put(em.getEntityManagerFactory(), em);
+    final EntityManagerFactory emf = em.getEntityManagerFactory();
+    return context.set(emf == factory ? slot() : EntityManagerSlots
+        .indexOf(emf), em);
   }
 
   /**
@@ -59,46 +66,18 @@ EntityManagerContext {
    * @return The bound entity manager if one, else null.
    */
   public EntityManager unbind() {
-    EntityManager existing = null;
-    final Map<Object, EntityManager> emMap = entityManagerMap();
-    if (emMap != null) {
-      existing = emMap.remove(factory);
-      doCleanup();
-    }
-    return existing;
+    return context.clear(slot());
   }
 
-  private static EntityManager existingEntityManager(
-      final EntityManagerFactory emf) {
-    final Map<Object, EntityManager> emMap = entityManagerMap();
-    if (emMap == null) {
-      return null;
-    } else {
-      return emMap.get(emf);
+  private int slot() {
+    if (slot == 0) {
+      slot = EntityManagerSlots.indexOf(factory) + 1;
     }
+    return slot - 1;
   }
 
+  /** @return copy of the entity managers bound to this thread, or null */
   protected static Map<Object, EntityManager> entityManagerMap() {
-    return entityManagerMap(false);
-  }
-
-  private static synchronized Map<Object, EntityManager> entityManagerMap(
-      final boolean createMap) {
-    Map<Object, EntityManager> emMap = context.get();
-    if (emMap == null && createMap) {
-      emMap = new HashMap<Object, EntityManager>();
-      context.set(emMap);
-    }
-    return emMap;
+    return context.snapshot();
   }
-
-  private static synchronized void doCleanup() {
-    final Map<Object, EntityManager> emMap = entityManagerMap(false);
-    if (emMap != null) {
-      if (emMap.isEmpty()) {
-        context.set(null);
-      }
-    }
-  }
-
 }
@@ -0,0 +1,57 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.databinder.jpa;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Entity class names of an {@link EntityMetadataRegistry} in class id order,
+ * with a fingerprint of the list. Serialized models write it next to their
+ * class id; one instance per registry means a stream holds it once. A reader
+ * whose registry has the same fingerprint resolves the id, any other the
+ * name, so ids stay valid when entities are added or renamed between
+ * deployments.
+ */
+public final class EntityClassMapping implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final String[] names;
+
+  private final int fingerprint;
+
+  EntityClassMapping(final List<Class<?>> classes) {
+    names = new String[classes.size()];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = classes.get(i).getName();
+    }
+    fingerprint = Arrays.hashCode(names);
+  }
+
+  /** @return hash of the class names in id order */
+  public int getFingerprint() {
+    return fingerprint;
+  }
+
+  /**
+   * @param classId class id of the mapping
+   * @return the class name, or null if the id is unknown
+   */
+  public String getClassName(final int classId) {
+    return classId >= 0 && classId < names.length ? names[classId] : null;
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.databinder.jpa;
+
+import java.util.concurrent.Callable;
+
+import javax.persistence.EntityManager;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.Session;
+import org.apache.wicket.ThreadContext;
+import org.apache.wicket.request.cycle.RequestCycle;
+
+/**
+ * Entity managers bound to a thread, captured so they can be bound to another.
+ * Entity manager contexts keep their bindings per thread, so work handed to an
+ * executor, continued by an asynchronous request or run on a virtual thread
+ * would otherwise find no entity manager. Capture a scope on the request
+ * thread, pass it along with the work and attach it where the work runs:
+ * <pre>
+ * final EntityManagerScope scope = EntityManagerScope.capture(null, "archive");
+ * executor.submit(scope.wrap(new Callable&lt;Report&gt;() { ... }));
+ * </pre>
+ * Attaching binds the captured entity managers and, if captured, the Wicket
+ * application, session and request cycle. Detaching the returned handle
+ * restores what attaching replaced: the entity managers bound before, or none,
+ * and the thread's previous Wicket context. Scopes attached within one another
+ * on the same thread therefore unwind in order, and a scope attached on the
+ * thread that captured it leaves that thread's bindings in place. Entity
+ * managers are not thread safe: the capturing thread must not use them, nor
+ * close them at the end of its request, until the work is done.
+ * @see DataRequestCycle#captureEntityManagers()
+ */
+public class EntityManagerScope {
+
+  private final EntityManagerContext[] contexts;
+
+  private final EntityManager[] ems;
+
+  /** Whether the Wicket objects below were captured, even if null. */
+  private final boolean wicket;
+
+  private final Application application;
+
+  private final Session session;
+
+  private final RequestCycle requestCycle;
+
+  private EntityManagerScope(final EntityManagerContext[] contexts,
+      final EntityManager[] ems, final boolean wicket) {
+    this.contexts = contexts;
+    this.ems = ems;
+    this.wicket = wicket;
+    application = wicket ? ThreadContext.getApplication() : null;
+    session = wicket ? ThreadContext.getSession() : null;
+    requestCycle = wicket ? ThreadContext.getRequestCycle() : null;
+  }
+
+  /**
+   * Captures the entity managers bound to the current thread for the keyed
+   * factories, with the current Wicket application, session and request
+   * cycle. Keys with no bound entity manager are skipped.
+   * @param keys factory keys, null for the default factory; none for the
+   *          default factory only
+   * @return scope to attach to other threads
+   */
+  public static EntityManagerScope capture(final String... keys) {
+    final String[] k =
+      keys == null || keys.length == 0 ? new String[] { null } : keys;
+    final EntityManagerContext[] contexts = new EntityManagerContext[k.length];
+    final EntityManager[] ems = new EntityManager[k.length];
+    int bound = 0;
+    for (final String key : k) {
+      final EntityManagerContext emc = Databinder.getEntityManagerContext(key
+          == null ? Databinder.DEFAULT_PERSISTENCE_UNIT_NAME : key);
+      if (emc.hasBind()) {
+        contexts[bound] = emc;
+        ems[bound++] = emc.currentEntityManager();
+      }
+    }
+    final EntityManagerContext[] c = new EntityManagerContext[bound];
+    final EntityManager[] e = new EntityManager[bound];
+    System.arraycopy(contexts, 0, c, 0, bound);
+    System.arraycopy(ems, 0, e, 0, bound);
+    return new EntityManagerScope(c, e, true);
+  }
+
+  /**
+   * @param emc context to bind the entity manager with
+   * @param em entity manager to bind
+   * @return scope of the single entity manager, leaving the Wicket thread
+   *         context of the attaching thread as it is
+   */
+  public static EntityManagerScope of(final EntityManagerContext emc,
+      final EntityManager em) {
+    return new EntityManagerScope(new EntityManagerContext[] { emc },
+        new EntityManager[] { em }, false);
+  }
+
+  /**
+   * Binds the captured entity managers, and Wicket objects if any, to the
+   * current thread.
+   * @return handle restoring the thread's previous bindings
+   */
+  public Handle attach() {
+    ThreadContext previousContext = null;
+    if (wicket) {
+      previousContext = ThreadContext.detach();
+      ThreadContext.setApplication(application);
+      ThreadContext.setSession(session);
+      ThreadContext.setRequestCycle(requestCycle);
+    }
+    final EntityManager[] previous = new EntityManager[ems.length];
+    for (int i = 0; i < ems.length; i++) {
+      previous[i] = contexts[i].bind(ems[i]);
+    }
+    return new Handle(previous, previousContext);
+  }
+
+  /**
+   * @param task work to run with the scope attached
+   * @return task attaching the scope while it runs
+   */
+  public Runnable wrap(final Runnable task) {
+    return new Runnable() {
+      public void run() {
+        final Handle handle = attach();
+        try {
+          task.run();
+        } finally {
+          handle.detach();
+        }
+      }
+    };
+  }
+
+  /**
+   * @param task work to run with the scope attached
+   * @return task attaching the scope while it runs
+   */
+  public <V> Callable<V> wrap(final Callable<V> task) {
+    return new Callable<V>() {
+      public V call() throws Exception {
+        final Handle handle = attach();
+        try {
+          return task.call();
+        } finally {
+          handle.detach();
+        }
+      }
+    };
+  }
+
+  /** @return number of entity managers captured */
+  public int size() {
+    return ems.length;
+  }
+
+  /** Bindings made by attaching a scope to a thread. */
+  public class Handle {
+
+    /** Entity managers bound before attaching, or null, by context. */
+    private final EntityManager[] previous;
+
+    /** Wicket context of the thread before attaching, or null. */
+    private final ThreadContext previousContext;
+
+    private boolean detached;
+
+    private Handle(final EntityManager[] previous,
+        final ThreadContext previousContext) {
+      this.previous = previous;
+      this.previousContext = previousContext;
+    }
+
+    /**
+     * Binds again the entity managers the thread had before attaching,
+     * unbinding those of contexts that had none, and restores its previous
+     * Wicket context. Does nothing if already detached. Must be called on the
+     * thread that attached, after any scope attached later on it is detached.
+     */
+    public void detach() {
+      if (detached) {
+        return;
+      }
+      detached = true;
+      for (int i = ems.length - 1; i >= 0; i--) {
+        if (previous[i] != null) {
+          contexts[i].bind(previous[i]);
+        } else {
+          contexts[i].unbind();
+        }
+      }
+      if (wicket) {
+        ThreadContext.restore(previousContext);
+      }
+    }
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.databinder.jpa;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * Per-thread entity managers, one slot per factory. Each factory is given a
+ * dense index the first time it is seen; a thread's entity managers are kept
+ * in an array at those indexes, so binding and looking up take no lock and
+ * no hashing beyond the first lookup of a factory's index.
+ */
+final class EntityManagerSlots {
+
+  /** Slot index by factory, shared by all slot sets. */
+  private static final ConcurrentMap<EntityManagerFactory, Integer> indexes =
+    new ConcurrentHashMap<EntityManagerFactory, Integer>();
+
+  private static final AtomicInteger nextIndex = new AtomicInteger();
+
+  private final ThreadLocal<Slots> local = new ThreadLocal<Slots>();
+
+  /** @return the factory's slot index, assigning one on first use */
+  static int indexOf(final EntityManagerFactory factory) {
+    Integer index = indexes.get(factory);
+    if (index == null) {
+      final Integer assigned = nextIndex.getAndIncrement();
+      index = indexes.putIfAbsent(factory, assigned);
+      if (index == null) {
+        index = assigned;
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Forgets a closed factory's index, so the static map no longer holds on to
+   * the factory. Indexes are not reused; a later factory gets a new one.
+   * @param factory entity manager factory being closed
+   */
+  static void release(final EntityManagerFactory factory) {
+    indexes.remove(factory);
+  }
+
+  /** @return entity manager bound to the slot for this thread, or null */
+  EntityManager get(final int index) {
+    final Slots slots = local.get();
+    return slots == null || index >= slots.ems.length ? null
+        : slots.ems[index];
+  }
+
+  /**
+   * @param em entity manager to bind to the slot for this thread
+   * @return entity manager previously bound to the slot, or null
+   */
+  EntityManager set(final int index, final EntityManager em) {
+    Slots slots = local.get();
+    if (slots == null) {
+      slots = new Slots(Math.max(index + 1, 4));
+      local.set(slots);
+    } else if (index >= slots.ems.length) {
+      final EntityManager[] grown =
+        new EntityManager[Math.max(index + 1, slots.ems.length * 2)];
+      System.arraycopy(slots.ems, 0, grown, 0, slots.ems.length);
+      slots.ems = grown;
+    }
+    final EntityManager previous = slots.ems[index];
+    slots.ems[index] = em;
+    if (previous == null) {
+      slots.bound++;
+    }
+    return previous;
+  }
+
+  /**
+   * Empties the slot for this thread, dropping the thread's slots when none
+   * is left bound.
+   * @return entity manager that was bound, or null
+   */
+  EntityManager clear(final int index) {
+    final Slots slots = local.get();
+    if (slots == null || index >= slots.ems.length
+        || slots.ems[index] == null) {
+      return null;
+    }
+    final EntityManager previous = slots.ems[index];
+    slots.ems[index] = null;
+    if (--slots.bound == 0) {
+      local.remove();
+    }
+    return previous;
+  }
+
+  /** @return copy of this thread's bound entity managers by factory, or null */
+  Map<Object, EntityManager> snapshot() {
+    final Slots slots = local.get();
+    if (slots == null) {
+      return null;
+    }
+    final Map<Object, EntityManager> map = new HashMap<Object, EntityManager>();
+    for (final EntityManager em : slots.ems) {
+      if (em != null) {
+        map.put(em.getEntityManagerFactory(), em);
+      }
+    }
+    return map;
+  }
+
+  private static class Slots {
+    private EntityManager[] ems;
+    private int bound;
+
+    Slots(final int size) {
+      ems = new EntityManager[size];
+    }
+  }
+}
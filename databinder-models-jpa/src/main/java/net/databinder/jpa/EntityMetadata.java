@@ -0,0 +1,170 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.databinder.jpa;
+
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+
+import javax.persistence.PersistenceException;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.SingularAttribute;
+
+import org.hibernate.proxy.HibernateProxy;
+
+/**
+ * Identifier and version accessors of one entity class, resolved once from the
+ * JPA metamodel. Accessors are made accessible when the metadata is built so
+ * that reading an id or version is a single reflective call.
+ * @see EntityMetadataRegistry
+ */
+public class EntityMetadata {
+
+  private final Class<?> entityClass;
+
+  private final SingularAttribute<?, ?> idAttribute;
+
+  private final SingularAttribute<?, ?> versionAttribute;
+
+  private final Accessor idAccessor;
+
+  private final Accessor versionAccessor;
+
+  private int classId = -1;
+
+  <T> EntityMetadata(final EntityType<T> type) {
+    entityClass = type.getJavaType();
+    SingularAttribute<?, ?> id = null;
+    SingularAttribute<?, ?> version = null;
+    for (final SingularAttribute<? super T, ?> attribute : type
+        .getSingularAttributes()) {
+      if (attribute.isId() && type.hasSingleIdAttribute()) {
+        id = attribute;
+      } else if (attribute.isVersion()) {
+        version = attribute;
+      }
+    }
+    idAttribute = id;
+    versionAttribute = version;
+    idAccessor = Accessor.of(id);
+    versionAccessor = Accessor.of(version);
+  }
+
+  /** @return the mapped entity class */
+  public Class<?> getEntityClass() {
+    return entityClass;
+  }
+
+  /** @return compact class id assigned by the registry */
+  public int getClassId() {
+    return classId;
+  }
+
+  void setClassId(final int classId) {
+    this.classId = classId;
+  }
+
+  /** @return the single id attribute, or null for composite ids */
+  public SingularAttribute<?, ?> getIdAttribute() {
+    return idAttribute;
+  }
+
+  /** @return name of the single id attribute, or null for composite ids */
+  public String getIdAttributeName() {
+    return idAttribute == null ? null : idAttribute.getName();
+  }
+
+  /** @return the version attribute, or null if the entity is not versioned */
+  public SingularAttribute<?, ?> getVersionAttribute() {
+    return versionAttribute;
+  }
+
+  /** @return true if the identifier can be read by this metadata */
+  public boolean hasIdAccessor() {
+    return idAccessor != null;
+  }
+
+  /** @return true if the entity has a readable version attribute */
+  public boolean isVersioned() {
+    return versionAccessor != null;
+  }
+
+  /**
+   * Reads the identifier without initializing Hibernate proxies.
+   * @param entity instance of the entity class
+   * @return the identifier
+   */
+  public Object getIdentifier(final Object entity) {
+    if (entity instanceof HibernateProxy) {
+      return ((HibernateProxy) entity).getHibernateLazyInitializer()
+      .getIdentifier();
+    }
+    return idAccessor.get(entity);
+  }
+
+  /**
+   * @param entity instance of the entity class
+   * @return the version value, or null if the entity is not versioned
+   */
+  public Serializable getVersion(final Object entity) {
+    if (versionAccessor == null) {
+      return null;
+    }
+    Object target = entity;
+    if (target instanceof HibernateProxy) {
+      target =
+        ((HibernateProxy) target).getHibernateLazyInitializer()
+        .getImplementation();
+    }
+    return (Serializable) versionAccessor.get(target);
+  }
+
+  /** Field or getter made accessible once. */
+  private static class Accessor {
+    private final Field field;
+    private final Method method;
+
+    private Accessor(final Field field, final Method method) {
+      this.field = field;
+      this.method = method;
+    }
+
+    static Accessor of(final SingularAttribute<?, ?> attribute) {
+      if (attribute == null) {
+        return null;
+      }
+      final Member member = attribute.getJavaMember();
+      if (member instanceof Field) {
+        final Field f = (Field) member;
+        f.setAccessible(true);
+        return new Accessor(f, null);
+      } else if (member instanceof Method) {
+        final Method m = (Method) member;
+        m.setAccessible(true);
+        return new Accessor(null, m);
+      }
+      return null;
+    }
+
+    Object get(final Object target) {
+      try {
+        return field != null ? field.get(target) : method.invoke(target);
+      } catch (final Exception e) {
+        throw new PersistenceException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.databinder.jpa;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.metamodel.EntityType;
+
+/**
+ * Entity metadata for one {@link EntityManagerFactory}, built from its JPA
+ * metamodel. Lookups by class also resolve subclasses such as Hibernate
+ * proxies to the mapped entity, and remember the result. Entity classes are
+ * also numbered in class name order, giving serialized models a compact class
+ * id that is stable across nodes sharing the same mappings; its
+ * {@link EntityClassMapping} tells whether a stream was written with them.
+ * @see EntityMetadata
+ * @see Databinder#getEntityMetadataRegistry(String)
+ */
+public class EntityMetadataRegistry {
+
+  private static final Map<EntityManagerFactory, EntityMetadataRegistry>
+  registries = new HashMap<EntityManagerFactory, EntityMetadataRegistry>();
+
+  private final EntityManagerFactory factory;
+
+  private final Map<Class<?>, EntityMetadata> metadata =
+    new ConcurrentHashMap<Class<?>, EntityMetadata>();
+
+  private final Map<Class<?>, Boolean> unmapped =
+    new ConcurrentHashMap<Class<?>, Boolean>();
+
+  /** Entity classes indexed by class id. */
+  private final List<Class<?>> classes = new ArrayList<Class<?>>();
+
+  private final EntityClassMapping classMapping;
+
+  private EntityMetadataRegistry(final EntityManagerFactory factory) {
+    this.factory = factory;
+    for (final EntityType<?> type : factory.getMetamodel().getEntities()) {
+      metadata.put(type.getJavaType(), new EntityMetadata(type));
+      classes.add(type.getJavaType());
+    }
+    Collections.sort(classes, new Comparator<Class<?>>() {
+      public int compare(final Class<?> a, final Class<?> b) {
+        return a.getName().compareTo(b.getName());
+      }
+    });
+    for (int i = 0; i < classes.size(); i++) {
+      metadata.get(classes.get(i)).setClassId(i);
+    }
+    classMapping = new EntityClassMapping(classes);
+  }
+
+  /**
+   * Builds the registry for a factory; called when the factory is registered
+   * with the application so that the metamodel is read at startup.
+   * @param factory entity manager factory
+   * @return registry for the factory
+   */
+  public static EntityMetadataRegistry register(
+      final EntityManagerFactory factory) {
+    return get(factory);
+  }
+
+  /**
+   * @param factory entity manager factory
+   * @return registry for the factory, built on first use
+   */
+  public static EntityMetadataRegistry get(final EntityManagerFactory factory) {
+    synchronized (registries) {
+      EntityMetadataRegistry registry = registries.get(factory);
+      if (registry == null) {
+        registry = new EntityMetadataRegistry(factory);
+        registries.put(factory, registry);
+      }
+      return registry;
+    }
+  }
+
+  /**
+   * Drops the registry of a factory that is being closed, so that it is not
+   * kept past a redeploy.
+   * @param factory entity manager factory
+   */
+  public static void unregister(final EntityManagerFactory factory) {
+    synchronized (registries) {
+      registries.remove(factory);
+    }
+  }
+
+  /**
+   * @param c entity class or subclass of one (e.g. a proxy class)
+   * @return metadata for the mapped entity class, or null if unmapped
+   */
+  public EntityMetadata getMetadata(final Class<?> c) {
+    final EntityMetadata known = metadata.get(c);
+    if (known != null || unmapped.containsKey(c)) {
+      return known;
+    }
+    for (Class<?> sup = c.getSuperclass(); sup != null; sup =
+      sup.getSuperclass()) {
+      final EntityMetadata inherited = metadata.get(sup);
+      if (inherited != null) {
+        metadata.put(c, inherited);
+        return inherited;
+      }
+    }
+    unmapped.put(c, Boolean.TRUE);
+    return null;
+  }
+
+  /**
+   * @param c entity class or subclass of one
+   * @return compact id of the mapped entity class, or -1 if unmapped
+   */
+  public int getClassId(final Class<?> c) {
+    final EntityMetadata md = getMetadata(c);
+    return md == null ? -1 : md.getClassId();
+  }
+
+  /**
+   * @param classId id returned by {@link #getClassId(Class)}
+   * @return the entity class, or null if the id is unknown
+   */
+  public Class<?> getEntityClass(final int classId) {
+    return classId >= 0 && classId < classes.size() ? classes.get(classId)
+        : null;
+  }
+
+  /** @return class names by class id, to be written with class ids */
+  public EntityClassMapping getClassMapping() {
+    return classMapping;
+  }
+
+  /**
+   * @param entity persistent object
+   * @return its identifier, read through cached accessors when possible
+   */
+  public Object getIdentifier(final Object entity) {
+    final EntityMetadata md = getMetadata(entity.getClass());
+    if (md != null && md.hasIdAccessor()) {
+      return md.getIdentifier(entity);
+    }
+    return factory.getPersistenceUnitUtil().getIdentifier(entity);
+  }
+
+  /**
+   * @param entity persistent object
+   * @return its version, or null if unmapped or not versioned
+   */
+  public Serializable getVersion(final Object entity) {
+    final EntityMetadata md = getMetadata(entity.getClass());
+    return md == null ? null : md.getVersion(entity);
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.databinder.jpa;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Spreads the entities of registered classes over a fixed list of shards by
+ * their id: integral ids by value modulo the number of shards, other ids by
+ * hash code. The list must not change once rows have been written, or
+ * entities will be looked for in the wrong shard.
+ */
+public class HashShardResolver implements ShardResolver {
+
+  private final List<String> keys;
+
+  private final Set<Class<?>> entityClasses =
+    new CopyOnWriteArraySet<Class<?>>();
+
+  /** @param keys factory keys of the shards, in a fixed order */
+  public HashShardResolver(final String... keys) {
+    if (keys.length == 0) {
+      throw new IllegalArgumentException("At least one shard is required");
+    }
+    this.keys =
+      Collections.unmodifiableList(new ArrayList<String>(Arrays.asList(keys)));
+  }
+
+  /**
+   * Shards the class and its subclasses.
+   * @param entityClass class whose entities are spread over the shards
+   * @return this, for chaining
+   */
+  public HashShardResolver addEntityClass(final Class<?> entityClass) {
+    entityClasses.add(entityClass);
+    return this;
+  }
+
+  public String getFactoryKey(final Class<?> entityClass, final Object id) {
+    if (id == null || !isSharded(entityClass)) {
+      return null;
+    }
+    final long n =
+      id instanceof Long || id instanceof Integer || id instanceof Short
+      || id instanceof Byte ? ((Number) id).longValue() : id.hashCode();
+    return keys.get((int) Math.abs(n % keys.size()));
+  }
+
+  public List<String> getFactoryKeys(final Class<?> entityClass) {
+    return isSharded(entityClass) ? keys : null;
+  }
+
+  private boolean isSharded(final Class<?> entityClass) {
+    for (final Class<?> c : entityClasses) {
+      if (c.isAssignableFrom(entityClass)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.databinder.jpa;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * Entity manager that creates its underlying entity manager, and with it any
+ * JDBC connection, on the first call that needs one: a query, a find, a
+ * persist or the transaction. Until then it answers for the factory, the
+ * criteria builder, the metamodel and contains() itself, so binding it to a
+ * request and building criteria cost nothing. {@link #release(EntityManager)}
+ * closes the underlying entity manager early, handing its connection back,
+ * while the proxy stays usable and opens a new one if called again.
+ */
+public class LazyEntityManager implements InvocationHandler {
+
+  private final EntityManagerFactory factory;
+
+  private EntityManager target;
+
+  private boolean closed;
+
+  private LazyEntityManager(final EntityManagerFactory factory) {
+    this.factory = factory;
+  }
+
+  /**
+   * @param factory factory to create the underlying entity manager with
+   * @return an open entity manager that has not touched the database
+   */
+  public static EntityManager create(final EntityManagerFactory factory) {
+    return (EntityManager) Proxy.newProxyInstance(EntityManager.class
+        .getClassLoader(), new Class<?>[] { EntityManager.class },
+        new LazyEntityManager(factory));
+  }
+
+  /**
+   * @param em any entity manager
+   * @return false if em is a lazy entity manager that has not created its
+   *         underlying entity manager, or released it, true otherwise
+   */
+  public static boolean isInitialized(final EntityManager em) {
+    final LazyEntityManager lazy = handler(em);
+    return lazy == null || lazy.target != null;
+  }
+
+  /**
+   * Closes the underlying entity manager of a lazy entity manager, unless a
+   * transaction is active on it. Entities it loaded become detached, so their
+   * unloaded associations can no longer be read.
+   * @param em any entity manager; others than lazy ones are left alone
+   * @return true if an underlying entity manager was closed
+   */
+  public static boolean release(final EntityManager em) {
+    final LazyEntityManager lazy = handler(em);
+    if (lazy == null || lazy.target == null
+        || lazy.target.getTransaction().isActive()) {
+      return false;
+    }
+    final EntityManager target = lazy.target;
+    lazy.target = null;
+    target.close();
+    return true;
+  }
+
+  private static LazyEntityManager handler(final EntityManager em) {
+    if (em != null && Proxy.isProxyClass(em.getClass())) {
+      final InvocationHandler h = Proxy.getInvocationHandler(em);
+      if (h instanceof LazyEntityManager) {
+        return (LazyEntityManager) h;
+      }
+    }
+    return null;
+  }
+
+  public Object invoke(final Object proxy, final Method method,
+      final Object[] args) throws Throwable {
+    final String name = method.getName();
+    if (name.equals("equals")) {
+      return proxy == args[0];
+    } else if (name.equals("hashCode")) {
+      return System.identityHashCode(proxy);
+    } else if (name.equals("toString")) {
+      return "LazyEntityManager[" + (target == null ? "uninitialized" : target)
+      + "]";
+    } else if (name.equals("getEntityManagerFactory")) {
+      return factory;
+    } else if (name.equals("isOpen")) {
+      return !closed;
+    } else if (name.equals("close")) {
+      closed = true;
+      if (target != null) {
+        target.close();
+        target = null;
+      }
+      return null;
+    } else if (closed) {
+      throw new IllegalStateException("EntityManager is closed");
+    }
+    if (target == null) {
+      if (name.equals("getCriteriaBuilder")) {
+        return factory.getCriteriaBuilder();
+      } else if (name.equals("getMetamodel")) {
+        return factory.getMetamodel();
+      } else if (name.equals("contains")) {
+        return false;
+      } else if (name.equals("clear") || name.equals("detach")) {
+        return null;
+      }
+      target = factory.createEntityManager();
+    }
+    try {
+      return method.invoke(target, args);
+    } catch (final InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+}
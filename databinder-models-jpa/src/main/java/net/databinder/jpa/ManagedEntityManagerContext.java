@@ -1,19 +1,21 @@
 package net.databinder.jpa;
 
 import java.io.Serializable;
-import java.util.HashMap;
 import java.util.Map;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.PersistenceException;
 
+/**
+ * Binds entity managers to the current thread through static methods, one per
+ * factory, in per-thread slot arrays that take no lock.
+ */
 public class ManagedEntityManagerContext implements Serializable {
 
   private static final long serialVersionUID = 1L;
 
-  private static final ThreadLocal<Map<Object, EntityManager>> context =
-    new ThreadLocal<Map<Object, EntityManager>>();
+  private static final EntityManagerSlots context = new EntityManagerSlots();
 
   private final EntityManagerFactory factory;
 
@@ -50,8 +52,8 @@ public class ManagedEntityManagerContext implements Serializable {
    * @return Any previously bound session (should be null in most cases).
    */
   public static EntityManager bind(final EntityManager em) {
-    return entityManagerMap(true).put(
-        em.getEntityManagerFactory(), em);
+    return context.set(EntityManagerSlots.indexOf(em
+        .getEntityManagerFactory()), em);
   }
 
   /**
@@ -61,46 +63,16 @@ public class ManagedEntityManagerContext implements Serializable {
    * @return The bound session if one, else null.
    */
   public static EntityManager unbind(final EntityManagerFactory factory) {
-    EntityManager existing = null;
-    final Map<Object, EntityManager> emMap = entityManagerMap();
-    if (emMap != null) {
-      existing = emMap.remove(factory);
-      doCleanup();
-    }
-    return existing;
+    return context.clear(EntityManagerSlots.indexOf(factory));
   }
 
   private static EntityManager existingEntityManager(
       final EntityManagerFactory emf) {
-    final Map<Object, EntityManager> emMap = entityManagerMap();
-    if (emMap == null) {
-      return null;
-    } else {
-      return emMap.get(emf);
-    }
+    return context.get(EntityManagerSlots.indexOf(emf));
   }
 
+  /** @return copy of the entity managers bound to this thread, or null */
   protected static Map<Object, EntityManager> entityManagerMap() {
-    return entityManagerMap(false);
-  }
-
-  private static synchronized Map<Object, EntityManager> entityManagerMap(
-      final boolean createMap) {
-    Map<Object, EntityManager> emMap =
-      context.get();
-    if (emMap == null && createMap) {
-      emMap = new HashMap<Object, EntityManager>();
-      context.set(emMap);
-    }
-    return emMap;
-  }
-
-  private static synchronized void doCleanup() {
-    final Map<Object, EntityManager> emMap = entityManagerMap(false);
-    if (emMap != null) {
-      if (emMap.isEmpty()) {
-        context.set(null);
-      }
-    }
+    return context.snapshot();
   }
 }
@@ -0,0 +1,272 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.databinder.jpa;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+
+/**
+ * Cache of query results shared by all requests and users, for lists that are
+ * read far more often than they change, such as reference data. Entity
+ * results are stored as their classes and ids only and loaded again through
+ * the current entity manager when read, with one <code>IN</code> query per
+ * entity class, so callers always receive managed entities. Results of
+ * scalar values are stored as they are; results mixing entities into rows
+ * are not cached.
+ * <p>
+ * Each result is stored under a key, usually the query string and its bound
+ * parameters, with its own time to live and the entity classes it depends
+ * on; changing an entity of one of those classes drops it. The least recently
+ * used results are dropped once the cache holds its maximum number of entries.
+ * @see Databinder#getQueryResultCache()
+ * @see CountCacheListener
+ */
+public class QueryResultCache {
+
+  /** Default maximum number of results held. */
+  public static final int DEFAULT_MAX_ENTRIES = 500;
+
+  /** Most ids placed in a single IN restriction when reloading. */
+  private static final int CHUNK_SIZE = 100;
+
+  private final Map<Object, Entry> entries;
+
+  private long hits, misses;
+
+  /** Cache with the default size. */
+  public QueryResultCache() {
+    this(DEFAULT_MAX_ENTRIES);
+  }
+
+  /** @param maxEntries maximum number of results held */
+  public QueryResultCache(final int maxEntries) {
+    entries = new LinkedHashMap<Object, Entry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<Object, Entry> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * @param em entity manager to load entities with
+   * @param key key the result was stored under
+   * @return the result with its entities attached to em, or null if not
+   *         present, expired or any of its entities no longer exists
+   */
+  @SuppressWarnings("unchecked")
+  public <T> List<T> get(final EntityManager em, final Object key) {
+    final Entry entry;
+    synchronized (this) {
+      final Entry e = entries.get(key);
+      if (e != null && e.expires < System.currentTimeMillis()) {
+        entries.remove(key);
+        entry = null;
+      } else {
+        entry = e;
+      }
+      if (entry == null) {
+        misses++;
+        return null;
+      }
+      hits++;
+    }
+    if (entry.values != null) {
+      return new ArrayList<T>((List<T>) entry.values);
+    }
+    final List<T> results = (List<T>) load(em, entry.classes, entry.ids);
+    if (results == null) {
+      synchronized (this) {
+        entries.remove(key);
+        hits--;
+        misses++;
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Stores a result.
+   * @param em entity manager the result was read with
+   * @param key query and parameters of the result
+   * @param results the result, of entities or of scalar values
+   * @param ttl time to live, in milliseconds
+   * @param queriedClasses entity classes the query reads besides those of the
+   *          result, e.g. of joined or restricting entities
+   * @return false if the result can not be cached
+   */
+  public boolean put(final EntityManager em, final Object key,
+      final List<?> results, final long ttl, final Class<?>... queriedClasses) {
+    final EntityMetadataRegistry registry =
+      EntityMetadataRegistry.get(em.getEntityManagerFactory());
+    final Set<Class<?>> depends =
+      new LinkedHashSet<Class<?>>(Arrays.asList(queriedClasses));
+    final Class<?>[] classes = new Class<?>[results.size()];
+    final Object[] ids = new Object[results.size()];
+    boolean entities = false, scalars = false;
+    for (int i = 0; i < classes.length; i++) {
+      final Object result = results.get(i);
+      final EntityMetadata md =
+        result == null ? null : registry.getMetadata(result.getClass());
+      if (md != null && md.getIdAttributeName() != null) {
+        classes[i] = md.getEntityClass();
+        ids[i] = registry.getIdentifier(result);
+        depends.add(classes[i]);
+        entities = true;
+      } else if (md != null || result instanceof Object[]) {
+        return false;
+      } else {
+        scalars = true;
+      }
+    }
+    if (entities && scalars) {
+      return false;
+    }
+    if (depends.isEmpty()) {
+      depends.add(Object.class); // unknown: dropped by any change
+    }
+    final Entry entry =
+      new Entry(depends, System.currentTimeMillis() + ttl, entities ? classes
+          : null, entities ? ids : null, entities ? null
+              : new ArrayList<Object>(results));
+    synchronized (this) {
+      entries.put(key, entry);
+    }
+    return true;
+  }
+
+  /**
+   * Drops results depending on the entity class or any of its superclasses.
+   * @param entityClass class of a persisted, updated or removed entity
+   */
+  public synchronized void invalidate(final Class<?> entityClass) {
+    for (final Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+      for (final Class<?> c : it.next().depends) {
+        if (c.isAssignableFrom(entityClass)) {
+          it.remove();
+          break;
+        }
+      }
+    }
+  }
+
+  /** Drops all results; statistics are kept. */
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  /** @return number of reads answered from the cache */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /** @return number of reads not answered from the cache */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /** @return hits over all reads, or 0 before any read */
+  public synchronized double getHitRatio() {
+    return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+  }
+
+  /** @return number of results held, including expired ones */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /** Resets the hit and miss counts. */
+  public synchronized void resetStatistics() {
+    hits = 0;
+    misses = 0;
+  }
+
+  /**
+   * Loads the entities in order, by class and id.
+   * @return the entities, or null if any was not found
+   */
+  private static List<Object> load(final EntityManager em,
+      final Class<?>[] classes, final Object[] ids) {
+    final EntityMetadataRegistry registry =
+      EntityMetadataRegistry.get(em.getEntityManagerFactory());
+    final Map<Class<?>, List<Object>> byClass =
+      new LinkedHashMap<Class<?>, List<Object>>();
+    for (int i = 0; i < classes.length; i++) {
+      List<Object> classIds = byClass.get(classes[i]);
+      if (classIds == null) {
+        classIds = new ArrayList<Object>();
+        byClass.put(classes[i], classIds);
+      }
+      classIds.add(ids[i]);
+    }
+    final Map<List<Object>, Object> loaded = new HashMap<List<Object>, Object>();
+    for (final Map.Entry<Class<?>, List<Object>> e : byClass.entrySet()) {
+      final String idProperty =
+        registry.getMetadata(e.getKey()).getIdAttributeName();
+      final List<Object> classIds = e.getValue();
+      for (int from = 0; from < classIds.size(); from += CHUNK_SIZE) {
+        final List<Object> chunk =
+          classIds.subList(from, Math.min(from + CHUNK_SIZE, classIds.size()));
+        final CriteriaQuery<Object> cq = em.getCriteriaBuilder().createQuery();
+        final Root<?> root = cq.from(e.getKey());
+        cq.select(root).where(root.get(idProperty).in(chunk));
+        for (final Object entity : em.createQuery(cq).getResultList()) {
+          loaded.put(Arrays.<Object> asList(e.getKey(), registry
+              .getIdentifier(entity)), entity);
+        }
+      }
+    }
+    final List<Object> results = new ArrayList<Object>(classes.length);
+    for (int i = 0; i < classes.length; i++) {
+      final Object entity =
+        loaded.get(Arrays.<Object> asList(classes[i], ids[i]));
+      if (entity == null) {
+        return null;
+      }
+      results.add(entity);
+    }
+    return results;
+  }
+
+  private static class Entry {
+    private final Set<Class<?>> depends;
+    private final long expires;
+    private final Class<?>[] classes;
+    private final Object[] ids;
+    private final List<Object> values;
+
+    Entry(final Set<Class<?>> depends, final long expires,
+        final Class<?>[] classes, final Object[] ids, final List<Object> values) {
+      this.depends = depends;
+      this.expires = expires;
+      this.classes = classes;
+      this.ids = ids;
+      this.values = values;
+    }
+  }
+}
@@ -0,0 +1,504 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.databinder.jpa;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Expression;
+import javax.persistence.criteria.From;
+import javax.persistence.criteria.JoinType;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Selection;
+
+import net.databinder.util.CriteriaDefinition;
+
+import org.apache.wicket.util.lang.PropertyResolver;
+
+/**
+ * In-memory trigram index of the text properties of one entity class, for
+ * find-anywhere searches that a <code>LIKE '%term%'</code> could only answer
+ * with a table scan. Every three-character sequence of the lower cased
+ * property values points to the ids of the entities containing it; a search
+ * intersects the ids of the trigrams of its words, checks the candidates
+ * against their indexed text, and restricts the query to
+ * <code>id IN (...)</code>.
+ * <p>
+ * Register an index at startup and fill it with {@link #rebuild(int)}, which
+ * reads ids and property values in pages on several threads. It is then kept
+ * current by {@link SearchIndexListener}, registered as an entity listener:
+ * <pre>
+ * SearchIndex.register(emf, Player.class, "nameFirst", "nameLast").rebuild(4);
+ * </pre>
+ * <code>PredicateSearchAndSort</code> and <code>SearchPanel</code> use an
+ * index registered for their class and properties. Searches whose words are
+ * all shorter than three characters, or that match more than the maximum
+ * number of candidates, are left to LIKE through
+ * {@link #createLikePredicate(CriteriaDefinition, String, String...)}, which
+ * matches exactly as the index does. Changes of rolled back transactions
+ * remain in the index until the entity changes again or the index is
+ * rebuilt.
+ */
+public class SearchIndex {
+
+  /** Default most candidate ids placed in a single search restriction. */
+  public static final int DEFAULT_MAX_CANDIDATES = 1000;
+
+  /** Rows read per query when rebuilding. */
+  private static final int REBUILD_PAGE_SIZE = 5000;
+
+  private static final int GRAM = 3;
+
+  private static final Map<Class<?>, SearchIndex> indexes =
+    new ConcurrentHashMap<Class<?>, SearchIndex>();
+
+  private final EntityManagerFactory factory;
+
+  private final Class<?> entityClass;
+
+  private final String[] properties;
+
+  private final String idProperty;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private Postings postings = new Postings();
+
+  private int maxCandidates = DEFAULT_MAX_CANDIDATES;
+
+  private SearchIndex(final EntityManagerFactory factory,
+      final Class<?> entityClass, final String[] properties) {
+    this.factory = factory;
+    this.entityClass = entityClass;
+    this.properties = properties.clone();
+    final EntityMetadata md =
+      EntityMetadataRegistry.get(factory).getMetadata(entityClass);
+    if (md == null || md.getIdAttributeName() == null) {
+      throw new PersistenceException("Search indexes require an entity with a "
+          + "single id attribute: " + entityClass);
+    }
+    idProperty = md.getIdAttributeName();
+  }
+
+  /**
+   * Creates an empty index and registers it for the class, replacing any
+   * index registered before.
+   * @param factory factory of the entity's persistence unit
+   * @param entityClass entity class
+   * @param properties string properties to index, e.g. <code>nameLast</code>
+   * @return the index, to be filled by {@link #rebuild(int)}
+   */
+  public static SearchIndex register(final EntityManagerFactory factory,
+      final Class<?> entityClass, final String... properties) {
+    final SearchIndex index = new SearchIndex(factory, entityClass, properties);
+    indexes.put(entityClass, index);
+    return index;
+  }
+
+  /** Removes the index of the class, if any. */
+  public static void unregister(final Class<?> entityClass) {
+    indexes.remove(entityClass);
+  }
+
+  /**
+   * @param c entity class, or a subclass of an indexed class
+   * @return the index of the class, or null if none is registered
+   */
+  public static SearchIndex get(final Class<?> c) {
+    for (Class<?> cur = c; cur != null; cur = cur.getSuperclass()) {
+      final SearchIndex index = indexes.get(cur);
+      if (index != null) {
+        return index;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @param c entity class
+   * @param searchProperties properties a search is to match
+   * @return the registered index of the class covering exactly the given
+   *         properties, or null
+   */
+  public static SearchIndex get(final Class<?> c,
+      final String... searchProperties) {
+    final SearchIndex index = get(c);
+    return index != null
+    && new HashSet<String>(Arrays.asList(index.properties))
+    .equals(new HashSet<String>(Arrays.asList(searchProperties))) ? index
+        : null;
+  }
+
+  public Class<?> getEntityClass() {
+    return entityClass;
+  }
+
+  /** @return the indexed properties */
+  public String[] getProperties() {
+    return properties.clone();
+  }
+
+  /**
+   * @param maxCandidates most ids a search may restrict a query to; searches
+   *          matching more are left to LIKE
+   * @return this, for chaining
+   */
+  public SearchIndex setMaxCandidates(final int maxCandidates) {
+    this.maxCandidates = maxCandidates;
+    return this;
+  }
+
+  /** @return number of entities indexed */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return postings.texts.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Indexes a persisted or updated entity, replacing its previous text. */
+  public void update(final Object entity) {
+    final Object id = EntityMetadataRegistry.get(factory).getIdentifier(entity);
+    if (id == null) {
+      return;
+    }
+    final String[] texts = new String[properties.length];
+    for (int i = 0; i < properties.length; i++) {
+      final Object value = PropertyResolver.getValue(properties[i], entity);
+      texts[i] = value == null ? null : value.toString();
+    }
+    lock.writeLock().lock();
+    try {
+      postings.remove(id);
+      postings.add(id, texts);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Drops a removed entity from the index. */
+  public void remove(final Object entity) {
+    final Object id = EntityMetadataRegistry.get(factory).getIdentifier(entity);
+    if (id == null) {
+      return;
+    }
+    lock.writeLock().lock();
+    try {
+      postings.remove(id);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Replaces the index contents with all entities of the class, read as ids
+   * and property values in pages by the given number of threads, each with
+   * an entity manager of its own. Changes made while rebuilding may be lost.
+   * @param threads number of concurrent readers
+   */
+  public void rebuild(final int threads) {
+    final int pages;
+    final EntityManager em = factory.createEntityManager();
+    try {
+      final CriteriaBuilder cb = em.getCriteriaBuilder();
+      final CriteriaQuery<Long> count = cb.createQuery(Long.class);
+      count.select(cb.count(count.from(entityClass)));
+      final long rows = em.createQuery(count).getSingleResult();
+      pages = (int) ((rows + REBUILD_PAGE_SIZE - 1) / REBUILD_PAGE_SIZE);
+    } finally {
+      em.close();
+    }
+
+    final Postings rebuilt = new Postings();
+    final AtomicInteger nextPage = new AtomicInteger();
+    final ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      final List<Future<?>> workers = new ArrayList<Future<?>>();
+      for (int i = 0; i < threads; i++) {
+        workers.add(pool.submit(new Runnable() {
+          public void run() {
+            final EntityManager em = factory.createEntityManager();
+            try {
+              for (int page = nextPage.getAndIncrement(); page < pages; page =
+                nextPage.getAndIncrement()) {
+                final List<Object[]> rows = readPage(em, page);
+                synchronized (rebuilt) {
+                  for (final Object[] row : rows) {
+                    final String[] texts = new String[properties.length];
+                    for (int p = 0; p < texts.length; p++) {
+                      texts[p] = row[p + 1] == null ? null : row[p + 1]
+                          .toString();
+                    }
+                    rebuilt.add(row[0], texts);
+                  }
+                }
+                em.clear();
+              }
+            } finally {
+              em.close();
+            }
+          }
+        }));
+      }
+      for (final Future<?> worker : workers) {
+        worker.get();
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new PersistenceException(e);
+    } catch (final ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new PersistenceException(e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+    lock.writeLock().lock();
+    try {
+      postings = rebuilt;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** @return rows of id and property values, ordered by id */
+  private List<Object[]> readPage(final EntityManager em, final int page) {
+    final CriteriaBuilder cb = em.getCriteriaBuilder();
+    final CriteriaQuery<Object[]> cq = cb.createQuery(Object[].class);
+    final Root<?> root = cq.from(entityClass);
+    final List<Selection<?>> selections = new ArrayList<Selection<?>>();
+    selections.add(root.get(idProperty));
+    // left joined, as update() indexes entities with null associations too
+    final Map<String, From<?, ?>> joins = new HashMap<String, From<?, ?>>();
+    for (final String property : properties) {
+      final String[] names = property.split("\\.");
+      From<?, ?> from = root;
+      String prefix = "";
+      for (int i = 0; i < names.length - 1; i++) {
+        prefix = prefix + names[i] + ".";
+        From<?, ?> join = joins.get(prefix);
+        if (join == null) {
+          join = from.join(names[i], JoinType.LEFT);
+          joins.put(prefix, join);
+        }
+        from = join;
+      }
+      selections.add(from.get(names[names.length - 1]));
+    }
+    cq.multiselect(selections).orderBy(cb.asc(root.get(idProperty)));
+    return em.createQuery(cq).setFirstResult(page * REBUILD_PAGE_SIZE)
+    .setMaxResults(REBUILD_PAGE_SIZE).getResultList();
+  }
+
+  /**
+   * Finds the entities whose indexed properties contain every word of the
+   * text, each in any property, ignoring case.
+   * @param text search text
+   * @return ids of the matching entities, or null if the index can not answer
+   *         (no word of three or more characters, or too many matches)
+   */
+  public Set<Object> search(final String text) {
+    final List<String> words = words(text);
+    String longest = null;
+    for (final String word : words) {
+      if (longest == null || word.length() > longest.length()) {
+        longest = word;
+      }
+    }
+    if (longest == null || longest.length() < GRAM) {
+      return null;
+    }
+    lock.readLock().lock();
+    try {
+      // the rarest trigram of the longest word gives the fewest candidates
+      Set<Object> rarest = null;
+      for (int i = 0; i + GRAM <= longest.length(); i++) {
+        final Set<Object> ids =
+          postings.grams.get(longest.substring(i, i + GRAM));
+        if (ids == null) {
+          return new HashSet<Object>();
+        }
+        if (rarest == null || ids.size() < rarest.size()) {
+          rarest = ids;
+        }
+      }
+      final Set<Object> matches = new HashSet<Object>();
+      for (final Object id : rarest) {
+        if (containsAll(postings.texts.get(id), words)) {
+          matches.add(id);
+          if (matches.size() > maxCandidates) {
+            return null;
+          }
+        }
+      }
+      return matches;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** @return the lower cased, non-empty words of the text */
+  private static List<String> words(final String text) {
+    final List<String> words = new ArrayList<String>();
+    for (final String word : text.toLowerCase().split("\\s+")) {
+      if (word.length() > 0) {
+        words.add(word);
+      }
+    }
+    return words;
+  }
+
+  private static boolean containsAll(final String[] texts,
+      final List<String> words) {
+    for (final String word : words) {
+      boolean found = false;
+      for (int i = 0; i < texts.length && !found; i++) {
+        found = texts[i] != null && texts[i].contains(word);
+      }
+      if (!found) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param cb criteria builder of the query
+   * @param root root of the indexed class in the query
+   * @param text search text
+   * @return restriction of the root's id to the matching entities, or null if
+   *         the index can not answer and LIKE should be used
+   */
+  public Predicate createPredicate(final CriteriaBuilder cb,
+      final Root<?> root, final String text) {
+    final Set<Object> ids = search(text);
+    if (ids == null) {
+      return null;
+    }
+    return ids.isEmpty() ? cb.disjunction() : root.get(idProperty).in(ids);
+  }
+
+  /**
+   * Builds the restriction an index evaluates as LIKE, for when there is no
+   * index or it can not answer: every lower cased word of the text is
+   * contained in the lower cased value of any of the properties. Properties
+   * along associations are left joined.
+   * @param cd criteria definition of the searched class
+   * @param text search text
+   * @param properties searched string properties
+   * @return restriction matching the same entities as {@link #search(String)}
+   */
+  @SuppressWarnings("unchecked")
+  public static Predicate createLikePredicate(final CriteriaDefinition<?> cd,
+      final String text, final String... properties) {
+    final CriteriaBuilder cb = cd.getCriteriaBuilder();
+    final List<Predicate> all = new ArrayList<Predicate>();
+    for (final String word : words(text)) {
+      final Predicate[] any = new Predicate[properties.length];
+      for (int i = 0; i < properties.length; i++) {
+        any[i] =
+          cb.like(cb.lower((Expression<String>) cd.getPath(properties[i])),
+              "%" + escapeLike(word) + "%", '\\');
+      }
+      all.add(cb.or(any));
+    }
+    return cb.and(all.toArray(new Predicate[all.size()]));
+  }
+
+  /** @return the word with LIKE wildcards and the escape character escaped */
+  private static String escapeLike(final String word) {
+    final StringBuilder sb = new StringBuilder(word.length());
+    for (int i = 0; i < word.length(); i++) {
+      final char c = word.charAt(i);
+      if (c == '\\' || c == '%' || c == '_') {
+        sb.append('\\');
+      }
+      sb.append(c);
+    }
+    return sb.toString();
+  }
+
+  /** Trigram postings and the lower cased text of each entity. */
+  private static class Postings {
+    private final Map<String, Set<Object>> grams =
+      new HashMap<String, Set<Object>>();
+
+    private final Map<Object, String[]> texts = new HashMap<Object, String[]>();
+
+    void add(final Object id, final String[] values) {
+      final String[] lower = new String[values.length];
+      for (int i = 0; i < values.length; i++) {
+        if (values[i] == null) {
+          continue;
+        }
+        lower[i] = values[i].toLowerCase();
+        for (int g = 0; g + GRAM <= lower[i].length(); g++) {
+          final String gram = lower[i].substring(g, g + GRAM);
+          Set<Object> ids = grams.get(gram);
+          if (ids == null) {
+            ids = new HashSet<Object>();
+            grams.put(gram, ids);
+          }
+          ids.add(id);
+        }
+      }
+      texts.put(id, lower);
+    }
+
+    void remove(final Object id) {
+      final String[] lower = texts.remove(id);
+      if (lower == null) {
+        return;
+      }
+      for (final String text : lower) {
+        if (text == null) {
+          continue;
+        }
+        for (int g = 0; g + GRAM <= text.length(); g++) {
+          final String gram = text.substring(g, g + GRAM);
+          final Set<Object> ids = grams.get(gram);
+          if (ids != null) {
+            ids.remove(id);
+            if (ids.isEmpty()) {
+              grams.remove(gram);
+            }
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.databinder.jpa;
+
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+
+/**
+ * Entity listener keeping the {@link SearchIndex} of an entity's class
+ * current as entities are persisted, updated or removed. Entities of classes
+ * without an index are ignored, so it may be registered for all entities as a
+ * default listener in <code>META-INF/orm.xml</code>:
+ * <pre>
+ * &lt;persistence-unit-metadata&gt;
+ *   &lt;persistence-unit-defaults&gt;
+ *     &lt;entity-listeners&gt;
+ *       &lt;entity-listener class="net.databinder.jpa.SearchIndexListener"/&gt;
+ *     &lt;/entity-listeners&gt;
+ *   &lt;/persistence-unit-defaults&gt;
+ * &lt;/persistence-unit-metadata&gt;
+ * </pre>
+ * or for indexed entities with <code>@EntityListeners</code>.
+ * @see SearchIndex
+ */
+public class SearchIndexListener {
+
+  @PostPersist
+  @PostUpdate
+  public void entityChanged(final Object entity) {
+    final SearchIndex index = SearchIndex.get(entity.getClass());
+    if (index != null) {
+      index.update(entity);
+    }
+  }
+
+  @PostRemove
+  public void entityRemoved(final Object entity) {
+    final SearchIndex index = SearchIndex.get(entity.getClass());
+    if (index != null) {
+      index.remove(entity);
+    }
+  }
+}
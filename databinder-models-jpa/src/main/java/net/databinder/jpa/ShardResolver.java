@@ -0,0 +1,43 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.databinder.jpa;
+
+import java.util.List;
+
+/**
+ * Maps entities to the persistence units, by factory key, that hold them
+ * when an entity's rows are split over several databases of the same schema.
+ * Install one with {@link Databinder#setShardResolver(ShardResolver)}; models
+ * bound to an id then load from the id's shard, and a
+ * <code>ShardedJPAProvider</code> queries all shards of its entity.
+ * @see HashShardResolver
+ */
+public interface ShardResolver {
+
+  /**
+   * @param entityClass class of the entity
+   * @param id entity identifier
+   * @return factory key of the shard holding the entity, or null if the class
+   *         is not sharded
+   */
+  String getFactoryKey(Class<?> entityClass, Object id);
+
+  /**
+   * @param entityClass class of the entity
+   * @return factory keys of all shards of the class, or null if it is not
+   *         sharded
+   */
+  List<String> getFactoryKeys(Class<?> entityClass);
+}
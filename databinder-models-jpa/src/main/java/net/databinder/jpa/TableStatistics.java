@@ -0,0 +1,133 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.databinder.jpa;
+
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
+
+import org.hibernate.Session;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.dialect.PostgreSQLDialect;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.persister.entity.SingleTableEntityPersister;
+import org.hibernate.persister.entity.UnionSubclassEntityPersister;
+
+/**
+ * Reads estimated row counts of entity tables from the statistics the database
+ * keeps for its query planner. Supported for PostgreSQL and MySQL dialects;
+ * other databases, and tables without statistics, yield null. So do entities
+ * whose table holds other rows than theirs: subclasses sharing a single table,
+ * and classes mapped table per class. The catalog is read through an entity
+ * manager of its own, so that a failed read can not abort the transaction of
+ * the caller's.
+ */
+public class TableStatistics {
+
+  private TableStatistics() {
+  }
+
+  /**
+   * @param em entity manager backed by a Hibernate session; the estimate is
+   *          read on another of its factory
+   * @param entityClass mapped entity class
+   * @return estimated number of rows in the entity's table, or null if unknown
+   */
+  public static Long estimateRows(final EntityManager em,
+      final Class<?> entityClass) {
+    if (!(em.getDelegate() instanceof Session)) {
+      return null;
+    }
+    final SessionFactoryImplementor factory =
+      (SessionFactoryImplementor) ((Session) em.getDelegate())
+      .getSessionFactory();
+    final ClassMetadata metadata = factory.getClassMetadata(entityClass);
+    if (!(metadata instanceof AbstractEntityPersister)
+        || metadata instanceof UnionSubclassEntityPersister) {
+      return null;
+    }
+    final AbstractEntityPersister persister =
+      (AbstractEntityPersister) metadata;
+    if (persister instanceof SingleTableEntityPersister
+        && persister.isInherited()) {
+      return null;
+    }
+    final String table = persister.getTableName();
+    final int dot = table.lastIndexOf('.');
+    final Dialect dialect = factory.getDialect();
+    final String sql;
+    final String name;
+    String schema = null;
+    if (dialect instanceof PostgreSQLDialect) {
+      // unlike a cast to regclass, finding no table is no error
+      name = folded(table.substring(dot + 1));
+      if (dot > 0) {
+        schema = folded(table.substring(0, dot));
+      }
+      sql = "select cast(c.reltuples as bigint) from pg_class c "
+        + "join pg_namespace n on n.oid = c.relnamespace where c.relname = ?1 "
+        + (schema == null ? "and n.nspname = current_schema()"
+            : "and n.nspname = ?2");
+    } else if (dialect instanceof MySQLDialect) {
+      sql = "select table_rows from information_schema.tables "
+        + "where table_schema = database() and table_name = ?1";
+      name = unquoted(table.substring(dot + 1));
+    } else {
+      return null;
+    }
+    final EntityManager catalog =
+      em.getEntityManagerFactory().createEntityManager();
+    try {
+      final Query query =
+        catalog.createNativeQuery(sql).setParameter(1, name);
+      if (schema != null) {
+        query.setParameter(2, schema);
+      }
+      final List<?> rows = query.getResultList();
+      if (rows.isEmpty() || !(rows.get(0) instanceof Number)) {
+        return null;
+      }
+      final long estimate = ((Number) rows.get(0)).longValue();
+      return estimate > 0 ? Long.valueOf(estimate) : null;
+    } catch (final PersistenceException e) {
+      return null;
+    } finally {
+      catalog.close();
+    }
+  }
+
+  /** @return identifier as PostgreSQL stores it, folded unless quoted */
+  private static String folded(final String identifier) {
+    final String name = unquoted(identifier);
+    return name.equals(identifier) ? identifier.toLowerCase() : name;
+  }
+
+  /** @return identifier without its quotes, if quoted */
+  private static String unquoted(final String identifier) {
+    final int last = identifier.length() - 1;
+    if (last > 0) {
+      final char first = identifier.charAt(0);
+      if ((first == '"' || first == '`') && identifier.charAt(last) == first) {
+        return identifier.substring(1, last);
+      }
+    }
+    return identifier;
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.databinder.jpa;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link CountCache} whose counts expire after a fixed time, covering changes
+ * made outside of this application. The least recently used counts are
+ * dropped once the cache holds its maximum number of entries.
+ */
+public class TimedCountCache implements CountCache {
+
+  /** Default time to live, in milliseconds. */
+  public static final long DEFAULT_TTL = 60 * 1000;
+
+  /** Default maximum number of counts held. */
+  public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+  private final long ttl;
+
+  private final Map<Key, Entry> entries;
+
+  /** Cache with the default time to live and size. */
+  public TimedCountCache() {
+    this(DEFAULT_TTL, DEFAULT_MAX_ENTRIES);
+  }
+
+  /**
+   * @param ttl time to live of each count, in milliseconds
+   * @param maxEntries maximum number of counts held
+   */
+  public TimedCountCache(final long ttl, final int maxEntries) {
+    this.ttl = ttl;
+    entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<Key, Entry> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /** @return time to live of each count, in milliseconds */
+  public long getTtl() {
+    return ttl;
+  }
+
+  public synchronized Integer get(final Class<?> entityClass, final Object key) {
+    final Key k = new Key(entityClass, key);
+    final Entry entry = entries.get(k);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.expires < System.currentTimeMillis()) {
+      entries.remove(k);
+      return null;
+    }
+    return entry.count;
+  }
+
+  public synchronized void put(final Class<?> entityClass, final Object key,
+      final int count) {
+    entries.put(new Key(entityClass, key), new Entry(count, System
+        .currentTimeMillis()
+        + ttl));
+  }
+
+  public synchronized void invalidate(final Class<?> entityClass) {
+    for (final Iterator<Key> it = entries.keySet().iterator(); it.hasNext();) {
+      if (it.next().entityClass.isAssignableFrom(entityClass)) {
+        it.remove();
+      }
+    }
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  private static class Entry {
+    private final Integer count;
+    private final long expires;
+
+    Entry(final int count, final long expires) {
+      this.count = Integer.valueOf(count);
+      this.expires = expires;
+    }
+  }
+
+  private static class Key {
+    private final Class<?> entityClass;
+    private final Object key;
+
+    Key(final Class<?> entityClass, final Object key) {
+      this.entityClass = entityClass;
+      this.key = key;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      final Key other = (Key) obj;
+      return entityClass.equals(other.entityClass) && key.equals(other.key);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * entityClass.hashCode() + key.hashCode();
+    }
+  }
+}
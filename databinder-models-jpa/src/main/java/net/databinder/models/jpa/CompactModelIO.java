@@ -0,0 +1,334 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.databinder.models.jpa;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.databinder.jpa.Databinder;
+import net.databinder.jpa.EntityClassMapping;
+import net.databinder.jpa.EntityMetadataRegistry;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.WicketRuntimeException;
+import org.apache.wicket.util.lang.WicketObjects;
+
+/**
+ * Compact encoding shared by the serialized forms of {@link JPAObjectModel}
+ * and {@link JPAListModel}. Entity classes are written as ids from the
+ * factory's {@link EntityMetadataRegistry} along with its
+ * {@link EntityClassMapping}, which the stream holds once and which resolves
+ * the ids by name where the reader's mapping differs; ids of common types as
+ * primitives,
+ * the default factory key as a single byte, and retained unsaved objects field
+ * by field, skipping fields that still hold the value a new instance has.
+ */
+final class CompactModelIO {
+
+  /** Entity class marker: none. */
+  private static final int NO_CLASS = -2;
+  /** Entity class marker: written by name. */
+  private static final int NAMED_CLASS = -1;
+
+  private static final int KEY_DEFAULT = 0, KEY_NULL = 1, KEY_OTHER = 2;
+
+  private static final int ID_NULL = 0, ID_LONG = 1, ID_INT = 2,
+  ID_STRING = 3, ID_OBJECT = 4;
+
+  private static final int RETAINED_FIELDS = 0, RETAINED_OBJECT = 1;
+
+  private static final Map<Class<?>, Field[]> fieldCache =
+    new ConcurrentHashMap<Class<?>, Field[]>();
+
+  private static final Map<Class<?>, Object> prototypes =
+    new ConcurrentHashMap<Class<?>, Object>();
+
+  private CompactModelIO() {
+  }
+
+  static void writeFactoryKey(final ObjectOutput out, final String key)
+  throws IOException {
+    if (Databinder.DEFAULT_PERSISTENCE_UNIT_NAME.equals(key)) {
+      out.writeByte(KEY_DEFAULT);
+    } else if (key == null) {
+      out.writeByte(KEY_NULL);
+    } else {
+      out.writeByte(KEY_OTHER);
+      out.writeUTF(key);
+    }
+  }
+
+  static String readFactoryKey(final ObjectInput in) throws IOException {
+    switch (in.readByte()) {
+    case KEY_DEFAULT:
+      return Databinder.DEFAULT_PERSISTENCE_UNIT_NAME;
+    case KEY_NULL:
+      return null;
+    default:
+      return in.readUTF().intern();
+    }
+  }
+
+  /**
+   * @return registry for the keyed factory, or null when no JPA application
+   *         is available to this thread (e.g. during container session
+   *         replication)
+   */
+  static EntityMetadataRegistry registry(final String factoryKey) {
+    if (!Application.exists()) {
+      return null;
+    }
+    try {
+      return Databinder.getEntityMetadataRegistry(factoryKey);
+    } catch (final WicketRuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Writes a class id and the registry's class mapping when the class is
+   * mapped by the keyed factory, otherwise the class name. Proxy subclasses
+   * are written as their entity class.
+   */
+  static void writeEntityClass(final ObjectOutput out, final String factoryKey,
+      final Class<?> c) throws IOException {
+    if (c == null) {
+      writeVarInt(out, NO_CLASS);
+      return;
+    }
+    final EntityMetadataRegistry registry = registry(factoryKey);
+    final int classId = registry == null ? -1 : registry.getClassId(c);
+    if (classId >= 0) {
+      writeVarInt(out, classId);
+      out.writeObject(registry.getClassMapping());
+    } else {
+      writeVarInt(out, NAMED_CLASS);
+      out.writeUTF(c.getName());
+    }
+  }
+
+  /**
+   * Reads a class written by writeEntityClass(). A class id is resolved by the
+   * keyed factory's registry if its class mapping is the one written, and
+   * otherwise by the name the written mapping gives it, for instance when the
+   * registry is not available or the mappings changed since writing.
+   * @return the class, or null if none was written
+   */
+  static Class<?> readEntityClass(final ObjectInput in, final String factoryKey)
+  throws IOException, ClassNotFoundException {
+    final int classId = readVarInt(in);
+    if (classId == NO_CLASS) {
+      return null;
+    } else if (classId == NAMED_CLASS) {
+      return WicketObjects.resolveClass(in.readUTF());
+    }
+    final EntityClassMapping mapping = (EntityClassMapping) in.readObject();
+    final EntityMetadataRegistry registry = registry(factoryKey);
+    if (registry != null
+        && registry.getClassMapping().getFingerprint() == mapping
+        .getFingerprint()) {
+      final Class<?> c = registry.getEntityClass(classId);
+      if (c != null) {
+        return c;
+      }
+    }
+    final String name = mapping.getClassName(classId);
+    if (name == null) {
+      throw new WicketRuntimeException("Unknown entity class id " + classId
+          + " for factory " + factoryKey);
+    }
+    return WicketObjects.resolveClass(name);
+  }
+
+  static void writeId(final ObjectOutput out, final Object id)
+  throws IOException {
+    if (id == null) {
+      out.writeByte(ID_NULL);
+    } else if (id instanceof Long) {
+      out.writeByte(ID_LONG);
+      writeVarLong(out, ((Long) id).longValue());
+    } else if (id instanceof Integer) {
+      out.writeByte(ID_INT);
+      writeVarInt(out, ((Integer) id).intValue());
+    } else if (id instanceof String) {
+      out.writeByte(ID_STRING);
+      out.writeUTF((String) id);
+    } else {
+      out.writeByte(ID_OBJECT);
+      out.writeObject(id);
+    }
+  }
+
+  static Object readId(final ObjectInput in) throws IOException,
+  ClassNotFoundException {
+    switch (in.readByte()) {
+    case ID_NULL:
+      return null;
+    case ID_LONG:
+      return Long.valueOf(readVarLong(in));
+    case ID_INT:
+      return Integer.valueOf(readVarInt(in));
+    case ID_STRING:
+      return in.readUTF();
+    default:
+      return in.readObject();
+    }
+  }
+
+  /**
+   * Writes an unsaved object field by field when its class can be
+   * instantiated, otherwise as a whole.
+   */
+  static void writeRetained(final ObjectOutput out, final Object o)
+  throws IOException {
+    final Object prototype = prototype(o.getClass());
+    if (prototype == null) {
+      out.writeByte(RETAINED_OBJECT);
+      out.writeObject(o);
+      return;
+    }
+    out.writeByte(RETAINED_FIELDS);
+    out.writeUTF(o.getClass().getName());
+    final Field[] fields = fields(o.getClass());
+    try {
+      for (int i = 0; i < fields.length; i++) {
+        final Object value = fields[i].get(o);
+        final Object initial = fields[i].get(prototype);
+        if (value == null ? initial != null : !value.equals(initial)) {
+          writeVarInt(out, i + 1);
+          out.writeObject(value);
+        }
+      }
+    } catch (final IllegalAccessException e) {
+      throw new WicketRuntimeException(e);
+    }
+    writeVarInt(out, 0);
+  }
+
+  static Object readRetained(final ObjectInput in) throws IOException,
+  ClassNotFoundException {
+    if (in.readByte() == RETAINED_OBJECT) {
+      return in.readObject();
+    }
+    final Class<?> c = WicketObjects.resolveClass(in.readUTF());
+    final Object o = newInstance(c);
+    final Field[] fields = fields(c);
+    try {
+      for (int index = readVarInt(in); index != 0; index = readVarInt(in)) {
+        fields[index - 1].set(o, in.readObject());
+      }
+    } catch (final IllegalAccessException e) {
+      throw new WicketRuntimeException(e);
+    }
+    return o;
+  }
+
+  /** @return a new instance for comparing field values, or null */
+  private static Object prototype(final Class<?> c) {
+    Object prototype = prototypes.get(c);
+    if (prototype == null) {
+      try {
+        prototype = newInstance(c);
+      } catch (final WicketRuntimeException e) {
+        return null;
+      }
+      prototypes.put(c, prototype);
+    }
+    return prototype;
+  }
+
+  private static Object newInstance(final Class<?> c) {
+    try {
+      final Constructor<?> constructor = c.getDeclaredConstructor();
+      constructor.setAccessible(true);
+      return constructor.newInstance();
+    } catch (final Exception e) {
+      throw new WicketRuntimeException("Unable to instantiate " + c, e);
+    }
+  }
+
+  /**
+   * @return serializable instance fields of the class and its superclasses,
+   *         in a stable order
+   */
+  private static Field[] fields(final Class<?> c) {
+    Field[] fields = fieldCache.get(c);
+    if (fields == null) {
+      final List<Field> list = new ArrayList<Field>();
+      for (Class<?> cur = c; cur != null && cur != Object.class; cur =
+        cur.getSuperclass()) {
+        final List<Field> declared = new ArrayList<Field>();
+        for (final Field f : cur.getDeclaredFields()) {
+          final int mod = f.getModifiers();
+          if (!Modifier.isStatic(mod) && !Modifier.isTransient(mod)) {
+            f.setAccessible(true);
+            declared.add(f);
+          }
+        }
+        Collections.sort(declared, new Comparator<Field>() {
+          public int compare(final Field a, final Field b) {
+            return a.getName().compareTo(b.getName());
+          }
+        });
+        list.addAll(0, declared);
+      }
+      fields = list.toArray(new Field[list.size()]);
+      fieldCache.put(c, fields);
+    }
+    return fields;
+  }
+
+  static void writeVarInt(final ObjectOutput out, final int value)
+  throws IOException {
+    writeVarLong(out, value);
+  }
+
+  static int readVarInt(final ObjectInput in) throws IOException {
+    return (int) readVarLong(in);
+  }
+
+  /** Writes a zig-zag encoded variable length long. */
+  private static void writeVarLong(final ObjectOutput out, final long value)
+  throws IOException {
+    long v = (value << 1) ^ (value >> 63);
+    while ((v & ~0x7FL) != 0) {
+      out.writeByte((int) ((v & 0x7F) | 0x80));
+      v >>>= 7;
+    }
+    out.writeByte((int) v);
+  }
+
+  private static long readVarLong(final ObjectInput in) throws IOException {
+    long v = 0;
+    int shift = 0;
+    int b;
+    do {
+      b = in.readByte() & 0xFF;
+      v |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return (v >>> 1) ^ -(v & 1);
+  }
+}
@@ -0,0 +1,33 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.databinder.models.jpa;
+
+/**
+ * Implemented by predicate builders whose restrictions can be described by a
+ * value. {@link JPAProvider} remembers counts and pages under it for a
+ * request and, when enabled, shares them between users through the count and
+ * result caches, so the key must cover every predicate the builder adds.
+ * Builders that add predicates depending on anything not reflected in the key
+ * must return null.
+ * @see net.databinder.jpa.CountCache
+ */
+public interface CountKeySource {
+
+  /**
+   * @return key that is equal for equal restrictions and differs otherwise,
+   *         independent of ordering; or null if counts should not be cached
+   */
+  Object getCountKey();
+}
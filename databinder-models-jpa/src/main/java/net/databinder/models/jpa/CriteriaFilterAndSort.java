@@ -28,21 +28,18 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 
 import net.databinder.util.JPAUtil;
+import net.databinder.util.QueryDefinition.Operator;
 
 import org.apache.wicket.Application;
 import org.apache.wicket.Session;
 import org.apache.wicket.extensions.markup.html.repeater.data.table.filter.IFilterStateLocator;
 import org.apache.wicket.util.convert.ConversionException;
-import org.apache.wicket.util.lang.PropertyResolver;
-import org.apache.wicket.util.lang.PropertyResolverConverter;
 
 /**
  * An OrderingCriteriaBuilder implementation that can be wired to a
@@ -66,10 +63,6 @@ IFilterStateLocator<T> {
 
   private static final long serialVersionUID = 1L;
 
-  // whitespace, a qualifier, a number surrounded by whitespace
-  private final Pattern pattern = Pattern
-  .compile("^(\\s+)?([><]=?)(\\s+)?(.*)(\\s+)?");
-
   private Map<String, String> filterMap = new HashMap<String, String>();
 
   private final Object bean;
@@ -97,9 +90,10 @@ IFilterStateLocator<T> {
       }
 
       final String prop = processProperty(cb, property);
-      final Class<?> clazz = PropertyResolver.getPropertyClass(property, bean);
+      final FilterHandler handler = FilterHandler.get(bean, property);
+      final Class<?> clazz = handler.getType();
 
-      if (String.class.isAssignableFrom(clazz)) {
+      if (handler.getKind() == FilterHandler.Kind.STRING) {
         final String[] items = value.split("\\s+");
         for (final String item : items) {
           final Predicate p =
@@ -107,26 +101,25 @@ IFilterStateLocator<T> {
                 item);
           crit.add(p);
         }
-      } else if (Number.class.isAssignableFrom(clazz)) {
+      } else if (handler.getKind() == FilterHandler.Kind.NUMBER) {
         try {
-          final Matcher matcher = pattern.matcher(value);
-          if (matcher.matches()) {
-            final String qualifier = matcher.group(2);
-            value = matcher.group(4);
+          final Operator qualifier = FilterHandler.qualifier(value);
+          if (qualifier != null) {
+            value = FilterHandler.operand(value);
             final Number num = convertToNumber(value, clazz);
-            if (">".equals(qualifier)) {
+            if (qualifier == Operator.GREATER_THAN) {
               final Predicate p =
                 cb.gt(propertyNumberExpressionToPath(root, prop), num);
               crit.add(p);
-            } else if ("<".equals(qualifier)) {
+            } else if (qualifier == Operator.LESS_THAN) {
               final Predicate p =
                 cb.lt(propertyNumberExpressionToPath(root, prop), num);
               crit.add(p);
-            } else if (">=".equals(qualifier)) {
+            } else if (qualifier == Operator.GREATER_THAN_OR_EQUAL) {
               final Predicate p =
                 cb.ge(propertyNumberExpressionToPath(root, prop), num);
               crit.add(p);
-            } else if ("<=".equals(qualifier)) {
+            } else if (qualifier == Operator.LESS_THAN_OR_EQUAL) {
               final Predicate p =
                 cb.le(propertyNumberExpressionToPath(root, prop), num);
               crit.add(p);
@@ -140,7 +133,7 @@ IFilterStateLocator<T> {
         } catch (final ConversionException ex) {
           // ignore filter in this case
         }
-      } else if (Boolean.class.isAssignableFrom(clazz)) {
+      } else if (handler.getKind() == FilterHandler.Kind.BOOLEAN) {
         final Predicate p =
           cb.equal(propertyBooleanExpressionToPath(root, prop),
               Boolean.parseBoolean(value));
@@ -152,9 +145,8 @@ IFilterStateLocator<T> {
   }
 
   protected Number convertToNumber(final String value, final Class clazz) {
-    return (Number) new PropertyResolverConverter(Application.get()
-        .getConverterLocator(), Session.get().getLocale())
-    .convert(value, clazz);
+    return (Number) Application.get().getConverterLocator().getConverter(clazz)
+    .convertToObject(value, Session.get().getLocale());
   }
 
   public T getFilterState() {
@@ -0,0 +1,225 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.databinder.models.jpa;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.FetchParent;
+import javax.persistence.criteria.JoinType;
+import javax.persistence.criteria.Root;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.ManagedType;
+import javax.persistence.metamodel.Metamodel;
+import javax.persistence.metamodel.SingularAttribute;
+import javax.persistence.metamodel.Type;
+
+import net.databinder.jpa.EntityMetadataRegistry;
+
+import org.apache.wicket.extensions.markup.html.repeater.data.table.AbstractColumn;
+import org.apache.wicket.extensions.markup.html.repeater.data.table.IColumn;
+import org.apache.wicket.extensions.markup.html.repeater.data.table.PropertyColumn;
+
+/**
+ * Associations to load together with a page of entities, derived from the
+ * property paths that will be read from them, typically those of a DataTable's
+ * columns. Every to-one association along a path (<code>customer</code> and
+ * <code>customer.address</code> for <code>customer.address.city</code>) is
+ * fetch joined in one query for the whole page; a collection along a path is
+ * initialized for the whole page with one further query, and the path is not
+ * followed beyond it. A page then costs a constant number of queries however
+ * many rows and associations it has.
+ * @see JPAProvider#setFetchColumns(List)
+ */
+public class FetchPlan<T> {
+
+  private final Class<T> entityClass;
+
+  private final List<String> toOnePaths;
+
+  private final List<String> collectionPaths;
+
+  private FetchPlan(final Class<T> entityClass, final List<String> toOnePaths,
+      final List<String> collectionPaths) {
+    this.entityClass = entityClass;
+    this.toOnePaths = toOnePaths;
+    this.collectionPaths = collectionPaths;
+  }
+
+  /**
+   * @param metamodel metamodel of the entity's persistence unit
+   * @param entityClass entity the paths start from
+   * @param paths property paths read from the entities; paths or segments
+   *          that are not mapped are ignored
+   * @return plan fetching the associations along the paths
+   */
+  public static <T> FetchPlan<T> forPaths(final Metamodel metamodel,
+      final Class<T> entityClass, final String... paths) {
+    final Set<String> toOne = new LinkedHashSet<String>();
+    final Set<String> collections = new LinkedHashSet<String>();
+    for (final String path : paths) {
+      ManagedType<?> type = managedType(metamodel, entityClass);
+      String prefix = "";
+      for (final String name : path.split("\\.")) {
+        if (type == null) {
+          break;
+        }
+        final Attribute<?, ?> attribute;
+        try {
+          attribute = type.getAttribute(name);
+        } catch (final IllegalArgumentException e) {
+          break;
+        }
+        prefix = prefix.length() == 0 ? name : prefix + "." + name;
+        if (attribute.isCollection()) {
+          if (attribute.isAssociation()) {
+            collections.add(prefix);
+          }
+          break;
+        } else if (!attribute.isAssociation()) {
+          break;
+        }
+        toOne.add(prefix);
+        final Type<?> target = ((SingularAttribute<?, ?>) attribute).getType();
+        type =
+          target instanceof ManagedType<?> ? (ManagedType<?>) target : null;
+      }
+    }
+    return new FetchPlan<T>(entityClass, new ArrayList<String>(toOne),
+        new ArrayList<String>(collections));
+  }
+
+  private static ManagedType<?> managedType(final Metamodel metamodel,
+      final Class<?> cls) {
+    try {
+      return metamodel.managedType(cls);
+    } catch (final IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @param columns table columns; the property expression of each
+   *          PropertyColumn is used, or else the sort property
+   * @return the columns' property paths
+   */
+  public static String[] columnPaths(final List<? extends IColumn<?>> columns) {
+    final Set<String> paths = new LinkedHashSet<String>();
+    for (final IColumn<?> column : columns) {
+      if (column instanceof PropertyColumn<?>) {
+        paths.add(((PropertyColumn<?>) column).getPropertyExpression());
+      } else if (column instanceof AbstractColumn<?>
+          && ((AbstractColumn<?>) column).getSortProperty() != null) {
+        paths.add(((AbstractColumn<?>) column).getSortProperty());
+      }
+    }
+    return paths.toArray(new String[paths.size()]);
+  }
+
+  /** @return paths of the to-one associations fetch joined */
+  public List<String> getToOnePaths() {
+    return toOnePaths;
+  }
+
+  /** @return paths of the collections initialized per page */
+  public List<String> getCollectionPaths() {
+    return collectionPaths;
+  }
+
+  /** @return true if the plan fetches nothing */
+  public boolean isEmpty() {
+    return toOnePaths.isEmpty() && collectionPaths.isEmpty();
+  }
+
+  /**
+   * Adds left fetch joins for the to-one paths to a query of the entity.
+   * @param root root of the query
+   */
+  public void fetchToOne(final Root<T> root) {
+    fetch(root, toOnePaths);
+  }
+
+  /**
+   * Loads the planned associations of already read entities: one query fetch
+   * joining all to-one paths, unless skipped, and one per collection path.
+   * Entities are matched by id, so the given instances are the ones
+   * initialized.
+   * @param em entity manager the entities are attached to
+   * @param entities page of entities
+   * @param toOne false if the to-one paths were already fetched with the page
+   */
+  public void load(final EntityManager em, final Collection<T> entities,
+      final boolean toOne) {
+    if (entities.isEmpty() || isEmpty()) {
+      return;
+    }
+    final EntityMetadataRegistry registry =
+      EntityMetadataRegistry.get(em.getEntityManagerFactory());
+    final String idProperty =
+      registry.getMetadata(entityClass) == null ? null : registry.getMetadata(
+          entityClass).getIdAttributeName();
+    if (idProperty == null) {
+      return; // composite ids: associations load lazily as before
+    }
+    final List<Object> ids = new ArrayList<Object>(entities.size());
+    for (final T entity : entities) {
+      ids.add(registry.getIdentifier(entity));
+    }
+    if (toOne && !toOnePaths.isEmpty()) {
+      query(em, idProperty, ids, toOnePaths);
+    }
+    for (final String path : collectionPaths) {
+      final List<String> single = new ArrayList<String>(1);
+      single.add(path);
+      query(em, idProperty, ids, single);
+    }
+  }
+
+  private void query(final EntityManager em, final String idProperty,
+      final List<Object> ids, final List<String> paths) {
+    final CriteriaQuery<T> query =
+      em.getCriteriaBuilder().createQuery(entityClass);
+    final Root<T> root = query.from(entityClass);
+    fetch(root, paths);
+    query.select(root).distinct(true).where(root.get(idProperty).in(ids));
+    em.createQuery(query).getResultList();
+  }
+
+  /** Left fetch joins each path, sharing joins of common prefixes. */
+  private static void fetch(final Root<?> root, final List<String> paths) {
+    final Map<String, FetchParent<?, ?>> fetches =
+      new HashMap<String, FetchParent<?, ?>>();
+    for (final String path : paths) {
+      FetchParent<?, ?> parent = root;
+      String prefix = "";
+      for (final String name : path.split("\\.")) {
+        prefix = prefix + name + ".";
+        FetchParent<?, ?> fetch = fetches.get(prefix);
+        if (fetch == null) {
+          fetch = parent.fetch(name, JoinType.LEFT);
+          fetches.put(prefix, fetch);
+        }
+        parent = fetch;
+      }
+    }
+  }
+}
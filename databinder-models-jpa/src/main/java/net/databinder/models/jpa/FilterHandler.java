@@ -0,0 +1,199 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.databinder.models.jpa;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.databinder.util.JPAUtil;
+import net.databinder.util.QueryDefinition;
+import net.databinder.util.QueryDefinition.Operator;
+
+import org.apache.wicket.util.convert.ConversionException;
+import org.apache.wicket.util.lang.PropertyResolver;
+
+/**
+ * Filter of one property, resolved once per bean class and property and
+ * shared by all filter builders, requests and sessions. The property's type
+ * is looked up on first use only; filter input is then parsed by scanning,
+ * without regular expressions or split arrays.
+ * @see PredicateFilterAndSort
+ * @see CriteriaFilterAndSort
+ */
+final class FilterHandler {
+
+  /** How a property's filter input is interpreted. */
+  enum Kind {
+    /** Each word matched with a lower cased like. */
+    STRING,
+    /** A number, optionally preceded by &gt;, &gt;=, &lt; or &lt;=. */
+    NUMBER,
+    /** true or false. */
+    BOOLEAN,
+    /** Not filterable; input is ignored. */
+    NONE
+  }
+
+  /** Handlers by bean class, then property. */
+  private static final ConcurrentMap<Class<?>,
+  ConcurrentMap<String, FilterHandler>> handlers =
+    new ConcurrentHashMap<Class<?>, ConcurrentMap<String, FilterHandler>>();
+
+  private final String property;
+
+  private final Class<?> type;
+
+  private final Kind kind;
+
+  private FilterHandler(final String property, final Class<?> type) {
+    this.property = property;
+    this.type = type;
+    if (type == null) {
+      kind = Kind.NONE;
+    } else if (String.class.isAssignableFrom(type)) {
+      kind = Kind.STRING;
+    } else if (Number.class.isAssignableFrom(type)) {
+      kind = Kind.NUMBER;
+    } else if (Boolean.class.isAssignableFrom(type)) {
+      kind = Kind.BOOLEAN;
+    } else {
+      kind = Kind.NONE;
+    }
+  }
+
+  /**
+   * @param bean filter bean the property is resolved on
+   * @param property filtered property expression
+   * @return the shared handler of the bean's class and property
+   */
+  static FilterHandler get(final Object bean, final String property) {
+    ConcurrentMap<String, FilterHandler> byProperty =
+      handlers.get(bean.getClass());
+    if (byProperty == null) {
+      byProperty = new ConcurrentHashMap<String, FilterHandler>();
+      final ConcurrentMap<String, FilterHandler> raced =
+        handlers.putIfAbsent(bean.getClass(), byProperty);
+      if (raced != null) {
+        byProperty = raced;
+      }
+    }
+    FilterHandler handler = byProperty.get(property);
+    if (handler == null) {
+      handler =
+        new FilterHandler(property, PropertyResolver.getPropertyClass(
+            property, bean));
+      byProperty.put(property, handler);
+    }
+    return handler;
+  }
+
+  String getProperty() {
+    return property;
+  }
+
+  Class<?> getType() {
+    return type;
+  }
+
+  Kind getKind() {
+    return kind;
+  }
+
+  /**
+   * Adds the restrictions of a filter value.
+   * @param qd definition to add to
+   * @param value filter input, not null
+   * @param builder converts numbers
+   * @return definition with the restrictions, or qd if the value does not
+   *         apply
+   */
+  <T> QueryDefinition<T> apply(final QueryDefinition<T> qd,
+      final String value, final PredicateFilterAndSort<?> builder) {
+    switch (kind) {
+    case STRING:
+      QueryDefinition<T> words = qd;
+      int end = 0;
+      while (end < value.length()) {
+        final int start = skipWhitespace(value, end);
+        end = start;
+        while (end < value.length()
+            && !Character.isWhitespace(value.charAt(end))) {
+          end++;
+        }
+        if (end > start) {
+          words =
+            words.where(property, Operator.LOWER_LIKE, JPAUtil
+                .likePattern(value.substring(start, end)));
+        }
+      }
+      return words;
+    case NUMBER:
+      final Operator qualifier = qualifier(value);
+      try {
+        final Number num =
+          builder.convertToNumber(qualifier == null ? value : operand(value),
+              type);
+        return num == null ? qd : qd.where(property,
+            qualifier == null ? Operator.EQUAL : qualifier, num);
+      } catch (final ConversionException ex) {
+        return qd; // ignore filter in this case
+      }
+    case BOOLEAN:
+      return qd.where(property, Operator.EQUAL, Boolean.valueOf(value));
+    default:
+      return qd;
+    }
+  }
+
+  /**
+   * @param value number filter input
+   * @return the comparison of a leading &gt;, &gt;=, &lt; or &lt;=, or null
+   */
+  static Operator qualifier(final String value) {
+    final int i = skipWhitespace(value, 0);
+    if (i == value.length()) {
+      return null;
+    }
+    final boolean orEqual =
+      i + 1 < value.length() && value.charAt(i + 1) == '=';
+    switch (value.charAt(i)) {
+    case '>':
+      return orEqual ? Operator.GREATER_THAN_OR_EQUAL : Operator.GREATER_THAN;
+    case '<':
+      return orEqual ? Operator.LESS_THAN_OR_EQUAL : Operator.LESS_THAN;
+    default:
+      return null;
+    }
+  }
+
+  /**
+   * @param value number filter input with a qualifier
+   * @return the input after the qualifier, trimmed
+   */
+  static String operand(final String value) {
+    final int i = skipWhitespace(value, 0) + 1;
+    final boolean orEqual = i < value.length() && value.charAt(i) == '=';
+    return value.substring(orEqual ? i + 1 : i).trim();
+  }
+
+  /** @return index of the first non-whitespace character from start on */
+  private static int skipWhitespace(final String value, final int start) {
+    int i = start;
+    while (i < value.length() && Character.isWhitespace(value.charAt(i))) {
+      i++;
+    }
+    return i;
+  }
+}
@@ -0,0 +1,256 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.databinder.models.jpa;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+
+import net.databinder.jpa.EntityMetadata;
+import net.databinder.jpa.EntityMetadataRegistry;
+
+import org.apache.wicket.Component;
+import org.apache.wicket.MarkupContainer;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.model.IChainingModel;
+import org.apache.wicket.model.IModel;
+import org.apache.wicket.model.IWrapModel;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.util.visit.IVisit;
+import org.apache.wicket.util.visit.IVisitor;
+
+/**
+ * Request-scoped loader for {@link JPAObjectModel}s bound to an entity id.
+ * Models register their factory key, entity class and id before they are
+ * loaded; the first load of any registered entity class then fetches every
+ * pending id of that class with one <code>WHERE id IN (...)</code> query per
+ * chunk, instead of one query per model. The loader lives in the current
+ * {@link RequestCycle}'s metadata and is discarded with it; fetched entities
+ * are handed to the request's {@link JPAIdentityMap}.
+ * @see JPAObjectModel#load()
+ * @see BatchLoadingListener
+ */
+public class JPABatchLoader {
+
+  /** Default number of ids placed in a single IN restriction. */
+  public static final int DEFAULT_CHUNK_SIZE = 100;
+
+  private static final MetaDataKey<JPABatchLoader> LOADER =
+    new MetaDataKey<JPABatchLoader>() {
+      private static final long serialVersionUID = 1L;
+    };
+
+  /** Ids registered but not yet fetched, by factory key and class. */
+  private final Map<ClassKey, Set<Object>> pending =
+    new HashMap<ClassKey, Set<Object>>();
+
+  private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+  /**
+   * @return loader for the current request, or null if called outside of a
+   *         request cycle
+   */
+  public static JPABatchLoader get() {
+    final RequestCycle cycle = RequestCycle.get();
+    if (cycle == null) {
+      return null;
+    }
+    JPABatchLoader loader = cycle.getMetaData(LOADER);
+    if (loader == null) {
+      loader = new JPABatchLoader();
+      cycle.setMetaData(LOADER, loader);
+    }
+    return loader;
+  }
+
+  /**
+   * Registers the JPAObjectModel behind the given model, unwrapping compound
+   * and chaining models as needed. Models that are unbound, already attached
+   * or bound to a query are ignored.
+   * @param model any model, possibly wrapping a JPAObjectModel
+   */
+  public static void register(final IModel<?> model) {
+    final JPAObjectModel<?> jpaModel = unwrap(model);
+    if (jpaModel != null && !jpaModel.isAttached()
+        && jpaModel.getObjectId() != null) {
+      final JPABatchLoader loader = get();
+      if (loader != null) {
+        loader.register(jpaModel.getShardKey(), jpaModel.getEntityClass(),
+            jpaModel.getObjectId());
+      }
+    }
+  }
+
+  /**
+   * Registers the models of the given component and all of its children.
+   * @param root component whose hierarchy is to be registered
+   */
+  public static void registerModels(final Component root) {
+    register(root.getDefaultModel());
+    if (root instanceof MarkupContainer) {
+      ((MarkupContainer) root).visitChildren(new IVisitor<Component, Void>() {
+        public void component(final Component component,
+            final IVisit<Void> visit) {
+          register(component.getDefaultModel());
+        }
+      });
+    }
+  }
+
+  private static JPAObjectModel<?> unwrap(final IModel<?> model) {
+    IModel<?> cur = model;
+    while (cur != null) {
+      if (cur instanceof JPAObjectModel<?>) {
+        return (JPAObjectModel<?>) cur;
+      } else if (cur instanceof IWrapModel<?>) {
+        cur = ((IWrapModel<?>) cur).getWrappedModel();
+      } else if (cur instanceof IChainingModel<?>) {
+        cur = ((IChainingModel<?>) cur).getChainedModel();
+      } else {
+        return null;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Sets the maximum number of ids fetched by a single query.
+   * @param chunkSize ids per IN restriction
+   * @return this, for chaining
+   */
+  public JPABatchLoader setChunkSize(final int chunkSize) {
+    this.chunkSize = chunkSize;
+    return this;
+  }
+
+  /**
+   * Marks an entity id to be fetched with the next batch for its class.
+   * @param factoryKey entity manager factory key
+   * @param entityClass class of the entity
+   * @param id entity identifier
+   */
+  public void register(final String factoryKey, final Class<?> entityClass,
+      final Object id) {
+    final JPAIdentityMap identityMap = JPAIdentityMap.get();
+    if (identityMap != null
+        && identityMap.contains(factoryKey, entityClass, id)) {
+      return;
+    }
+    final ClassKey key = new ClassKey(factoryKey, entityClass);
+    Set<Object> ids = pending.get(key);
+    if (ids == null) {
+      ids = new LinkedHashSet<Object>();
+      pending.put(key, ids);
+    }
+    ids.add(id);
+  }
+
+  /**
+   * Returns the entity with the given id, fetching it together with all other
+   * pending ids of its class if it has not been fetched yet.
+   * @param em entity manager to query
+   * @param factoryKey entity manager factory key
+   * @param entityClass class of the entity
+   * @param id entity identifier
+   * @return the entity, or null if it was not batched (the caller should then
+   *         load it individually)
+   */
+  public <T> T load(final EntityManager em, final String factoryKey,
+      final Class<T> entityClass, final Object id) {
+    final JPAIdentityMap identityMap = JPAIdentityMap.get();
+    if (identityMap == null) {
+      return null;
+    }
+    final ClassKey key = new ClassKey(factoryKey, entityClass);
+    final Set<Object> ids = pending.get(key);
+    if (ids != null && ids.contains(id) && ids.size() > 1) {
+      pending.remove(key);
+      fetch(em, identityMap, factoryKey, entityClass, ids);
+    }
+    return identityMap.get(factoryKey, entityClass, id);
+  }
+
+  /** Fetches the given ids in chunks of at most chunkSize. */
+  private void fetch(final EntityManager em,
+      final JPAIdentityMap identityMap, final String factoryKey,
+      final Class<?> entityClass, final Set<Object> ids) {
+    final EntityMetadataRegistry registry =
+      EntityMetadataRegistry.get(em.getEntityManagerFactory());
+    final EntityMetadata md = registry.getMetadata(entityClass);
+    if (md == null || md.getIdAttribute() == null) {
+      return; // unmapped classes and composite ids are loaded individually
+    }
+    final Class<?> idType = md.getIdAttribute().getJavaType();
+    final List<Object> batch = new ArrayList<Object>(ids.size());
+    for (final Object id : ids) {
+      if (idType.isInstance(id)) {
+        batch.add(id);
+      }
+    }
+
+    final CriteriaBuilder cb = em.getCriteriaBuilder();
+    final Iterator<Object> it = batch.iterator();
+    while (it.hasNext()) {
+      final List<Object> chunk = new ArrayList<Object>(chunkSize);
+      while (it.hasNext() && chunk.size() < chunkSize) {
+        chunk.add(it.next());
+      }
+      final CriteriaQuery<Object> cq = cb.createQuery();
+      final Root<?> root = cq.from(md.getEntityClass());
+      cq.select(root).where(root.get(md.getIdAttributeName()).in(chunk));
+      for (final Object entity : em.createQuery(cq).getResultList()) {
+        identityMap.put(factoryKey, entityClass, registry
+            .getIdentifier(entity), em, entity);
+      }
+    }
+  }
+
+  /** Factory key and entity class pair. */
+  private static class ClassKey {
+    private final String factoryKey;
+    private final Class<?> entityClass;
+
+    ClassKey(final String factoryKey, final Class<?> entityClass) {
+      this.factoryKey = factoryKey;
+      this.entityClass = entityClass;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (!(obj instanceof ClassKey)) {
+        return false;
+      }
+      final ClassKey other = (ClassKey) obj;
+      return entityClass.equals(other.entityClass)
+      && (factoryKey == null ? other.factoryKey == null : factoryKey
+          .equals(other.factoryKey));
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * entityClass.hashCode()
+      + (factoryKey == null ? 0 : factoryKey.hashCode());
+    }
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.databinder.models.jpa;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.request.cycle.RequestCycle;
+
+/**
+ * Request-scoped identity map of entities loaded through
+ * {@link JPAObjectModel}s, keyed by factory key, entity class and id. Models
+ * bound to the same entity share one instance per request instead of each
+ * going to the {@link EntityManager}. An entry is only returned while the
+ * entity manager that loaded it is open and still contains it, so entities
+ * detached by a rollback or a closed entity manager are never handed out.
+ * @see JPAObjectModel#load()
+ */
+public class JPAIdentityMap {
+
+  private static final MetaDataKey<JPAIdentityMap> IDENTITY_MAP =
+    new MetaDataKey<JPAIdentityMap>() {
+      private static final long serialVersionUID = 1L;
+    };
+
+  private final Map<Key, Entry> entries = new HashMap<Key, Entry>();
+
+  /**
+   * @return identity map for the current request, or null if called outside
+   *         of a request cycle
+   */
+  public static JPAIdentityMap get() {
+    final RequestCycle cycle = RequestCycle.get();
+    if (cycle == null) {
+      return null;
+    }
+    JPAIdentityMap map = cycle.getMetaData(IDENTITY_MAP);
+    if (map == null) {
+      map = new JPAIdentityMap();
+      cycle.setMetaData(IDENTITY_MAP, map);
+    }
+    return map;
+  }
+
+  /**
+   * @param factoryKey entity manager factory key
+   * @param entityClass class of the entity
+   * @param id entity identifier
+   * @return the managed entity, or null if not known to this request
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T get(final String factoryKey, final Class<T> entityClass,
+      final Object id) {
+    final Key key = new Key(factoryKey, entityClass, id);
+    final Entry entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.em.isOpen() && entry.em.contains(entry.entity)) {
+      return (T) entry.entity;
+    }
+    entries.remove(key);
+    return null;
+  }
+
+  /**
+   * @return true if a usable entity is held for the key
+   */
+  public boolean contains(final String factoryKey, final Class<?> entityClass,
+      final Object id) {
+    return get(factoryKey, entityClass, id) != null;
+  }
+
+  /**
+   * Records an entity managed by the given entity manager.
+   * @param factoryKey entity manager factory key
+   * @param entityClass class of the entity
+   * @param id entity identifier
+   * @param em entity manager the entity belongs to
+   * @param entity the entity or reference
+   */
+  public void put(final String factoryKey, final Class<?> entityClass,
+      final Object id, final EntityManager em, final Object entity) {
+    entries.put(new Key(factoryKey, entityClass, id), new Entry(em, entity));
+  }
+
+  /** Forgets the entity for the given key, if any. */
+  public void remove(final String factoryKey, final Class<?> entityClass,
+      final Object id) {
+    entries.remove(new Key(factoryKey, entityClass, id));
+  }
+
+  /** Forgets all entities. */
+  public void clear() {
+    entries.clear();
+  }
+
+  /** Entity and the entity manager it was loaded with. */
+  private static class Entry {
+    private final EntityManager em;
+    private final Object entity;
+
+    Entry(final EntityManager em, final Object entity) {
+      this.em = em;
+      this.entity = entity;
+    }
+  }
+
+  /** Factory key, entity class and id triple. */
+  private static class Key {
+    private final String factoryKey;
+    private final Class<?> entityClass;
+    private final Object id;
+
+    Key(final String factoryKey, final Class<?> entityClass, final Object id) {
+      this.factoryKey = factoryKey;
+      this.entityClass = entityClass;
+      this.id = id;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      final Key other = (Key) obj;
+      return id.equals(other.id)
+      && entityClass.equals(other.entityClass)
+      && (factoryKey == null ? other.factoryKey == null : factoryKey
+          .equals(other.factoryKey));
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = id.hashCode();
+      hash = 31 * hash + entityClass.hashCode();
+      return 31 * hash + (factoryKey == null ? 0 : factoryKey.hashCode());
+    }
+  }
+}
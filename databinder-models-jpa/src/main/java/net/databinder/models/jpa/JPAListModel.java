@@ -14,10 +14,15 @@
 
 package net.databinder.models.jpa;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import javax.persistence.EntityManager;
+import javax.persistence.Parameter;
 import javax.persistence.Query;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
@@ -26,6 +31,8 @@ import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 
 import net.databinder.jpa.Databinder;
+import net.databinder.jpa.EntityMetadataRegistry;
+import net.databinder.jpa.QueryResultCache;
 import net.databinder.util.CriteriaDefinition;
 
 import org.apache.wicket.model.LoadableDetachableModel;
@@ -34,16 +41,33 @@ import org.apache.wicket.model.LoadableDetachableModel;
  * Model for a List generated by a JPA query. This read-only model can be
  * used to fill ListModel and PropertyListModel components with rows from a
  * database.
+ * <p>
+ * Cacheable models keep their results in
+ * {@link Databinder#getQueryResultCache()} under the query string and bound parameters (or the entity class, or the
+ * predicate builder's {@link CountKeySource} key), so lists of reference data
+ * are not queried again by every request.
  * @author Nathan Hamblen
  */
 public class JPAListModel<T> extends LoadableDetachableModel<List<T>> {
   /** */
   private static final long serialVersionUID = 1L;
-  private QueryBuilder queryBuilder;
-  private Class<T> entityClass;
-  private PredicateBuilder<?> predicateBuilder;
 
-  private String factoryKey = Databinder.DEFAULT_PERSISTENCE_UNIT_NAME;
+  /** Time to live of results of cacheable models, in milliseconds. */
+  public static final long DEFAULT_CACHE_TTL = 5 * 60 * 1000;
+
+  private long cacheTtl;
+
+  private Class<?>[] queriedClasses = new Class<?>[0];
+
+  private boolean readFromReplica;
+
+  /* Fields are written in a compact form by writeObject(). */
+  private transient QueryBuilder queryBuilder;
+  private transient Class<T> entityClass;
+  private transient PredicateBuilder<?> predicateBuilder;
+
+  private transient String factoryKey =
+    Databinder.DEFAULT_PERSISTENCE_UNIT_NAME;
 
   /**
    * Contructor for a simple query.
@@ -56,17 +80,13 @@ public class JPAListModel<T> extends LoadableDetachableModel<List<T>> {
   /**
    * Contructor for a simple query.
    * @param queryString query with no parameters
-   * @param cacheable sets query to cacheable if true
+   * @param cacheable keeps results for {@link #DEFAULT_CACHE_TTL} if true
    */
   public JPAListModel(final String queryString, final boolean cacheable) {
-    this(queryString, new QueryBinder() {
-      private static final long serialVersionUID = 1L;
-
-      public void bind(final Query query) {
-        // TODO
-        // query.setCacheable(cacheable);
-      }
-    });
+    this(queryString);
+    if (cacheable) {
+      setCacheable(DEFAULT_CACHE_TTL);
+    }
   }
 
   /**
@@ -121,37 +141,169 @@ public class JPAListModel<T> extends LoadableDetachableModel<List<T>> {
     return this;
   }
 
+  /** @return true if the list is read from the factory's replica */
+  public boolean isReadFromReplica() {
+    return readFromReplica;
+  }
+
+  /**
+   * Reads the list from the factory's replica while the request has not
+   * written to the primary.
+   * @param readFromReplica true to read from the replica
+   * @return this, for chaining
+   * @see Databinder#setReplicaKey(String, String)
+   */
+  public JPAListModel<T> setReadFromReplica(final boolean readFromReplica) {
+    this.readFromReplica = readFromReplica;
+    return this;
+  }
+
+  private EntityManager getEntityManager() {
+    return readFromReplica ? Databinder.getReadEntityManager(factoryKey)
+        : Databinder.getEntityManager(factoryKey);
+  }
+
+  /**
+   * Keeps results in the query result cache. Only results of query strings,
+   * of entity classes and of predicate builders that are a
+   * {@link CountKeySource} can be cached.
+   * @param ttl time to live of results, in milliseconds, or 0 to not cache
+   * @param queriedClasses entity classes the query reads besides those in its
+   *          results; results are dropped when these change, too
+   * @return this, for chaining
+   */
+  public JPAListModel<T> setCacheable(final long ttl,
+      final Class<?>... queriedClasses) {
+    cacheTtl = ttl;
+    this.queriedClasses = queriedClasses.clone();
+    return this;
+  }
+
+  /** @return time to live of cached results, or 0 if not cached */
+  public long getCacheTtl() {
+    return cacheTtl;
+  }
+
   /**
    * Load the object List through JPA, binding query parameters if available.
+   * Cacheable results are read from the cache when present.
    */
   @SuppressWarnings("unchecked")
   @Override
   protected List<T> load() {
     if (queryBuilder != null) {
-      final EntityManager em = Databinder.getEntityManager(factoryKey);
-      return queryBuilder.build(em).getResultList();
+      final EntityManager em = getEntityManager();
+      final Query query = queryBuilder.build(em);
+      final Object key =
+        cacheTtl > 0 && queryBuilder instanceof QueryBinderBuilder ? Arrays
+            .asList(factoryKey, ((QueryBinderBuilder) queryBuilder)
+                .getQueryString(), parameterKey(em, query)) : null;
+      final List<T> cached = getCached(em, key);
+      return cached != null ? cached : putCached(em, key, query
+          .getResultList());
     }
 
     if (predicateBuilder != null) {
+      final Object countKey =
+        cacheTtl > 0 && predicateBuilder instanceof CountKeySource
+        ? ((CountKeySource) predicateBuilder).getCountKey() : null;
+      final Object key =
+        countKey == null ? null : Arrays.asList(factoryKey, getEntityClass()
+            .getName(), countKey);
+      final EntityManager em = getEntityManager();
+      final List<T> cached = getCached(em, key);
+      if (cached != null) {
+        return cached;
+      }
       final List<Predicate> predicates = new ArrayList<Predicate>();
       predicateBuilder.build(predicates);
       final CriteriaDefinition<?> cd = predicateBuilder.getCriteriaDefinition();
+      cd.setReadFromReplica(readFromReplica);
       cd.addAllPredicates(predicates);
       cd.selectAll();
       cd.perform();
-      return (List<T>) cd.getTypeQuery().getResultList();
+      return putCached(em, key, (List<T>) cd.getTypeQuery().getResultList());
     }
 
-    final EntityManager em = Databinder.getEntityManager(factoryKey);
+    final Class<T> entityClass = getEntityClass();
+    final EntityManager em = getEntityManager();
+    final Object key =
+      cacheTtl > 0 ? Arrays.asList(factoryKey, entityClass.getName()) : null;
+    final List<T> cached = getCached(em, key);
+    if (cached != null) {
+      return cached;
+    }
     final CriteriaBuilder cb = em.getCriteriaBuilder();
     final CriteriaQuery<T> cq = cb.createQuery(entityClass);
     final Root<T> root = cq.from(entityClass);
     cq.select(root);
     final TypedQuery<T> query = em.createQuery(cq);
-    return query.getResultList();
+    return putCached(em, key, query.getResultList());
+  }
+
+  /** @return cached results, or null if key is null or nothing is cached */
+  private List<T> getCached(final EntityManager em, final Object key) {
+    return key == null ? null : Databinder.getQueryResultCache().<T> get(em,
+        key);
+  }
+
+  /** @return the results, after caching them if key is not null */
+  private List<T> putCached(final EntityManager em, final Object key,
+      final List<T> results) {
+    if (key != null) {
+      Databinder.getQueryResultCache().put(em, key, results, cacheTtl,
+          queriedClasses);
+    }
+    return results;
+  }
+
+  /**
+   * @return the bound parameter values by name or position; entities are
+   *         represented by class and id
+   * @see QueryResultCache
+   */
+  private static List<Object> parameterKey(final EntityManager em,
+      final Query query) {
+    final EntityMetadataRegistry registry =
+      EntityMetadataRegistry.get(em.getEntityManagerFactory());
+    final List<Object> key = new ArrayList<Object>();
+    for (final Parameter<?> p : query.getParameters()) {
+      key.add(p.getName() != null ? p.getName() : p.getPosition());
+      Object value = query.isBound(p) ? query.getParameterValue(p) : null;
+      if (value != null && registry.getMetadata(value.getClass()) != null) {
+        value =
+          Arrays.asList(registry.getMetadata(value.getClass()).getEntityClass(),
+              registry.getIdentifier(value));
+      }
+      key.add(value);
+    }
+    return key;
   }
 
   public Class<T> getEntityClass() {
     return entityClass;
   }
+
+  /**
+   * Writes the factory key, the entity class as a registry class id, and the
+   * query or predicate builder if present.
+   * @see CompactModelIO
+   */
+  private void writeObject(final ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    CompactModelIO.writeFactoryKey(out, factoryKey);
+    CompactModelIO.writeEntityClass(out, factoryKey, entityClass);
+    out.writeObject(queryBuilder);
+    out.writeObject(predicateBuilder);
+  }
+
+  @SuppressWarnings("unchecked")
+  private void readObject(final ObjectInputStream in) throws IOException,
+  ClassNotFoundException {
+    in.defaultReadObject();
+    factoryKey = CompactModelIO.readFactoryKey(in);
+    entityClass = (Class<T>) CompactModelIO.readEntityClass(in, factoryKey);
+    queryBuilder = (QueryBuilder) in.readObject();
+    predicateBuilder = (PredicateBuilder<?>) in.readObject();
+  }
 }
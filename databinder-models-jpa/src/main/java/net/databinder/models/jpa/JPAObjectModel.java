@@ -14,19 +14,18 @@
 
 package net.databinder.models.jpa;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
 
 import javax.persistence.EntityManager;
-import javax.persistence.EntityManagerFactory;
-import javax.persistence.PersistenceException;
-import javax.persistence.PersistenceUnitUtil;
-import javax.persistence.Version;
 import javax.persistence.criteria.Predicate;
 
 import net.databinder.jpa.Databinder;
+import net.databinder.jpa.EntityMetadata;
+import net.databinder.jpa.EntityMetadataRegistry;
 import net.databinder.models.BindingModel;
 import net.databinder.models.LoadableWritableModel;
 
@@ -46,17 +45,22 @@ BindingModel<T> {
 
   private static final long serialVersionUID = 1L;
 
-  private Class<T> entityClass;
-  private Object objectId;
-  private QueryBuilder queryBuilder;
-  private PredicateBuilder<?> criteriaBuilder;
+  /* Fields are written in a compact form by writeObject(). */
+  private transient Class<T> entityClass;
+  private transient Object objectId;
+  private transient QueryBuilder queryBuilder;
+  private transient PredicateBuilder<?> criteriaBuilder;
 
   /** May store unsaved objects between requests. */
-  private T retainedObject;
+  private transient T retainedObject;
   /** Enable retaining unsaved objects between requests. */
-  private boolean retainUnsaved = true;
+  private transient boolean retainUnsaved = true;
 
-  private String factoryKey = Databinder.DEFAULT_PERSISTENCE_UNIT_NAME;
+  private transient String factoryKey =
+    Databinder.DEFAULT_PERSISTENCE_UNIT_NAME;
+
+  private static final int BOUND_ID = 1, BOUND_QUERY = 2, BOUND_CRITERIA = 4,
+  RETAINED = 8, RETAIN_UNSAVED = 16;
 
   /**
    * Create a model bound to the given class and entity id. If nothing matches
@@ -67,6 +71,7 @@ BindingModel<T> {
   public JPAObjectModel(final Class<T> objectClass, final Serializable entityId) {
     this.entityClass = objectClass;
     this.objectId = entityId;
+    JPABatchLoader.register(this);
   }
 
   /**
@@ -166,11 +171,12 @@ BindingModel<T> {
         obj = (T) ((IChainingModel<?>) object).getObject();
       }
       entityClass = (Class<T>) obj.getClass();
-      final EntityManager em = Databinder.getEntityManager(factoryKey);
+      final EntityManager em =
+        Databinder.getEntityManager(Databinder.getShardKey(factoryKey,
+            entityClass, shardIdentifier(obj)));
       if (em.contains(obj)) {
-        objectId =
-          em.getEntityManagerFactory().getPersistenceUnitUtil()
-          .getIdentifier(obj);
+        objectId = getMetadataRegistry().getIdentifier(obj);
+        rememberIdentity(em, obj);
       } else if (retainUnsaved) {
         retainedObject = obj;
       }
@@ -179,11 +185,37 @@ BindingModel<T> {
 
   }
 
+  /** @return class of the model object, or null if not yet known */
+  public Class<T> getEntityClass() {
+    return entityClass;
+  }
+
+  /** @return id the model is bound to, or null if not bound by id */
+  Object getObjectId() {
+    return objectId;
+  }
+
+  /**
+   * @return factory key of the shard holding the bound id, or the model's
+   *         factory key if the entity is not sharded
+   * @see Databinder#getShardResolver()
+   */
+  String getShardKey() {
+    return Databinder.getShardKey(factoryKey, getEntityClass(), objectId);
+  }
+
+  /** @return identifier of the model object, or null if it has none */
   public Object getIdentifier() {
-    final EntityManager em = Databinder.getEntityManager();
-    final EntityManagerFactory emf = em.getEntityManagerFactory();
-    final PersistenceUnitUtil pu = emf.getPersistenceUnitUtil();
-    return pu.getIdentifier(getObject());
+    if (objectId != null) {
+      return objectId;
+    }
+    final Object o = getObject();
+    return o == null ? null : getMetadataRegistry().getIdentifier(o);
+  }
+
+  /** @return entity metadata for this model's factory */
+  protected EntityMetadataRegistry getMetadataRegistry() {
+    return Databinder.getEntityMetadataRegistry(factoryKey);
   }
 
   /**
@@ -194,6 +226,7 @@ BindingModel<T> {
   @SuppressWarnings("unchecked")
   @Override
   protected T load() {
+    final Class<T> entityClass = getEntityClass();
     if (entityClass == null && queryBuilder == null) {
       return null; // can't load without one of these
     }
@@ -221,9 +254,27 @@ BindingModel<T> {
           "Unable to instantiate object. Does it have a default constructor?",
           e);
     }
-    final EntityManager em = Databinder.getEntityManager(factoryKey);
+    final String key = getShardKey();
+    final EntityManager em = Databinder.getEntityManager(key);
     if (objectId != null) {
-      return em.getReference(entityClass, objectId);
+      final JPAIdentityMap identityMap = JPAIdentityMap.get();
+      if (identityMap != null) {
+        final T known = identityMap.get(key, entityClass, objectId);
+        if (known != null) {
+          return known;
+        }
+      }
+      final JPABatchLoader loader = JPABatchLoader.get();
+      if (loader != null) {
+        loader.register(key, entityClass, objectId);
+        final T batched = loader.load(em, key, entityClass, objectId);
+        if (batched != null) {
+          return batched;
+        }
+      }
+      final T reference = em.getReference(entityClass, objectId);
+      rememberIdentity(em, reference);
+      return reference;
     }
 
     if (criteriaBuilder != null) {
@@ -236,74 +287,164 @@ BindingModel<T> {
     return (T) queryBuilder.build(em).getSingleResult();
   }
 
+  /**
+   * Writes the model compactly: a flag byte, the factory key, the entity class
+   * as a registry class id, the id as a primitive where possible, and any
+   * retained unsaved object field by field.
+   * @see CompactModelIO
+   */
+  private void writeObject(final ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    int flags = retainUnsaved ? RETAIN_UNSAVED : 0;
+    if (objectId != null) {
+      flags |= BOUND_ID;
+    }
+    if (queryBuilder != null) {
+      flags |= BOUND_QUERY;
+    }
+    if (criteriaBuilder != null) {
+      flags |= BOUND_CRITERIA;
+    }
+    if (retainedObject != null) {
+      flags |= RETAINED;
+    }
+    out.writeByte(flags);
+    CompactModelIO.writeFactoryKey(out, factoryKey);
+    CompactModelIO.writeEntityClass(out, factoryKey, entityClass);
+    if (objectId != null) {
+      CompactModelIO.writeId(out, objectId);
+    }
+    if (queryBuilder != null) {
+      out.writeObject(queryBuilder);
+    }
+    if (criteriaBuilder != null) {
+      out.writeObject(criteriaBuilder);
+    }
+    if (retainedObject != null) {
+      CompactModelIO.writeRetained(out, retainedObject);
+    }
+  }
+
+  /**
+   * Reads the form written by writeObject() and registers a model bound by id
+   * with the current request's batch loader.
+   */
+  @SuppressWarnings("unchecked")
+  private void readObject(final ObjectInputStream in) throws IOException,
+  ClassNotFoundException {
+    in.defaultReadObject();
+    final int flags = in.readByte();
+    retainUnsaved = (flags & RETAIN_UNSAVED) != 0;
+    factoryKey = CompactModelIO.readFactoryKey(in);
+    entityClass = (Class<T>) CompactModelIO.readEntityClass(in, factoryKey);
+    if ((flags & BOUND_ID) != 0) {
+      objectId = CompactModelIO.readId(in);
+    }
+    if ((flags & BOUND_QUERY) != 0) {
+      queryBuilder = (QueryBuilder) in.readObject();
+    }
+    if ((flags & BOUND_CRITERIA) != 0) {
+      criteriaBuilder = (PredicateBuilder<?>) in.readObject();
+    }
+    if ((flags & RETAINED) != 0) {
+      retainedObject = (T) CompactModelIO.readRetained(in);
+    }
+    JPABatchLoader.register(this);
+  }
+
   /**
    * Checks if the model is retaining an object this has since become a
    * persistent entity. If so, the ID is fetched and the reference discarded.
    */
   public void checkBinding() {
     if (!isBound() && retainedObject != null) {
-      final EntityManager em = Databinder.getEntityManager(factoryKey);
+      final EntityManager em =
+        Databinder.getEntityManager(Databinder.getShardKey(factoryKey,
+            getEntityClass(), shardIdentifier(retainedObject)));
 
       if (em.contains(retainedObject)) {
-        objectId =
-          em.getEntityManagerFactory().getPersistenceUnitUtil()
-          .getIdentifier(retainedObject);
+        objectId = getMetadataRegistry().getIdentifier(retainedObject);
+        rememberIdentity(em, retainedObject);
         retainedObject = null;
       }
     }
   }
 
   /**
-   * Uses version annotation to find version for this Model's object.
+   * @return id of a mapped entity for resolving its shard, or null if
+   *         sharding is off or the object is not a mapped entity
+   */
+  private Object shardIdentifier(final Object obj) {
+    if (Databinder.getShardResolver() == null
+        || getMetadataRegistry().getMetadata(obj.getClass()) == null) {
+      return null;
+    }
+    return getMetadataRegistry().getIdentifier(obj);
+  }
+
+  /** Records the now bound entity in the request's identity map. */
+  private void rememberIdentity(final EntityManager em, final Object entity) {
+    final JPAIdentityMap identityMap = JPAIdentityMap.get();
+    if (identityMap != null) {
+      identityMap.put(getShardKey(), getEntityClass(), objectId, em, entity);
+    }
+  }
+
+  /**
+   * Uses the version attribute mapped for this Model's object.
    * @return Persistent storage version number if available, null otherwise
    */
   public Serializable getVersion() {
     final Object o = getObject();
-
-    if (o != null) {
-      @SuppressWarnings("unchecked")
-      final Class<T> c = (Class<T>) o.getClass();
-      try {
-        for (final Method m : c.getMethods()) {
-          if (m.isAnnotationPresent(Version.class)
-              && m.getParameterTypes().length == 0
-              && m.getReturnType() instanceof Serializable) {
-            return (Serializable) m.invoke(o, new Object[] {});
-          }
-        }
-        for (final Field f : c.getDeclaredFields()) {
-          if (f.isAnnotationPresent(Version.class)
-              && f.getType() instanceof Serializable) {
-            f.setAccessible(true);
-            return (Serializable) f.get(o);
-          }
-        }
-      } catch (final Exception e) {
-        throw new PersistenceException(e);
-      }
-    }
-    return null;
+    return o == null ? null : getMetadataRegistry().getVersion(o);
   }
 
   /**
-   * Compares contained objects if present, otherwise calls
-   * super-implementation.
+   * Models of persisted entities are equal when their ids, factory keys and
+   * the roots of their entity class hierarchies are, whether bound by id,
+   * bound by a query or holding the entity; models bound by id compare
+   * without loading. Other models compare contained objects if present, or
+   * call the super-implementation.
    */
   @Override
   public boolean equals(final Object obj) {
+    if (obj == this) {
+      return true;
+    }
+    if (!(obj instanceof JPAObjectModel<?>)) {
+      return super.equals(obj);
+    }
+    final JPAObjectModel<?> other = (JPAObjectModel<?>) obj;
+    final Object id = getKeyId(), otherId = other.getKeyId();
+    if (id != null || otherId != null) {
+      return id != null && id.equals(otherId) && sameFactory(other)
+      && getRootClass() == other.getRootClass();
+    }
     final Object target = getObject();
-    if (target != null && obj instanceof JPAObjectModel) {
-      return target.equals(((JPAObjectModel<T>) obj).getObject());
+    if (target != null) {
+      return target.equals(other.getObject());
     }
     return super.equals(obj);
   }
 
+  private boolean sameFactory(final JPAObjectModel<?> other) {
+    return factoryKey == null ? other.factoryKey == null : factoryKey
+        .equals(other.factoryKey);
+  }
+
   /**
-   * @return hash of contained object if present, otherwise from
-   *         super-implementation.
+   * @return hash of the id and the root of the entity class hierarchy for a
+   *         persisted entity, of the contained object if present, otherwise
+   *         from super-implementation.
    */
   @Override
   public int hashCode() {
+    final Object id = getKeyId();
+    if (id != null) {
+      final Class<?> root = getRootClass();
+      return 31 * (root == null ? 0 : root.getName().hashCode())
+      + id.hashCode();
+    }
     final Object target = getObject();
     if (target == null) {
       return super.hashCode();
@@ -311,6 +452,49 @@ BindingModel<T> {
     return target.hashCode();
   }
 
+  /**
+   * @return the bound id, or that of the entity a query loaded; null if
+   *         there is none, the object is retained unsaved or is not an entity
+   */
+  private Object getKeyId() {
+    if (objectId != null) {
+      return objectId;
+    }
+    if (retainedObject != null) {
+      return null;
+    }
+    final Object target = getObject();
+    if (target == null
+        || getMetadataRegistry().getMetadata(target.getClass()) == null) {
+      return null;
+    }
+    return getMetadataRegistry().getIdentifier(target);
+  }
+
+  /**
+   * @return the topmost mapped class above the bound or contained entity's
+   *         class, which all entities sharing its ids belong to; or null if
+   *         there is no entity
+   */
+  private Class<?> getRootClass() {
+    final Object target = objectId != null ? null : getObject();
+    final Class<?> c = target != null ? target.getClass() : getEntityClass();
+    final EntityMetadataRegistry registry = getMetadataRegistry();
+    final EntityMetadata md = c == null ? null : registry.getMetadata(c);
+    if (md == null) {
+      return c;
+    }
+    Class<?> root = md.getEntityClass();
+    for (Class<?> sup = root.getSuperclass(); sup != null; sup =
+      sup.getSuperclass()) {
+      final EntityMetadata inherited = registry.getMetadata(sup);
+      if (inherited != null) {
+        root = inherited.getEntityClass();
+      }
+    }
+    return root;
+  }
+
   /**
    * Disassociates this object from any persistent object, but retains the class
    * for constructing a blank copy if requested.
@@ -0,0 +1,111 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.databinder.models.jpa;
+
+import java.io.Serializable;
+
+import net.databinder.jpa.Databinder;
+
+import org.apache.wicket.model.AbstractReadOnlyModel;
+
+/**
+ * Read-only model of a {@link ProjectionRow}. The row is held as is, so
+ * rendering never touches the entity manager. When a row is acted on (edited,
+ * deleted, linked to) {@link #getEntityModel()} supplies a
+ * {@link JPAObjectModel} bound to the row's entity, loading it only then.
+ * Projection rows are immutable; edit through {@link #getEntityModel()}.
+ * @see JPAProjectionProvider
+ */
+public class JPAProjectionModel<T> extends AbstractReadOnlyModel<ProjectionRow> {
+
+  private static final long serialVersionUID = 1L;
+
+  private final ProjectionRow row;
+
+  private final Class<T> entityClass;
+
+  private String factoryKey = Databinder.DEFAULT_PERSISTENCE_UNIT_NAME;
+
+  private JPAObjectModel<T> entityModel;
+
+  /**
+   * @param entityClass class the row was projected from
+   * @param row projected values
+   */
+  public JPAProjectionModel(final Class<T> entityClass, final ProjectionRow row) {
+    this.entityClass = entityClass;
+    this.row = row;
+  }
+
+  /** @return entity manager factory key */
+  public String getFactoryKey() {
+    return factoryKey;
+  }
+
+  /**
+   * Set a factory key other than the default.
+   * @param key EntityManager factory key
+   * @return this, for chaining
+   */
+  public JPAProjectionModel<T> setFactoryKey(final String key) {
+    factoryKey = key;
+    return this;
+  }
+
+  @Override
+  public ProjectionRow getObject() {
+    return row;
+  }
+
+  /**
+   * @return model of the full entity behind this row, created on first call;
+   *         the entity itself is loaded when the model is first read
+   */
+  public JPAObjectModel<T> getEntityModel() {
+    if (entityModel == null) {
+      entityModel =
+        new JPAObjectModel<T>(entityClass, (Serializable) row.getId())
+        .setFactoryKey(factoryKey);
+    }
+    return entityModel;
+  }
+
+  /** @return the full entity behind this row */
+  public T getEntity() {
+    return getEntityModel().getObject();
+  }
+
+  @Override
+  public void detach() {
+    if (entityModel != null) {
+      entityModel.detach();
+    }
+  }
+
+  @Override
+  public boolean equals(final Object obj) {
+    if (!(obj instanceof JPAProjectionModel<?>)) {
+      return false;
+    }
+    final JPAProjectionModel<?> other = (JPAProjectionModel<?>) obj;
+    return entityClass.equals(other.entityClass) && row.getId() != null
+    && row.getId().equals(other.row.getId());
+  }
+
+  @Override
+  public int hashCode() {
+    return row.getId() == null ? 0 : row.getId().hashCode();
+  }
+}
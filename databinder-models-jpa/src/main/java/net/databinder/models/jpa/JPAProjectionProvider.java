@@ -0,0 +1,179 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.databinder.models.jpa;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.Predicate;
+
+import net.databinder.jpa.Databinder;
+import net.databinder.jpa.EntityMetadata;
+import net.databinder.models.PropertyDataProvider;
+import net.databinder.util.CriteriaDefinition;
+
+import org.apache.wicket.WicketRuntimeException;
+import org.apache.wicket.extensions.markup.html.repeater.data.sort.ISortState;
+import org.apache.wicket.extensions.markup.html.repeater.data.sort.ISortStateLocator;
+import org.apache.wicket.extensions.markup.html.repeater.data.table.ISortableDataProvider;
+import org.apache.wicket.extensions.markup.html.repeater.util.SingleSortState;
+import org.apache.wicket.model.IModel;
+
+/**
+ * Provides {@link ProjectionRow}s holding only the named property paths of
+ * each entity, plus its id, instead of whole entities. Filtering and sorting
+ * come from the same {@link OrderingPredicateBuilder} a {@link JPAProvider}
+ * would use, and the count is that of a JPAProvider over the same criteria.
+ * Columns read values from the row by path (rows are Maps, so PropertyColumn
+ * works with nested paths); {@link JPAProjectionModel#getEntityModel()} loads
+ * the full entity when a row is acted on. Associations along dotted paths are
+ * left joined, so rows with a null association are kept.
+ * @see CriteriaDefinition#selectProjection(String...)
+ */
+public class JPAProjectionProvider<T> extends PropertyDataProvider<ProjectionRow>
+implements ISortableDataProvider<ProjectionRow> {
+
+  private static final long serialVersionUID = 1L;
+
+  private final CriteriaDefinition<T> criteriaDefinition;
+
+  private final OrderingPredicateBuilder<T> orderingPredicateBuilder;
+
+  private final String[] paths;
+
+  private final JPAProvider<T> countProvider;
+
+  private String factoryKey = Databinder.DEFAULT_PERSISTENCE_UNIT_NAME;
+
+  private ISortState sortState = new SingleSortState();
+
+  /**
+   * @param criteriaDefinition criteria of the entity class
+   * @param orderingPredicateBuilder filter and sort builder, or null for all
+   *          entities in no particular order
+   * @param paths property paths to select, e.g. <code>name</code> or
+   *          <code>customer.address.city</code>
+   */
+  public JPAProjectionProvider(final CriteriaDefinition<T> criteriaDefinition,
+      final OrderingPredicateBuilder<T> orderingPredicateBuilder,
+      final String... paths) {
+    this.criteriaDefinition = criteriaDefinition;
+    this.orderingPredicateBuilder = orderingPredicateBuilder;
+    this.paths = paths.clone();
+    countProvider =
+      orderingPredicateBuilder == null ? new JPAProvider<T>(
+          criteriaDefinition) : new JPAProvider<T>(criteriaDefinition,
+              orderingPredicateBuilder);
+    setWrapWithPropertyModel(false);
+  }
+
+  /** @return entity manager factory key */
+  public String getFactoryKey() {
+    return factoryKey;
+  }
+
+  /**
+   * Set a factory key other than the default.
+   * @param key EntityManager factory key
+   * @return this, for chaining
+   */
+  public JPAProjectionProvider<T> setFactoryKey(final String key) {
+    factoryKey = key;
+    countProvider.setFactoryKey(key);
+    return this;
+  }
+
+  /** @return the selected property paths */
+  public String[] getPaths() {
+    return paths.clone();
+  }
+
+  public Iterator<ProjectionRow> iterator(final int first, final int count) {
+    final CriteriaDefinition<T> cd = getCriteriaDefinition();
+    final List<Predicate> external = new ArrayList<Predicate>(cd.getPredicates());
+    final List<Object> results;
+    try {
+      final List<Predicate> predicates = new ArrayList<Predicate>();
+      if (orderingPredicateBuilder != null) {
+        orderingPredicateBuilder.buildOrdered(predicates);
+      }
+      cd.mergePredicates(predicates);
+      final String[] selected = new String[paths.length + 1];
+      selected[0] = getIdProperty();
+      System.arraycopy(paths, 0, selected, 1, paths.length);
+      cd.selectProjection(selected);
+      cd.perform();
+
+      final TypedQuery<Object> query = cd.getProjectionQuery();
+      query.setFirstResult(first);
+      query.setMaxResults(count);
+      results = query.getResultList();
+    } finally {
+      cd.setPredicates(external);
+    }
+    final List<ProjectionRow> rows = new ArrayList<ProjectionRow>(results.size());
+    for (final Object result : results) {
+      final Object[] tuple = (Object[]) result;
+      final Object[] values = new Object[paths.length];
+      System.arraycopy(tuple, 1, values, 0, paths.length);
+      rows.add(new ProjectionRow(tuple[0], paths, values));
+    }
+    return rows.iterator();
+  }
+
+  public int size() {
+    return countProvider.size();
+  }
+
+  @Override
+  protected IModel<ProjectionRow> dataModel(final ProjectionRow object) {
+    return new JPAProjectionModel<T>(criteriaDefinition.getEntityClass(), object)
+    .setFactoryKey(factoryKey);
+  }
+
+  public ISortState getSortState() {
+    return orderingPredicateBuilder instanceof ISortStateLocator
+    ? ((ISortStateLocator) orderingPredicateBuilder).getSortState()
+        : sortState;
+  }
+
+  /**
+   * Set the sort state used when the ordering builder is not itself an
+   * ISortStateLocator; otherwise the builder's own state stays in charge.
+   */
+  public void setSortState(final ISortState state) {
+    if (!(orderingPredicateBuilder instanceof ISortStateLocator)) {
+      sortState = state;
+    }
+  }
+
+  public CriteriaDefinition<T> getCriteriaDefinition() {
+    return criteriaDefinition;
+  }
+
+  /** @return name of the entity's single id attribute */
+  protected String getIdProperty() {
+    final EntityMetadata md =
+      Databinder.getEntityMetadataRegistry(factoryKey).getMetadata(
+          criteriaDefinition.getEntityClass());
+    if (md == null || md.getIdAttributeName() == null) {
+      throw new WicketRuntimeException("Projections require an entity with a "
+          + "single id attribute: " + criteriaDefinition.getEntityClass());
+    }
+    return md.getIdAttributeName();
+  }
+}
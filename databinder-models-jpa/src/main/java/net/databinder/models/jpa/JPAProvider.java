@@ -13,21 +13,53 @@
  */
 package net.databinder.models.jpa;
 
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
 import javax.persistence.Query;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Expression;
+import javax.persistence.criteria.Order;
+import javax.persistence.criteria.Path;
 import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Selection;
 
+import net.databinder.jpa.CountCache;
+import net.databinder.jpa.Databinder;
+import net.databinder.jpa.EntityMetadata;
+import net.databinder.jpa.EntityMetadataRegistry;
+import net.databinder.jpa.QueryResultCache;
+import net.databinder.jpa.TableStatistics;
 import net.databinder.models.PropertyDataProvider;
 import net.databinder.util.CriteriaDefinition;
+import net.databinder.util.QueryDefinition;
 
+import org.apache.wicket.extensions.markup.html.repeater.data.sort.ISortState;
+import org.apache.wicket.extensions.markup.html.repeater.data.sort.ISortStateLocator;
+import org.apache.wicket.extensions.markup.html.repeater.data.table.IColumn;
+import org.apache.wicket.extensions.markup.html.repeater.util.SingleSortState;
+import org.apache.wicket.extensions.markup.html.repeater.util.SortParam;
 import org.apache.wicket.model.IModel;
+import org.apache.wicket.util.lang.PropertyResolver;
 
 /**
  * Provides query results to DataView and related components. Like the JPA
@@ -38,6 +70,40 @@ import org.apache.wicket.model.IModel;
  * However, <b>DataTable will not work with a compound property model.</b> Call
  * setWrapWithPropertyModel(false) when using with DataTable, DataGridView, or
  * any other time you do not want a compound property model.
+ * <p>
+ * With setCountCached(true) counts are kept in
+ * {@link Databinder#getCountCache()}, shared by all users, when the predicate
+ * builder is a {@link CountKeySource} giving a key or there is none, and no
+ * predicates were added to the criteria definition directly. Counts are
+ * queried by default.
+ * <p>
+ * With setKeysetPaging(true) the provider remembers the sort value and id of
+ * the last row of each page it returns, and the next page is selected with a
+ * <code>(sort, id) &gt; (value, id)</code> restriction instead of an offset,
+ * so that paging forward costs the same on every page. A jump to an unknown
+ * page seeks from the nearest known page before it and skips the remaining
+ * rows by offset.
+ * <p>
+ * With setEstimatedCount(cap) the count of an unrestricted provider is read
+ * from the database's table statistics where available, and other counts stop
+ * at cap + 1 rows; isCountEstimated() then tells whether size() is a lower
+ * bound or estimate rather than an exact count.
+ * <p>
+ * With setIdsFirstPaging(true) a page is read in two queries: the distinct,
+ * ordered ids of the page's window alone, then the entities with those ids,
+ * fetch joining the to-one associations of setFetchPaths(). Neither query
+ * has to de-duplicate whole entity rows, and fetch joins never meet a row
+ * limit.
+ * <p>
+ * Associations read when rendering a page, for instance by a DataTable's
+ * PropertyColumns, can be loaded with the page by setFetchColumns(columns) or
+ * setFetchPaths(paths): a {@link FetchPlan} then loads them with a fixed
+ * number of queries per page rather than one or more per row.
+ * <p>
+ * With setCompiledQueries(true) and a builder that is a
+ * {@link QueryDefinitionSource}, pages read by offset and counts run from the
+ * builder's immutable {@link QueryDefinition}: its JPQL is cached by shape and
+ * only the filter values are bound, so no criteria are built or translated.
  * @author Nathan Hamblen
  */
 public class JPAProvider<T> extends PropertyDataProvider<T> {
@@ -55,6 +121,59 @@ public class JPAProvider<T> extends PropertyDataProvider<T> {
 
   private CriteriaDefinition<T> criteriaDefinition;
 
+  /** Describes the builder's restrictions for the count cache, if possible. */
+  private CountKeySource countKeySource;
+
+  private boolean exactCount;
+
+  private boolean countCached;
+
+  private static final int MAX_SEEK_KEYS = 64;
+
+  /** Sort value and id of the row before each known offset, if enabled. */
+  private SortedMap<Integer, Serializable[]> seekKeys;
+
+  /**
+   * Time seek keys are kept, in milliseconds, covering changes not reported
+   * to {@link Databinder#entityChanged(Class)}.
+   */
+  private static final long SEEK_KEY_TTL = 60 * 1000;
+
+  /** Restrictions, sort and change count the seek keys were recorded under. */
+  private Object seekSignature;
+
+  /** Time the seek keys expire. */
+  private long seekExpires;
+
+  private boolean combinedFetch;
+
+  /** Range of the page last requested, fetched along with the count. */
+  private int lastFirst, lastCount;
+
+  /** Rows counted at most when estimating, or 0 for exact counts. */
+  private int estimateCap;
+
+  private transient boolean countEstimated;
+
+  private boolean idsFirstPaging;
+
+  /** Associations fetch joined when loading the entities of a page. */
+  private String[] fetchPaths = new String[0];
+
+  private transient FetchPlan<T> fetchPlan;
+
+  private boolean compiledQueries;
+
+  private long resultCacheTtl;
+
+  private Class<?>[] queriedClasses = new Class<?>[0];
+
+  /* Count and page remembered until detach(). */
+  private transient Object memoCountKey;
+  private transient int memoCount;
+  private transient Object memoPageKey;
+  private transient List<T> memoPage;
+
   /**
    * Provides all entities of the given class.
    * @param criteriaDefinition
@@ -91,6 +210,9 @@ public class JPAProvider<T> extends PropertyDataProvider<T> {
         return criteriaDefinition;
       }
     });
+    if (predicateOrderingBuilder instanceof CountKeySource) {
+      countKeySource = (CountKeySource) predicateOrderingBuilder;
+    }
   }
 
   /**
@@ -145,6 +267,9 @@ public class JPAProvider<T> extends PropertyDataProvider<T> {
       final OrderingPredicateBuilder<T> criteriaBuider) {
     this(criteriaDefinition);
     orderingPredicateBuilder = criteriaBuider;
+    if (criteriaBuider instanceof CountKeySource) {
+      countKeySource = (CountKeySource) criteriaBuider;
+    }
   }
 
   /** Provides entities of the given class meeting the supplied criteria. */
@@ -175,6 +300,9 @@ public class JPAProvider<T> extends PropertyDataProvider<T> {
       }
 
     });
+    if (criteriaBuilder instanceof CountKeySource) {
+      countKeySource = (CountKeySource) criteriaBuilder;
+    }
   }
 
   /** @return EntityManager factory key, or null for the default factory */
@@ -183,18 +311,249 @@ public class JPAProvider<T> extends PropertyDataProvider<T> {
   }
 
   /**
-   * Set a factory key other than the default (null).
+   * Set a factory key other than the default (null). The criteria definition
+   * is given the key too, so that its queries, and its replica reads, go to
+   * the keyed factory.
    * @param key EntityManager factory key
    * @return this, for chaining
    */
   public JPAProvider<T> setFactoryKey(final String key) {
     factoryKey = key;
+    criteriaDefinition.setFactoryKey(key);
+    return this;
+  }
+
+  /** @return true if pages and counts are read from the replica */
+  public boolean isReadFromReplica() {
+    return criteriaDefinition.isReadFromReplica();
+  }
+
+  /**
+   * Reads pages and counts from the factory's replica while the request has
+   * not written to the primary.
+   * @param readFromReplica true to read from the replica
+   * @return this, for chaining
+   * @see Databinder#setReplicaKey(String, String)
+   */
+  public JPAProvider<T> setReadFromReplica(final boolean readFromReplica) {
+    criteriaDefinition.setReadFromReplica(readFromReplica);
+    return this;
+  }
+
+  /** @return true if counts are always queried, bypassing the count cache */
+  public boolean isExactCount() {
+    return exactCount;
+  }
+
+  /**
+   * @param exactCount true to always query the count
+   * @return this, for chaining
+   */
+  public JPAProvider<T> setExactCount(final boolean exactCount) {
+    this.exactCount = exactCount;
+    return this;
+  }
+
+  /** @return true if counts are shared through the count cache */
+  public boolean isCountCached() {
+    return countCached;
+  }
+
+  /**
+   * Shares counts between users through {@link Databinder#getCountCache()}.
+   * Only enable this if the builder's count key covers every restriction it
+   * adds; builders that cannot describe theirs give no key and are counted as
+   * before.
+   * @param countCached true to cache counts
+   * @return this, for chaining
+   */
+  public JPAProvider<T> setCountCached(final boolean countCached) {
+    this.countCached = countCached;
+    return this;
+  }
+
+  /** @return true if pages are selected by sort key where possible */
+  public boolean isKeysetPaging() {
+    return seekKeys != null;
+  }
+
+  /**
+   * Enables keyset paging. Ordering then comes from the sort state (or the
+   * id alone) rather than from the builder's buildOrdered(); the sort
+   * property should not be null for any row. Providers whose restrictions are
+   * not described by a {@link CountKeySource}, or sorted by a property of an
+   * association, always use offsets. Seek keys are kept across requests
+   * until an entity change is reported to
+   * {@link Databinder#entityChanged(Class)}, or for a minute at most, as
+   * changes may move rows to other offsets.
+   * @param keysetPaging true to select pages by sort key
+   * @return this, for chaining
+   */
+  public JPAProvider<T> setKeysetPaging(final boolean keysetPaging) {
+    seekKeys = keysetPaging ? new TreeMap<Integer, Serializable[]>() : null;
+    seekSignature = null;
+    return this;
+  }
+
+  /** @return the most rows counted when estimating, or 0 if counts are exact */
+  public int getEstimatedCount() {
+    return estimateCap;
+  }
+
+  /**
+   * Enables estimated counts for very large tables. Without restrictions the
+   * count is taken from table statistics (PostgreSQL and MySQL); otherwise, or
+   * when there are no statistics, at most cap + 1 ids are read, so a size of
+   * cap + 1 means "more than cap". Estimates bypass the count cache.
+   * @param cap most rows to count, or 0 for exact counts
+   * @return this, for chaining
+   * @see TableStatistics
+   */
+  public JPAProvider<T> setEstimatedCount(final int cap) {
+    estimateCap = cap;
+    return this;
+  }
+
+  /**
+   * @return true if the last size() was an estimate or a capped count rather
+   *         than an exact count
+   */
+  public boolean isCountEstimated() {
+    return countEstimated;
+  }
+
+  /** @return true if pages are read as ids first, then entities */
+  public boolean isIdsFirstPaging() {
+    return idsFirstPaging;
+  }
+
+  /**
+   * Enables two-phase paging: the ordered distinct ids of a page are selected
+   * first and the entities then loaded by id, in that order. Ignored for pages
+   * read by sort key.
+   * @param idsFirstPaging true to read ids first
+   * @return this, for chaining
+   */
+  public JPAProvider<T> setIdsFirstPaging(final boolean idsFirstPaging) {
+    this.idsFirstPaging = idsFirstPaging;
+    return this;
+  }
+
+  /** @return property paths whose associations are loaded with a page */
+  public String[] getFetchPaths() {
+    return fetchPaths.clone();
+  }
+
+  /**
+   * @param paths property paths that will be read from the entities of a
+   *          page, e.g. <code>team.league.name</code>; the associations along
+   *          them are loaded with the page
+   * @return this, for chaining
+   * @see FetchPlan
+   */
+  public JPAProvider<T> setFetchPaths(final String... paths) {
+    fetchPaths = paths.clone();
+    fetchPlan = null;
+    return this;
+  }
+
+  /**
+   * Loads the associations read by the given columns with each page, so that
+   * rendering the rows does not load them one by one.
+   * @param columns the table's columns
+   * @return this, for chaining
+   * @see FetchPlan#columnPaths(List)
+   */
+  public JPAProvider<T> setFetchColumns(
+      final List<? extends IColumn<?>> columns) {
+    return setFetchPaths(FetchPlan.columnPaths(columns));
+  }
+
+  /** @return plan for the fetch paths, or null if there is nothing to fetch */
+  private FetchPlan<T> getFetchPlan() {
+    if (fetchPaths.length == 0) {
+      return null;
+    }
+    if (fetchPlan == null) {
+      final CriteriaDefinition<T> cd = getCriteriaDefinition();
+      fetchPlan =
+        FetchPlan.forPaths(cd.getEntityManager().getMetamodel(), cd
+            .getEntityClass(), fetchPaths);
+    }
+    return fetchPlan.isEmpty() ? null : fetchPlan;
+  }
+
+  /** @return true if queries are run from the builder's QueryDefinition */
+  public boolean isCompiledQueries() {
+    return compiledQueries;
+  }
+
+  /**
+   * Enables compiled queries for builders that are a
+   * {@link QueryDefinitionSource}. Ignored while predicates are added to the
+   * criteria definition directly, and for pages read by sort key or ids first.
+   * @param compiledQueries true to run queries from the builder's definition
+   * @return this, for chaining
+   */
+  public JPAProvider<T> setCompiledQueries(final boolean compiledQueries) {
+    this.compiledQueries = compiledQueries;
+    return this;
+  }
+
+  /** @return time to live of cached pages, or 0 if pages are not cached */
+  public long getResultCacheTtl() {
+    return resultCacheTtl;
+  }
+
+  /**
+   * Keeps pages in {@link Databinder#getQueryResultCache()}, shared by all
+   * users, as the ids of their entities. Applies only to providers whose
+   * restrictions are described by a {@link CountKeySource}; builders whose key
+   * does not cover every predicate they add give none, and their pages are
+   * not cached. A page is dropped when an entity of its class, or of a class
+   * joined by the query, changes; name any other entity classes the builder's
+   * restrictions read, e.g. through subqueries.
+   * @param ttl time to live of a page, in milliseconds, or 0 to not cache
+   * @param queriedClasses entity classes the query reads besides those it
+   *          returns and joins
+   * @return this, for chaining
+   * @see JPAListModel#setCacheable(long, Class...)
+   */
+  public JPAProvider<T> setResultCacheTtl(final long ttl,
+      final Class<?>... queriedClasses) {
+    resultCacheTtl = ttl;
+    this.queriedClasses = queriedClasses.clone();
+    return this;
+  }
+
+  /** @return true if size() fetches the count and page concurrently */
+  public boolean isCombinedFetch() {
+    return combinedFetch;
+  }
+
+  /**
+   * Enables fetching the count together with a page: when size() has to query
+   * the count, it runs on a second entity manager in the background while the
+   * page last requested from this provider is read on the current one. If
+   * iterator() then asks for that page, as it does unless the view moved to
+   * another page, no further query is needed. Applies only to providers whose
+   * restrictions are described by a {@link CountKeySource}. Off by default:
+   * the second entity manager takes a second connection from the pool for the
+   * duration of the count, and the count runs on
+   * {@link Databinder#getQueryExecutor()}, or in the request thread when that
+   * is busy.
+   * @param combinedFetch true to fetch count and page together
+   * @return this, for chaining
+   */
+  public JPAProvider<T> setCombinedFetch(final boolean combinedFetch) {
+    this.combinedFetch = combinedFetch;
     return this;
   }
 
   /**
    * It should not normally be necessary to override (or call) this default
-   * implementation.
+   * implementation. Pages of providers with describable restrictions are
+   * remembered until detach(), so repeated calls in a request are free.
    */
 
   @SuppressWarnings("unchecked")
@@ -207,45 +566,610 @@ public class JPAProvider<T> extends PropertyDataProvider<T> {
       q.setMaxResults(count);
       return q.getResultList().iterator();
     }
+    final Object pageKey = getPageKey(first, count);
+    if (pageKey != null && pageKey.equals(memoPageKey)) {
+      return memoPage.iterator();
+    }
+    lastFirst = first;
+    lastCount = count;
 
-    final List<Predicate> predicates = new ArrayList<Predicate>();
-    if (orderingPredicateBuilder != null) {
-      orderingPredicateBuilder.buildOrdered(predicates);
+    final Object cacheKey =
+      pageKey != null && resultCacheTtl > 0 ? Arrays.asList(cq
+          .getEntityClass().getName(), pageKey) : null;
+    final QueryResultCache cache = Databinder.getQueryResultCache();
+    List<T> results =
+      cacheKey == null ? null : cache.<T> get(cq.getEntityManager(), cacheKey);
+    if (results != null) {
+      results = fetchAssociations(results);
+    } else {
+      if (seekKeys != null) {
+        results = keysetPage(first, count);
+      }
+      if (results == null && idsFirstPaging) {
+        results = idsFirstPage(first, count);
+      }
+      if (results == null) {
+        results = offsetPage(first, count);
+      }
+      if (cacheKey != null) {
+        cache.put(cq.getEntityManager(), cacheKey, results, resultCacheTtl,
+            getQueriedClasses());
+      }
     }
-    if (queryBuilder != null) {
-      queryBuilder.build(cq.getEntityManager());
+    if (pageKey != null) {
+      memoPageKey = pageKey;
+      memoPage = results;
     }
-    cq.selectAll();
-    cq.perform();
+    return results.iterator();
+  }
+
+  /**
+   * @return the classes given to setResultCacheTtl() and those the page
+   *         query joins
+   */
+  private Class<?>[] getQueriedClasses() {
+    final CriteriaDefinition<T> cd = getCriteriaDefinition();
+    final Set<Class<?>> classes =
+      new LinkedHashSet<Class<?>>(Arrays.asList(queriedClasses));
+    final QueryDefinition<T> qd = getQueryDefinition();
+    classes.addAll(qd != null ? qd.getJoinedClasses(cd.getEntityManager()
+        .getMetamodel()) : cd.getJoinedClasses());
+    return classes.toArray(new Class<?>[classes.size()]);
+  }
 
-    final TypedQuery<T> query = cq.getTypeQuery();
+  /** @return the page selected by offset */
+  private List<T> offsetPage(final int first, final int count) {
+    final TypedQuery<T> query = orderedQuery();
     query.setFirstResult(first);
     query.setMaxResults(count);
-    return query.getResultList().iterator();
+    return fetchAssociations(query.getResultList());
+  }
+
+  /** @return the page, with the fetch plan's associations loaded */
+  private List<T> fetchAssociations(final List<T> page) {
+    final FetchPlan<T> plan = getFetchPlan();
+    if (plan != null) {
+      plan.load(getCriteriaDefinition().getEntityManager(), page, true);
+    }
+    return page;
   }
 
   /**
-   * Only override this method if a single count query or criteria projection is
-   * not possible.
+   * Selects the ordered, distinct ids of the page, then loads their entities.
+   * @return the page, or null if the entity has no single id attribute
    */
-  public int size() {
-    final EntityManager em = criteriaDefinition.getEntityManager();
+  private List<T> idsFirstPage(final int first, final int count) {
+    final CriteriaDefinition<T> cd = getCriteriaDefinition();
+    final EntityMetadataRegistry registry =
+      Databinder.getEntityMetadataRegistry(getResolvedFactoryKey());
+    final EntityMetadata md = registry.getMetadata(cd.getEntityClass());
+    if (md == null || md.getIdAttributeName() == null) {
+      return null;
+    }
+    final String idProperty = md.getIdAttributeName();
+    final Set<Object> ids = new LinkedHashSet<Object>();
+    final List<Predicate> external = new ArrayList<Predicate>(cd.getPredicates());
+    try {
+      final List<Predicate> predicates = new ArrayList<Predicate>();
+      if (orderingPredicateBuilder != null) {
+        orderingPredicateBuilder.buildOrdered(predicates);
+      }
+      cd.mergePredicates(predicates);
+      // order expressions are selected too, as DISTINCT requires
+      final List<Selection<?>> selections = new ArrayList<Selection<?>>();
+      selections.add(cd.getRoot().get(idProperty));
+      for (final Order order : cd.getCriteriaQuery().getOrderList()) {
+        selections.add(order.getExpression());
+      }
+      cd.getCriteriaQuery().multiselect(selections).distinct(true);
+      cd.perform();
+      final TypedQuery<Object> query = cd.getProjectionQuery();
+      query.setFirstResult(first);
+      query.setMaxResults(count);
+      for (final Object row : query.getResultList()) {
+        ids.add(row instanceof Object[] ? ((Object[]) row)[0] : row);
+      }
+    } finally {
+      cd.setPredicates(external);
+    }
+    final List<T> page = new ArrayList<T>(ids.size());
+    if (ids.isEmpty()) {
+      return page;
+    }
+
+    final EntityManager em = cd.getEntityManager();
     final CriteriaBuilder cb = em.getCriteriaBuilder();
-    final CriteriaQuery<Long> cq = cb.createQuery(Long.class);
+    final CriteriaQuery<T> query = cb.createQuery(cd.getEntityClass());
+    final Root<T> root = query.from(cd.getEntityClass());
+    final FetchPlan<T> plan = getFetchPlan();
+    if (plan != null) {
+      plan.fetchToOne(root);
+    }
+    query.select(root).distinct(plan != null).where(
+        root.get(idProperty).in(ids));
+    final Map<Object, T> byId = new HashMap<Object, T>();
+    for (final T entity : em.createQuery(query).getResultList()) {
+      byId.put(registry.getIdentifier(entity), entity);
+    }
+    for (final Object id : ids) {
+      final T entity = byId.get(id);
+      if (entity != null) {
+        page.add(entity);
+      }
+    }
+    if (plan != null) {
+      plan.load(em, page, false);
+    }
+    return page;
+  }
+
+  /**
+   * @return entity manager this provider's queries are created on, that of
+   *         its criteria definition
+   */
+  public EntityManager getEntityManager() {
+    return getCriteriaDefinition().getEntityManager();
+  }
 
-    final List<Predicate> predicates = new ArrayList<Predicate>();
-    cq.select(cb.count(cq.from(criteriaDefinition.getEntityClass())));
+  /**
+   * @return query for all entities this provider would return, in its order;
+   *         for reading beyond a single page, e.g. in exports. The query is
+   *         created on {@link #getEntityManager()}.
+   */
+  public Query createOrderedQuery() {
+    if (queryBuilder != null) {
+      return queryBuilder.build(getCriteriaDefinition().getEntityManager());
+    }
+    return orderedQuery();
+  }
+
+  private TypedQuery<T> orderedQuery() {
+    return orderedQuery(getCriteriaDefinition().getEntityManager());
+  }
+
+  /**
+   * @param em entity manager to create the query with, of this provider's
+   *          factory or of one with the same mapping
+   * @return query for all entities of the builder, in its order
+   */
+  @SuppressWarnings("unchecked")
+  protected TypedQuery<T> orderedQuery(final EntityManager em) {
+    final CriteriaDefinition<T> cq = getCriteriaDefinition();
+    final QueryDefinition<T> qd = getQueryDefinition();
+    if (qd != null) {
+      return qd.createQuery(em);
+    }
+    final List<Predicate> external = new ArrayList<Predicate>(cq.getPredicates());
+    try {
+      final List<Predicate> predicates = new ArrayList<Predicate>();
+      if (orderingPredicateBuilder != null) {
+        orderingPredicateBuilder.buildOrdered(predicates);
+      }
+      cq.mergePredicates(predicates);
+      cq.selectAll();
+      cq.perform();
+      return (TypedQuery<T>) (TypedQuery<?>) em.createQuery(cq
+          .getCriteriaQuery());
+    } finally {
+      cq.setPredicates(external);
+    }
+  }
+
+  /**
+   * @param em entity manager to create the query with, of this provider's
+   *          factory or of one with the same mapping
+   * @param sortProperty property to order by ahead of the id, or null to
+   *          order by the id alone
+   * @param ascending direction of both
+   * @param nullSort true to select only rows whose sort property is null,
+   *          false for only those where it is not; ignored without one
+   * @return query of the builder's restrictions in sort and id order, which
+   *         unlike that of an ORDER BY on a nullable column is the same on
+   *         every database; or null if the entity has no single id attribute
+   *         or the sort property is not one of the entity's own
+   */
+  protected TypedQuery<T> sortedQuery(final EntityManager em,
+      final String sortProperty, final boolean ascending,
+      final boolean nullSort) {
+    final CriteriaDefinition<T> cd = getCriteriaDefinition();
+    final EntityMetadata md =
+      Databinder.getEntityMetadataRegistry(getResolvedFactoryKey())
+      .getMetadata(cd.getEntityClass());
+    if (md == null || md.getIdAttributeName() == null
+        || sortProperty != null && sortProperty.indexOf('.') >= 0) {
+      return null;
+    }
+    final List<Predicate> external = new ArrayList<Predicate>(cd.getPredicates());
+    try {
+      final List<Predicate> predicates = new ArrayList<Predicate>();
+      if (orderingPredicateBuilder != null) {
+        orderingPredicateBuilder.buildUnordered(predicates);
+      }
+      cd.mergePredicates(predicates);
+      final CriteriaBuilder cb = cd.getCriteriaBuilder();
+      final Path<?> idPath = cd.getRoot().get(md.getIdAttributeName());
+      final List<Order> orders = new ArrayList<Order>();
+      if (sortProperty != null) {
+        final Path<?> sortPath = cd.getRoot().get(sortProperty);
+        if (nullSort) {
+          cd.addPredicate(cb.isNull(sortPath));
+        } else {
+          cd.addPredicate(cb.isNotNull(sortPath));
+          orders.add(ascending ? cb.asc(sortPath) : cb.desc(sortPath));
+        }
+      }
+      orders.add(ascending ? cb.asc(idPath) : cb.desc(idPath));
+      cd.selectAll();
+      cd.getCriteriaQuery().orderBy(orders);
+      cd.perform();
+      @SuppressWarnings("unchecked")
+      final TypedQuery<T> query =
+        (TypedQuery<T>) (TypedQuery<?>) em.createQuery(cd.getCriteriaQuery());
+      return query;
+    } finally {
+      cd.setPredicates(external);
+    }
+  }
+
+  /**
+   * @return key of a page for memoizing within a request, or null if the
+   *         restrictions cannot be described
+   */
+  private Object getPageKey(final int first, final int count) {
+    final Object restrictions =
+      !getCriteriaDefinition().hasPredicates() ? getRestrictionKey()
+          : null;
+    if (restrictions == null) {
+      return null;
+    }
+    final SortParam sort = getKeysetSort();
+    return Arrays.asList(restrictions, sort == null ? null : sort.getProperty(),
+        sort == null || sort.isAscending(), first, count);
+  }
+
+  /**
+   * Selects a page after the nearest remembered sort key.
+   * @return the page, or null if keyset paging is not possible
+   */
+  private List<T> keysetPage(final int first, final int count) {
+    final CriteriaDefinition<T> cd = getCriteriaDefinition();
+    final Object restrictions = getRestrictionKey();
+    final EntityMetadataRegistry registry =
+      Databinder.getEntityMetadataRegistry(getResolvedFactoryKey());
+    final EntityMetadata md = registry.getMetadata(cd.getEntityClass());
+    if (restrictions == null || cd.hasPredicates() || md == null
+        || md.getIdAttributeName() == null) {
+      return null;
+    }
+    final String idProperty = md.getIdAttributeName();
+    final SortParam sort = getKeysetSort();
+    final String sortProperty =
+      sort == null || idProperty.equals(sort.getProperty()) ? null : sort
+          .getProperty();
+    if (sortProperty != null && sortProperty.indexOf('.') >= 0) {
+      return null;
+    }
+    final boolean ascending = sort == null || sort.isAscending();
+    final Object signature =
+      Arrays.asList(restrictions, sortProperty, ascending, Databinder
+          .getChangeCount());
+    final long now = System.currentTimeMillis();
+    if (!signature.equals(seekSignature) || now > seekExpires) {
+      seekKeys.clear();
+      seekSignature = signature;
+      seekExpires = now + SEEK_KEY_TTL;
+    }
+    final SortedMap<Integer, Serializable[]> before = seekKeys.headMap(first + 1);
+    final int from = before.isEmpty() ? 0 : before.lastKey();
+    final Serializable[] seek = before.isEmpty() ? null : before.get(from);
+
+    try {
+      final List<Predicate> predicates = new ArrayList<Predicate>();
+      if (orderingPredicateBuilder != null) {
+        orderingPredicateBuilder.buildUnordered(predicates);
+      }
+      cd.mergePredicates(predicates);
+      final CriteriaBuilder cb = cd.getCriteriaBuilder();
+      final Path<?> idPath = cd.getRoot().get(idProperty);
+      final Path<?> sortPath =
+        sortProperty == null ? null : cd.getRoot().get(sortProperty);
+      if (seek != null) {
+        cd.addPredicate(after(cb, sortPath, idPath, seek, ascending));
+      }
+      cd.selectAll();
+      final List<Order> orders = new ArrayList<Order>();
+      if (sortPath != null) {
+        orders.add(ascending ? cb.asc(sortPath) : cb.desc(sortPath));
+      }
+      orders.add(ascending ? cb.asc(idPath) : cb.desc(idPath));
+      cd.getCriteriaQuery().orderBy(orders);
+      cd.perform();
+
+      final TypedQuery<T> query = cd.getTypeQuery();
+      query.setFirstResult(first - from);
+      query.setMaxResults(count);
+      final List<T> results = query.getResultList();
+      if (!results.isEmpty()) {
+        final T last = results.get(results.size() - 1);
+        final Object value =
+          sortProperty == null ? null : PropertyResolver.getValue(
+              sortProperty, last);
+        if (sortProperty == null || value instanceof Serializable) {
+          rememberSeekKey(first + results.size(), new Serializable[] {
+              (Serializable) value, (Serializable) registry.getIdentifier(last) });
+        }
+      }
+      return fetchAssociations(results);
+    } finally {
+      cd.setPredicates(new ArrayList<Predicate>());
+    }
+  }
+
+  /** @return restriction selecting rows after the seek key in sort order */
+  @SuppressWarnings("unchecked")
+  private static Predicate after(final CriteriaBuilder cb,
+      final Path<?> sortPath, final Path<?> idPath, final Serializable[] seek,
+      final boolean ascending) {
+    final Expression<Comparable> id = (Expression<Comparable>) idPath;
+    final Comparable idValue = (Comparable) seek[1];
+    final Predicate afterId =
+      ascending ? cb.greaterThan(id, idValue) : cb.lessThan(id, idValue);
+    if (sortPath == null) {
+      return afterId;
+    }
+    final Expression<Comparable> sort = (Expression<Comparable>) sortPath;
+    final Comparable sortValue = (Comparable) seek[0];
+    return cb.or(ascending ? cb.greaterThan(sort, sortValue) : cb.lessThan(
+        sort, sortValue), cb.and(cb.equal(sort, sortValue), afterId));
+  }
+
+  private void rememberSeekKey(final int offset, final Serializable[] key) {
+    if (seekKeys.size() >= MAX_SEEK_KEYS && !seekKeys.containsKey(offset)) {
+      seekKeys.remove(seekKeys.lastKey());
+    }
+    seekKeys.put(offset, key);
+  }
+
+  /**
+   * @return the sort for keyset paging from the builder's sort state, or null
+   *         to order by id
+   */
+  protected SortParam getKeysetSort() {
+    if (orderingPredicateBuilder instanceof ISortStateLocator) {
+      return getSort(((ISortStateLocator) orderingPredicateBuilder)
+          .getSortState());
+    }
+    return null;
+  }
+
+  /** @return the sort of a single sort state, or null */
+  protected static SortParam getSort(final ISortState sortState) {
+    if (sortState instanceof SingleSortState) {
+      final SortParam sort = ((SingleSortState) sortState).getSort();
+      return sort != null && sort.getProperty() != null ? sort : null;
+    }
+    return null;
+  }
+
+  /**
+   * Only override this method if a single count query or criteria projection is
+   * not possible. Counts of providers with describable restrictions are
+   * remembered until detach().
+   */
+  public int size() {
+    final CriteriaDefinition<T> cd = getCriteriaDefinition();
+    final EntityManager em = cd.getEntityManager();
     if (countQueryBuilder != null) {
       final Query q = countQueryBuilder.build(em);
       final Object obj = q.getSingleResult();
       return ((Number) obj).intValue();
     }
 
-    if (orderingPredicateBuilder != null) {
-      orderingPredicateBuilder.buildUnordered(predicates);
+    final boolean external = cd.hasPredicates();
+    final Object restrictions = external ? null : getRestrictionKey();
+    if (restrictions != null && restrictions.equals(memoCountKey)) {
+      return memoCount;
+    }
+    if (estimateCap > 0) {
+      final int count = estimateCount(em);
+      if (restrictions != null) {
+        memoCountKey = restrictions;
+        memoCount = count;
+      }
+      return count;
+    }
+    countEstimated = false;
+    final Object countKey = external ? null : getCountKey();
+    final CountCache cache = Databinder.getCountCache();
+    Integer count = countKey == null ? null : cache.get(cd.getEntityClass(),
+        countKey);
+    if (count == null) {
+      count =
+        combinedFetch && restrictions != null && lastCount > 0
+        ? fetchCountAndPage() : queryCount(em);
+      if (countKey != null) {
+        cache.put(cd.getEntityClass(), countKey, count);
+      }
+    }
+    if (restrictions != null) {
+      memoCountKey = restrictions;
+      memoCount = count;
+    }
+    return count;
+  }
+
+  /**
+   * Reads the row estimate of an unrestricted table, or counts up to
+   * estimateCap + 1 matching ids.
+   */
+  private int estimateCount(final EntityManager em) {
+    final CriteriaDefinition<T> cd = getCriteriaDefinition();
+    final List<Predicate> external = new ArrayList<Predicate>(cd.getPredicates());
+    try {
+      final List<Predicate> predicates = new ArrayList<Predicate>();
+      if (orderingPredicateBuilder != null) {
+        orderingPredicateBuilder.buildUnordered(predicates);
+      }
+      cd.mergePredicates(predicates);
+      if (!cd.hasPredicates()) {
+        final Long rows = TableStatistics.estimateRows(em, cd.getEntityClass());
+        if (rows != null) {
+          countEstimated = true;
+          return (int) Math.min(rows.longValue(), Integer.MAX_VALUE);
+        }
+      }
+      final EntityMetadata md =
+        Databinder.getEntityMetadataRegistry(getResolvedFactoryKey())
+        .getMetadata(cd.getEntityClass());
+      if (md == null || md.getIdAttributeName() == null) {
+        countEstimated = false;
+        return queryCount(em);
+      }
+      cd.getCriteriaQuery().select(cd.getRoot().get(md.getIdAttributeName()))
+      .distinct(true).orderBy(new Order[0]);
+      cd.perform();
+      final int count =
+        cd.getProjectionQuery().setMaxResults(estimateCap + 1).getResultList()
+        .size();
+      countEstimated = count > estimateCap;
+      return count;
+    } finally {
+      cd.setPredicates(external);
+    }
+  }
+
+  /** @return the count, queried with the given entity manager */
+  private int queryCount(final EntityManager em) {
+    return ((Number) countQuery(em).getSingleResult()).intValue();
+  }
+
+  /**
+   * Queries the count on a new entity manager in the background while reading
+   * the last requested page, which is then memoized.
+   * @return the count
+   */
+  private int fetchCountAndPage() {
+    final String replicaKey =
+      isReadFromReplica() && !Databinder.isPrimaryRequired(factoryKey)
+      ? Databinder.getReplicaKey(factoryKey) : null;
+    final EntityManager countEm =
+      Databinder.getEntityManagerFactory(
+          replicaKey != null ? replicaKey : getResolvedFactoryKey())
+          .createEntityManager();
+    final Future<Integer> count;
+    try {
+      final Query countQuery = countQuery(countEm);
+      count = submitQuery(new Callable<Integer>() {
+        public Integer call() {
+          try {
+            return ((Number) countQuery.getSingleResult()).intValue();
+          } finally {
+            countEm.close();
+          }
+        }
+      });
+    } catch (final RuntimeException e) {
+      countEm.close();
+      throw e;
+    }
+    iterator(lastFirst, lastCount);
+    try {
+      return count.get();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new PersistenceException(e);
+    } catch (final ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new PersistenceException(e.getCause());
+    }
+  }
+
+  /**
+   * @param em entity manager to create the query with, of this provider's
+   *          factory or of one with the same mapping
+   * @return count query of the builder's restrictions
+   */
+  protected Query countQuery(final EntityManager em) {
+    final QueryDefinition<T> qd = getQueryDefinition();
+    if (qd != null) {
+      return qd.unordered().createCountQuery(em);
+    }
+    final CriteriaDefinition<T> cd = getCriteriaDefinition();
+    final List<Predicate> external = new ArrayList<Predicate>(cd.getPredicates());
+    try {
+      final List<Predicate> predicates = new ArrayList<Predicate>();
+      if (orderingPredicateBuilder != null) {
+        orderingPredicateBuilder.buildUnordered(predicates);
+      }
+      cd.mergePredicates(predicates);
+      cd.selectCount();
+      cd.perform();
+      return em.createQuery(cd.getCriteriaQuery());
+    } finally {
+      cd.setPredicates(external);
+    }
+  }
+
+  /**
+   * Runs a query on {@link Databinder#getQueryExecutor()}, or at once in this
+   * thread if the executor rejects it.
+   * @return the query's future result
+   */
+  static <V> Future<V> submitQuery(final Callable<V> query) {
+    try {
+      return Databinder.getQueryExecutor().submit(query);
+    } catch (final RejectedExecutionException e) {
+      final FutureTask<V> task = new FutureTask<V>(query);
+      task.run();
+      return task;
     }
-    final TypedQuery<Long> query = em.createQuery(cq);
-    return query.getSingleResult().intValue();
+  }
+
+  /**
+   * @return the builder's definition if compiled queries apply, or null
+   */
+  @SuppressWarnings("unchecked")
+  private QueryDefinition<T> getQueryDefinition() {
+    if (!compiledQueries
+        || !(orderingPredicateBuilder instanceof QueryDefinitionSource<?>)
+        || getCriteriaDefinition().hasPredicates()) {
+      return null;
+    }
+    return ((QueryDefinitionSource<T>) orderingPredicateBuilder)
+    .getQueryDefinition();
+  }
+
+  /**
+   * @return key of this provider's restrictions in the count cache, or null
+   *         if the count must be queried
+   */
+  protected Object getCountKey() {
+    return exactCount || !countCached ? null : getRestrictionKey();
+  }
+
+  /**
+   * @return key describing this provider's restrictions, or null if they
+   *         cannot be described
+   */
+  protected Object getRestrictionKey() {
+    final Object restrictions;
+    if (countKeySource != null) {
+      restrictions = countKeySource.getCountKey();
+    } else if (orderingPredicateBuilder == null) {
+      restrictions = "";
+    } else {
+      return null;
+    }
+    return restrictions == null ? null : Arrays.asList(factoryKey,
+        restrictions);
+  }
+
+  /** @return the factory key, or the default persistence unit name */
+  protected String getResolvedFactoryKey() {
+    return factoryKey == null ? Databinder.DEFAULT_PERSISTENCE_UNIT_NAME
+        : factoryKey;
   }
 
   @Override
@@ -253,10 +1177,12 @@ public class JPAProvider<T> extends PropertyDataProvider<T> {
     return new JPAObjectModel<T>(object);
   }
 
-  /** does nothing */
-
+  /** Forgets the count and page remembered for this request. */
   @Override
   public void detach() {
+    memoCountKey = null;
+    memoPageKey = null;
+    memoPage = null;
   }
 
   public CriteriaDefinition<T> getCriteriaDefinition() {
@@ -41,6 +41,8 @@ BasePredicateBuildAndSort<T> {
 
   private static final long serialVersionUID = 1L;
 
+  private transient Boolean countKeyComplete, queryDefinitionComplete;
+
   public PredicateBuildAndSort(final String defaultSortProperty,
       final boolean sortAscending, final boolean sortCased,
       final CriteriaDefinition<T> criteriaDefinition) {
@@ -65,4 +67,50 @@ BasePredicateBuildAndSort<T> {
     }
   }
 
+  /**
+   * A subclass that overrides buildUnordered() or buildOrdered() to add
+   * restrictions of its own (owner, tenant, permissions) is only given a count
+   * key if it also overrides getCountKey() to describe them.
+   * @return true if getCountKey() is declared by the class declaring both build
+   *         methods or by a subclass of it
+   */
+  protected boolean isCountKeyComplete() {
+    if (countKeyComplete == null) {
+      countKeyComplete = Boolean.valueOf(describesBuild("getCountKey"));
+    }
+    return countKeyComplete.booleanValue();
+  }
+
+  /**
+   * Like {@link #isCountKeyComplete()}: a subclass adding restrictions in the
+   * build methods opts in to compiled queries by overriding
+   * getQueryDefinition() to include them.
+   * @return true if getQueryDefinition() is declared by the class declaring
+   *         both build methods or by a subclass of it
+   */
+  protected boolean isQueryDefinitionComplete() {
+    if (queryDefinitionComplete == null) {
+      queryDefinitionComplete =
+        Boolean.valueOf(describesBuild("getQueryDefinition"));
+    }
+    return queryDefinitionComplete.booleanValue();
+  }
+
+  /**
+   * @return true if the public no-argument method is declared by the class
+   *         declaring buildUnordered() and buildOrdered(), or by a subclass
+   */
+  private boolean describesBuild(final String method) {
+    try {
+      final Class<?> describing =
+        getClass().getMethod(method).getDeclaringClass();
+      return getClass().getMethod("buildUnordered", List.class)
+      .getDeclaringClass().isAssignableFrom(describing)
+      && getClass().getMethod("buildOrdered", List.class)
+      .getDeclaringClass().isAssignableFrom(describing);
+    } catch (final NoSuchMethodException e) {
+      return false;
+    }
+  }
+
 }
\ No newline at end of file
@@ -21,28 +21,22 @@ package net.databinder.models.jpa;
  * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
  ---*/
 
-import static net.databinder.util.JPAUtil.propertyBooleanExpressionToPath;
-import static net.databinder.util.JPAUtil.propertyNumberExpressionToPath;
-
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.TreeMap;
 
-import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.Predicate;
-import javax.persistence.criteria.Root;
 
 import net.databinder.util.CriteriaDefinition;
-import net.databinder.util.JPAUtil;
+import net.databinder.util.QueryDefinition;
 
 import org.apache.wicket.Application;
 import org.apache.wicket.Session;
 import org.apache.wicket.extensions.markup.html.repeater.data.table.filter.IFilterStateLocator;
-import org.apache.wicket.util.convert.ConversionException;
-import org.apache.wicket.util.lang.PropertyResolver;
-import org.apache.wicket.util.lang.PropertyResolverConverter;
+import org.apache.wicket.extensions.markup.html.repeater.util.SingleSortState;
+import org.apache.wicket.extensions.markup.html.repeater.util.SortParam;
 
 /**
  * An OrderingPredicateBuilder implementation that can be wired to a
@@ -62,14 +56,11 @@ import org.apache.wicket.util.lang.PropertyResolverConverter;
  * @author Mark Southern
  */
 public class PredicateFilterAndSort<T> extends PredicateBuildAndSort<T>
-implements IFilterStateLocator<T> {
+implements IFilterStateLocator<T>, CountKeySource,
+QueryDefinitionSource<T> {
 
   private static final long serialVersionUID = 1L;
 
-  // whitespace, a qualifier, a number surrounded by whitespace
-  private final Pattern pattern = Pattern
-  .compile("^(\\s+)?([><]=?)(\\s+)?(.*)(\\s+)?");
-
   private Map<String, String> filterMap = new HashMap<String, String>();
 
   private final Object bean;
@@ -85,82 +76,64 @@ implements IFilterStateLocator<T> {
   @Override
   public void buildUnordered(final List<Predicate> predicates) {
     super.buildUnordered(predicates);
+    predicates.addAll(getFilterDefinition().toPredicates(
+        getCriteriaDefinition()));
+    getCriteriaDefinition().addAllPredicates(predicates);
+  }
 
-    for (final Map.Entry<String, String> entry : filterMap.entrySet()) {
-      final String property = entry.getKey();
-      String value = entry.getValue();
-      if (value == null) {
-        continue;
+  /**
+   * @return the filters as an unordered definition, in property order. String
+   *         properties are matched word by word, number properties by
+   *         comparison; each property's handler is resolved once per bean
+   *         class.
+   */
+  protected QueryDefinition<T> getFilterDefinition() {
+    QueryDefinition<T> qd =
+      new QueryDefinition<T>(getCriteriaDefinition().getEntityClass());
+    for (final Map.Entry<String, String> entry : new TreeMap<String, String>(
+        filterMap).entrySet()) {
+      if (entry.getValue() != null) {
+        qd =
+          FilterHandler.get(bean, entry.getKey()).apply(qd, entry.getValue(),
+              this);
       }
+    }
+    return qd;
+  }
 
-      final Class<?> clazz = PropertyResolver.getPropertyClass(property, bean);
-
-      final CriteriaDefinition<T> cd = getCriteriaDefinition();
-      final Root<T> root = cd.getRoot();
-      final CriteriaBuilder cb = cd.getCriteriaBuilder();
-      if (String.class.isAssignableFrom(clazz)) {
-        final String[] items = value.split("\\s+");
-        for (final String item : items) {
-          final Predicate p =
-            cb.like(
-                cb
-                .lower(
-                    JPAUtil.propertyStringExpressionToPath(root,
-                        property)), JPAUtil.likePattern(item));
-          predicates.add(p);
-        }
-      } else if (Number.class.isAssignableFrom(clazz)) {
-        try {
-          final Matcher matcher = pattern.matcher(value);
-          if (matcher.matches()) {
-            final String qualifier = matcher.group(2);
-            value = matcher.group(4);
-            final Number num = convertToNumber(value, clazz);
-            if (">".equals(qualifier)) {
-              final Predicate p =
-                cb.gt(
-                    propertyNumberExpressionToPath(root, property), num);
-              predicates.add(p);
-            } else if ("<".equals(qualifier)) {
-              final Predicate p =
-                cb.lt(
-                    propertyNumberExpressionToPath(root, property), num);
-              predicates.add(p);
-            } else if (">=".equals(qualifier)) {
-              final Predicate p =
-                cb.ge(
-                    propertyNumberExpressionToPath(root, property), num);
-              predicates.add(p);
-            } else if ("<=".equals(qualifier)) {
-              final Predicate p =
-                cb.le(
-                    propertyNumberExpressionToPath(root, property), num);
-              predicates.add(p);
-            }
-          } else {
-            final Predicate p =
-              cb.equal(
-                  propertyNumberExpressionToPath(root, property),
-                  convertToNumber(value, clazz));
-            predicates.add(p);
-          }
-        } catch (final ConversionException ex) {
-          // ignore filter in this case
-        }
-      } else if (Boolean.class.isAssignableFrom(clazz)) {
-        final Predicate p =
-          cb.equal(propertyBooleanExpressionToPath(root, property),
-              Boolean.parseBoolean(value));
-        predicates.add(p);
-      }
+  /**
+   * @return the filters, ordered by the sort state's property or else the
+   *         default sort property; or null if a subclass builds predicates
+   *         without overriding this method
+   * @see #isQueryDefinitionComplete()
+   */
+  public QueryDefinition<T> getQueryDefinition() {
+    if (!isQueryDefinitionComplete()) {
+      return null;
     }
-    getCriteriaDefinition().addAllPredicates(predicates);
+    final QueryDefinition<T> qd = getFilterDefinition();
+    final SortParam sort = ((SingleSortState) getSortState()).getSort();
+    if (sort != null && sort.getProperty() != null) {
+      return qd.orderBy(sort.getProperty(), sort.isAscending());
+    }
+    return defaultSortProperty == null ? qd : qd.orderBy(defaultSortProperty,
+        sortAscending);
   }
 
   protected Number convertToNumber(final String value, final Class<?> clazz) {
-    return (Number) new PropertyResolverConverter(Application.get()
-        .getConverterLocator(), Session.get().getLocale())
-    .convert(value, clazz);
+    return (Number) Application.get().getConverterLocator().getConverter(clazz)
+    .convertToObject(value, Session.get().getLocale());
+  }
+
+  /**
+   * @return the builder class and the filter definition, which holds the
+   *         restrictions buildUnordered() adds; or null if a subclass builds
+   *         predicates without overriding this method
+   * @see #isCountKeyComplete()
+   */
+  public Object getCountKey() {
+    return isCountKeyComplete() ? Arrays.asList(getClass().getName(),
+        getFilterDefinition()) : null;
   }
 
   @SuppressWarnings("unchecked")
@@ -17,20 +17,19 @@ package net.databinder.models.jpa;
  limitations under the License.
  ---*/
 
-import static net.databinder.util.JPAUtil.propertyStringExpressionToPath;
-
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.Predicate;
 
+import net.databinder.jpa.SearchIndex;
 import net.databinder.util.CriteriaDefinition;
-import net.databinder.util.JPAUtil;
 
 import org.apache.wicket.model.IModel;
 
-public class PredicateSearchAndSort<T> extends PredicateBuildAndSort<T> {
+public class PredicateSearchAndSort<T> extends PredicateBuildAndSort<T>
+implements CountKeySource {
 
   private static final long serialVersionUID = 1L;
 
@@ -53,32 +52,36 @@ public class PredicateSearchAndSort<T> extends PredicateBuildAndSort<T> {
 
     final String searchText = (String) searchTextModel.getObject();
     if (searchText != null) {
-      final String[] items = searchText.split("\\s+");
-
-      final List<String> properties = new ArrayList<String>();
-      for (final String prop : getSearchProperties()) {
-        properties.add(prop);
-      }
-
       final CriteriaDefinition<T> cd = getCriteriaDefinition();
       final CriteriaBuilder cb = cd.getCriteriaBuilder();
 
-      for (final String item : items) {
-        for (final String prop : properties) {
-          final Predicate p =
-            cb.like(
-                cb.lower(propertyStringExpressionToPath(cd.getRoot(), prop)),
-                JPAUtil.likePattern(item));
-          predicates.add(p);
-        }
-      }
+      // an index matches each word in any of the properties
+      final SearchIndex index =
+        SearchIndex.get(cd.getEntityClass(), getSearchProperties());
+      final Predicate indexed =
+        index == null ? null : index.createPredicate(cb, cd.getRoot(),
+            searchText);
+      predicates.add(indexed != null ? indexed : SearchIndex
+          .createLikePredicate(cd, searchText, getSearchProperties()));
       cd.addAllPredicates(predicates);
       cd.selectAll();
       cd.perform();
     }
   }
 
+  /**
+   * @return the builder class, search text and searched properties, from which
+   *         buildUnordered() derives its restrictions; or null if a subclass
+   *         builds predicates without overriding this method
+   * @see #isCountKeyComplete()
+   */
+  public Object getCountKey() {
+    return isCountKeyComplete() ? Arrays.asList(getClass().getName(),
+        searchTextModel.getObject(), Arrays.asList(getSearchProperties()))
+        : null;
+  }
+
   public String[] getSearchProperties() {
     return searchProperties;
   }
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,118 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.databinder.models.jpa;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable row of projected attribute values, keyed by property path, plus
+ * the id of the entity the row was read from. As a Map it works with
+ * PropertyColumn and CompoundPropertyModel: a dotted path such as
+ * <code>customer.address.city</code> resolves through nested row views.
+ * @see JPAProjectionProvider
+ */
+public class ProjectionRow extends AbstractMap<String, Object> implements
+Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final Object id;
+
+  private final String[] paths;
+
+  private final Object[] values;
+
+  /** Prefix of the paths this view exposes, empty for the whole row. */
+  private final String prefix;
+
+  /**
+   * @param id identifier of the source entity
+   * @param paths property paths, shared between rows of one query
+   * @param values values in path order
+   */
+  public ProjectionRow(final Object id, final String[] paths,
+      final Object[] values) {
+    this(id, paths, values, "");
+  }
+
+  private ProjectionRow(final Object id, final String[] paths,
+      final Object[] values, final String prefix) {
+    this.id = id;
+    this.paths = paths;
+    this.values = values;
+    this.prefix = prefix;
+  }
+
+  /** @return identifier of the entity this row was projected from */
+  public Object getId() {
+    return id;
+  }
+
+  /**
+   * @param path full property path, as given to the provider
+   * @return the projected value, or null if the path was not selected
+   */
+  public Object getValue(final String path) {
+    final String full = prefix + path;
+    for (int i = 0; i < paths.length; i++) {
+      if (paths[i].equals(full)) {
+        return values[i];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the value of a selected path, or a nested view for a path prefix
+   */
+  @Override
+  public Object get(final Object key) {
+    final String full = prefix + key;
+    final String nested = full + ".";
+    for (int i = 0; i < paths.length; i++) {
+      if (paths[i].equals(full)) {
+        return values[i];
+      } else if (paths[i].startsWith(nested)) {
+        return new ProjectionRow(id, paths, values, nested);
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public boolean containsKey(final Object key) {
+    return get(key) != null || getValue(String.valueOf(key)) != null;
+  }
+
+  @Override
+  public Set<Map.Entry<String, Object>> entrySet() {
+    final Map<String, Object> entries = new LinkedHashMap<String, Object>();
+    for (final String path : paths) {
+      if (path.startsWith(prefix)) {
+        final String rest = path.substring(prefix.length());
+        final int dot = rest.indexOf('.');
+        final String key = dot < 0 ? rest : rest.substring(0, dot);
+        if (!entries.containsKey(key)) {
+          entries.put(key, get(key));
+        }
+      }
+    }
+    return entries.entrySet();
+  }
+}
@@ -37,6 +37,11 @@ public class QueryBinderBuilder implements QueryBuilder {
     this.binders = binders;
   }
 
+  /** @return the query string */
+  public String getQueryString() {
+    return query;
+  }
+
   public Query build(final EntityManager em) {
     final Query q = em.createQuery(query);
     for (final QueryBinder b: binders) {
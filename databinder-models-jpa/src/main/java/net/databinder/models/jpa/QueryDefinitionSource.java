@@ -0,0 +1,34 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.databinder.models.jpa;
+import net.databinder.util.QueryDefinition;
+
+/**
+ * Implemented by predicate builders whose restrictions and ordering can be
+ * expressed as a {@link QueryDefinition}, letting {@link JPAProvider} run
+ * them as compiled queries instead of rebuilding criteria on every render.
+ * Builders that add predicates not reflected in the definition must return
+ * null, as the stock builders do for subclasses that override their build
+ * methods only.
+ * @see JPAProvider#setCompiledQueries(boolean)
+ */
+public interface QueryDefinitionSource<T> {
+
+  /**
+   * @return definition equal to the builder's ordered restrictions, or null
+   *         if they cannot be expressed as one
+   */
+  QueryDefinition<T> getQueryDefinition();
+}
@@ -0,0 +1,370 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.databinder.models.jpa;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
+
+import net.databinder.jpa.Databinder;
+import net.databinder.jpa.EntityMetadata;
+import net.databinder.jpa.EntityMetadataRegistry;
+import net.databinder.jpa.ShardResolver;
+import net.databinder.util.CriteriaDefinition;
+
+import org.apache.wicket.extensions.markup.html.repeater.util.SortParam;
+import org.apache.wicket.model.IModel;
+import org.apache.wicket.util.lang.PropertyResolver;
+
+/**
+ * Sortable provider of an entity whose rows are split over several shards of
+ * the same schema. Counts are queried on every shard in parallel and summed.
+ * For a page, each shard is asked for its first <code>first + count</code>
+ * rows, also in parallel. The rows are then merged, and the requested window
+ * is cut from the merge. Entities stay attached to their shard's entity
+ * manager, and their models are bound to that shard: on later requests they
+ * reload from the shard the resolver names for the id, or else from the one
+ * they were read from.
+ * <p>
+ * Shard queries and the merge share one total order, as with keyset paging:
+ * the active sort state, rows whose sort property is null last in either
+ * direction, then the id in the same direction. Orderings the builder would
+ * add in buildOrdered() are not used. Rows with a null sort value are queried
+ * separately, and only when a page reaches past all the others, so that no
+ * database's own null ordering is relied on. Entities without a single id
+ * attribute are queried in the builder's order instead and merged by the
+ * sort property alone, as are sorts by a property of an association.
+ * <p>
+ * The shards are those the {@link Databinder#getShardResolver() shard
+ * resolver} names for the entity class, unless set with setShardKeys(). With
+ * neither, the provider behaves like SortableJPAProvider. Merging compares
+ * property values in Java, so string columns should use a collation that
+ * agrees with String.compareTo. Deep pages cost every shard the rows before
+ * them.
+ * @see ShardResolver
+ */
+public class ShardedJPAProvider<T> extends SortableJPAProvider<T> {
+
+  private static final long serialVersionUID = 1L;
+
+  private String[] shardKeys;
+
+  /* Count remembered until detach(). */
+  private transient Object memoCountKey;
+  private transient int memoCount;
+
+  /* Factory keys of the rows returned until detach(), by identity. */
+  private transient Map<T, String> rowShards;
+
+  public ShardedJPAProvider(final CriteriaDefinition<T> criteriaDefinition,
+      final PredicateBuilder<T> predicateBuilder,
+      final PredicateBuilder<T> predicateSortBuilder,
+      final String sortableProperty) {
+    super(criteriaDefinition, predicateBuilder, predicateSortBuilder,
+        sortableProperty);
+  }
+
+  public ShardedJPAProvider(final CriteriaDefinition<T> criteriaDefinition,
+      final OrderingPredicateBuilder<T> criteriaBuilder) {
+    super(criteriaDefinition, criteriaBuilder);
+  }
+
+  public ShardedJPAProvider(final CriteriaDefinition<T> criteriaDefinition,
+      final PredicateBuildAndSort<T> criteriaBuilder, final String orderProperty) {
+    super(criteriaDefinition, criteriaBuilder, orderProperty);
+  }
+
+  /**
+   * @param keys factory keys of the shards to query, or null to ask the shard
+   *          resolver
+   * @return this, for chaining
+   */
+  public ShardedJPAProvider<T> setShardKeys(final String... keys) {
+    shardKeys = keys;
+    return this;
+  }
+
+  /** @return factory keys of the shards queried, or null if not sharded */
+  public List<String> getShardKeys() {
+    if (shardKeys != null) {
+      return Arrays.asList(shardKeys);
+    }
+    final ShardResolver resolver = Databinder.getShardResolver();
+    return resolver == null ? null : resolver.getFactoryKeys(
+        getCriteriaDefinition().getEntityClass());
+  }
+
+  @Override
+  public Iterator<T> iterator(final int first, final int count) {
+    final List<String> keys = getShardKeys();
+    if (keys == null || keys.isEmpty()) {
+      return super.iterator(first, count);
+    }
+    final int window = first + count;
+    final SortParam sort = getKeysetSort();
+    final String entityId = getIdProperty();
+    final String sortProperty =
+      sort == null || sort.getProperty().equals(entityId) ? null : sort
+          .getProperty();
+    // ids break ties where the shards can be queried by sortedQuery()
+    final String idProperty =
+      sortProperty != null && sortProperty.indexOf('.') >= 0 ? null
+          : entityId;
+    final boolean ascending = sort == null || sort.isAscending();
+    final List<Query> queries = new ArrayList<Query>(keys.size());
+    for (final String key : keys) {
+      final EntityManager em = Databinder.getEntityManager(key);
+      queries.add((idProperty == null ? orderedQuery(em) : sortedQuery(em,
+          sortProperty, ascending, false)).setMaxResults(window));
+    }
+    final List<List<T>> parts = new ArrayList<List<T>>(keys.size());
+    int rows = 0;
+    for (final Object part : scatter(queries, false)) {
+      @SuppressWarnings("unchecked")
+      final List<T> shardRows = new ArrayList<T>((List<T>) part);
+      parts.add(shardRows);
+      rows += shardRows.size();
+    }
+    if (idProperty != null && sortProperty != null && rows < window) {
+      // every shard returned all its rows with a sort value; the window
+      // continues with those without one
+      queries.clear();
+      for (final String key : keys) {
+        queries.add(sortedQuery(Databinder.getEntityManager(key),
+            sortProperty, ascending, true).setMaxResults(window - rows));
+      }
+      final List<Object> nulls = scatter(queries, false);
+      for (int i = 0; i < parts.size(); i++) {
+        @SuppressWarnings("unchecked")
+        final List<T> shardNulls = (List<T>) nulls.get(i);
+        parts.get(i).addAll(shardNulls);
+      }
+    }
+    final Comparator<T> order = getOrder(sortProperty, ascending, idProperty);
+    final PriorityQueue<Cursor<T>> heads =
+      new PriorityQueue<Cursor<T>>(parts.size(), new Comparator<Cursor<T>>() {
+        public int compare(final Cursor<T> a, final Cursor<T> b) {
+          final int c = order.compare(a.head, b.head);
+          return c != 0 ? c : a.shard - b.shard;
+        }
+      });
+    for (int i = 0; i < parts.size(); i++) {
+      final Iterator<T> it = parts.get(i).iterator();
+      if (it.hasNext()) {
+        heads.add(new Cursor<T>(i, it));
+      }
+    }
+    if (rowShards == null) {
+      rowShards = new IdentityHashMap<T, String>();
+    }
+    final List<T> page = new ArrayList<T>(count);
+    for (int i = 0; i < window && !heads.isEmpty(); i++) {
+      final Cursor<T> cursor = heads.poll();
+      if (i >= first) {
+        page.add(cursor.head);
+        rowShards.put(cursor.head, keys.get(cursor.shard));
+      }
+      if (cursor.next()) {
+        heads.add(cursor);
+      }
+    }
+    return page.iterator();
+  }
+
+  @Override
+  public int size() {
+    final List<String> keys = getShardKeys();
+    if (keys == null || keys.isEmpty()) {
+      return super.size();
+    }
+    final Object restrictions =
+      !getCriteriaDefinition().hasPredicates() ? getRestrictionKey()
+          : null;
+    if (restrictions != null && restrictions.equals(memoCountKey)) {
+      return memoCount;
+    }
+    final List<Query> queries = new ArrayList<Query>(keys.size());
+    for (final String key : keys) {
+      queries.add(countQuery(Databinder.getEntityManager(key)));
+    }
+    long total = 0;
+    for (final Object count : scatter(queries, true)) {
+      total += ((Number) count).longValue();
+    }
+    final int count = (int) Math.min(total, Integer.MAX_VALUE);
+    if (restrictions != null) {
+      memoCountKey = restrictions;
+      memoCount = count;
+    }
+    return count;
+  }
+
+  /**
+   * Binds rows returned by iterator() to the shard they were read from.
+   */
+  @Override
+  protected IModel<T> dataModel(final T object) {
+    final String key = rowShards == null ? null : rowShards.get(object);
+    if (key == null) {
+      return super.dataModel(object);
+    }
+    // the key must be set before the object, to find it in its shard
+    final JPAObjectModel<T> model = new JPAObjectModel<T>().setFactoryKey(key);
+    model.setObject(object);
+    return model;
+  }
+
+  /** Forgets the counts and rows remembered for this request. */
+  @Override
+  public void detach() {
+    super.detach();
+    memoCountKey = null;
+    rowShards = null;
+  }
+
+  /**
+   * Runs the queries in parallel on {@link Databinder#getQueryExecutor()},
+   * those it rejects in this thread. Each is bound to its own shard's entity
+   * manager, which no other thread uses while this one waits. Every query is
+   * waited for, even after one fails or this thread is interrupted, since a
+   * running query cannot be stopped and its entity manager belongs to the
+   * request; the first failure is then rethrown, and an interrupt is restored.
+   * @param single true for single results, false for result lists
+   * @return results in the order of the queries
+   */
+  private static List<Object> scatter(final List<Query> queries,
+      final boolean single) {
+    final List<Future<Object>> futures =
+      new ArrayList<Future<Object>>(queries.size());
+    for (final Query query : queries) {
+      futures.add(submitQuery(new Callable<Object>() {
+        public Object call() {
+          return single ? query.getSingleResult() : query.getResultList();
+        }
+      }));
+    }
+    final List<Object> results = new ArrayList<Object>(futures.size());
+    RuntimeException failure = null;
+    boolean interrupted = false;
+    for (final Future<Object> future : futures) {
+      while (true) {
+        try {
+          results.add(future.get());
+          break;
+        } catch (final InterruptedException e) {
+          interrupted = true;
+        } catch (final ExecutionException e) {
+          if (failure == null) {
+            failure =
+              e.getCause() instanceof RuntimeException ? (RuntimeException) e
+                  .getCause() : new PersistenceException(e.getCause());
+          }
+          break;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (failure != null) {
+      throw failure;
+    }
+    return results;
+  }
+
+  /** @return name of the entity's single id attribute, or null */
+  private String getIdProperty() {
+    final EntityMetadata md =
+      Databinder.getEntityMetadataRegistry(getResolvedFactoryKey())
+      .getMetadata(getCriteriaDefinition().getEntityClass());
+    return md == null ? null : md.getIdAttributeName();
+  }
+
+  /**
+   * @param sortProperty property to order by, or null for the id alone
+   * @param ascending direction of the sort property and the id
+   * @param idProperty id attribute breaking ties, or null for none
+   * @return the order of sortedQuery(): values of the sort property, null
+   *         values last in either direction, then ids
+   */
+  private Comparator<T> getOrder(final String sortProperty,
+      final boolean ascending, final String idProperty) {
+    final EntityMetadataRegistry registry =
+      idProperty == null ? null : Databinder
+          .getEntityMetadataRegistry(getResolvedFactoryKey());
+    return new Comparator<T>() {
+      public int compare(final T a, final T b) {
+        if (sortProperty != null) {
+          final Object va = PropertyResolver.getValue(sortProperty, a);
+          final Object vb = PropertyResolver.getValue(sortProperty, b);
+          if (va == null || vb == null) {
+            if (va != vb) {
+              return va == null ? 1 : -1;
+            }
+          } else {
+            final int c = compareValues(va, vb);
+            if (c != 0) {
+              return ascending ? c : -c;
+            }
+          }
+        }
+        if (registry == null) {
+          return 0;
+        }
+        final int c =
+          compareValues(registry.getIdentifier(a), registry.getIdentifier(b));
+        return ascending ? c : -c;
+      }
+    };
+  }
+
+  @SuppressWarnings("unchecked")
+  private static int compareValues(final Object a, final Object b) {
+    return ((Comparable<Object>) a).compareTo(b);
+  }
+
+  /** Next unmerged row of a shard's result. */
+  private static class Cursor<T> {
+    private final int shard;
+    private final Iterator<T> rest;
+    private T head;
+
+    Cursor(final int shard, final Iterator<T> rest) {
+      this.shard = shard;
+      this.rest = rest;
+      head = rest.next();
+    }
+
+    boolean next() {
+      if (rest.hasNext()) {
+        head = rest.next();
+        return true;
+      }
+      return false;
+    }
+  }
+}
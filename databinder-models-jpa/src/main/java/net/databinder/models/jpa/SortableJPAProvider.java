@@ -21,6 +21,7 @@ import org.apache.wicket.extensions.markup.html.repeater.data.sort.ISortStateLoc
 import org.apache.wicket.extensions.markup.html.repeater.data.sort.SortOrder;
 import org.apache.wicket.extensions.markup.html.repeater.data.table.ISortableDataProvider;
 import org.apache.wicket.extensions.markup.html.repeater.util.SingleSortState;
+import org.apache.wicket.extensions.markup.html.repeater.util.SortParam;
 
 /**
  * <h1>SortableJPAProvider</h1> <i>Copyright (C) 2008 The Scripps Research
@@ -107,6 +108,12 @@ ISortableDataProvider<T> {
     }
   }
 
+  /** @return the sort of this provider's sort state */
+  @Override
+  protected SortParam getKeysetSort() {
+    return getSort(getSortState());
+  }
+
   private void initSort() {
     sortState = new SingleSortState();
     ((SingleSortState) sortState).setPropertySortOrder("id",
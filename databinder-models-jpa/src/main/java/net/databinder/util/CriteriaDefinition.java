@@ -11,16 +11,27 @@ package net.databinder.util;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.persistence.EntityManager;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.From;
+import javax.persistence.criteria.Join;
+import javax.persistence.criteria.JoinType;
+import javax.persistence.criteria.Order;
+import javax.persistence.criteria.Path;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Selection;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.PluralAttribute;
 
 import net.databinder.jpa.Databinder;
+import net.databinder.models.jpa.PredicateBuilder;
 
 /**
  * CriteriaDefinition is responsible of building a jpa2 basic configuration as:
@@ -46,8 +57,29 @@ public class CriteriaDefinition<T> implements Serializable {
 
   private List<Predicate> predicates = new ArrayList<Predicate>();
 
+  private final List<PredicateBuilder<T>> predicateBuilders =
+    new ArrayList<PredicateBuilder<T>>();
+
+  private String factoryKey;
+
+  private boolean readFromReplica;
+
+  /** Left joins made for dotted paths, by path prefix. */
+  private final Map<String, From<?, ?>> joins =
+    new HashMap<String, From<?, ?>>();
+
   public CriteriaDefinition(final Class<T> entityClass) {
+    this(entityClass, null);
+  }
+
+  /**
+   * @param entityClass root entity
+   * @param factoryKey key of the factory to query, or null for the default
+   */
+  public CriteriaDefinition(final Class<T> entityClass,
+      final String factoryKey) {
     this.entityClass = entityClass;
+    this.factoryKey = factoryKey;
     criteriaBuilder = getEntityManager().getCriteriaBuilder();
     criteriaQuery = criteriaBuilder.createQuery();
     root = criteriaQuery.from(entityClass);
@@ -69,8 +101,48 @@ public class CriteriaDefinition<T> implements Serializable {
     return criteriaQuery;
   }
 
+  /**
+   * @return entity manager of the keyed factory, or the one reads are routed
+   *         to if reading from the replica
+   */
   public EntityManager getEntityManager() {
-    return Databinder.getEntityManager();
+    if (readFromReplica) {
+      return Databinder.getReadEntityManager(factoryKey);
+    }
+    return factoryKey == null ? Databinder.getEntityManager() : Databinder
+        .getEntityManager(factoryKey);
+  }
+
+  /** @return key of the factory queried, or null for the default */
+  public String getFactoryKey() {
+    return factoryKey;
+  }
+
+  /**
+   * @param factoryKey key of the factory to query, or null for the default;
+   *          its mappings must match those of the factory the definition was
+   *          created with
+   * @return this, for chaining
+   */
+  public CriteriaDefinition<T> setFactoryKey(final String factoryKey) {
+    this.factoryKey = factoryKey;
+    return this;
+  }
+
+  /** @return true if queries are routed to the factory's replica */
+  public boolean isReadFromReplica() {
+    return readFromReplica;
+  }
+
+  /**
+   * @param readFromReplica true to route queries to the factory's replica
+   *          while the request has not written
+   * @return this, for chaining
+   * @see Databinder#getReadEntityManager(String)
+   */
+  public CriteriaDefinition<T> setReadFromReplica(final boolean readFromReplica) {
+    this.readFromReplica = readFromReplica;
+    return this;
   }
 
   public CriteriaDefinition<T> setPredicates(final List<Predicate> predicates) {
@@ -94,13 +166,46 @@ public class CriteriaDefinition<T> implements Serializable {
     this.predicates.addAll(predicates);
   }
 
+  /** Adds those of the given predicates that are not already present. */
+  public void mergePredicates(final List<Predicate> predicates) {
+    for (final Predicate p : predicates) {
+      if (!this.predicates.contains(p)) {
+        this.predicates.add(p);
+      }
+    }
+  }
+
   public void cleanLikePredicates() {
     predicates.clear();
   }
 
+  /**
+   * Adds a builder whose predicates are built anew each time the query is
+   * performed, for restrictions that depend on state read at query time. The
+   * builder is kept by {@link #setPredicates(List)} and cleanLikePredicates().
+   */
+  public void addPredicateBuilder(final PredicateBuilder<T> builder) {
+    predicateBuilders.add(builder);
+  }
+
+  public void removePredicateBuilder(final PredicateBuilder<T> builder) {
+    predicateBuilders.remove(builder);
+  }
+
+  /**
+   * @return true if predicates or predicate builders restrict the query
+   *         beyond those its data provider builds
+   */
+  public boolean hasPredicates() {
+    return !predicates.isEmpty() || !predicateBuilders.isEmpty();
+  }
+
   public void perform() {
-    criteriaQuery.where(criteriaBuilder.and(predicates
-        .toArray(new Predicate[0])));
+    final List<Predicate> all = new ArrayList<Predicate>(predicates);
+    for (final PredicateBuilder<T> builder : predicateBuilders) {
+      builder.build(all);
+    }
+    criteriaQuery.where(criteriaBuilder.and(all.toArray(new Predicate[0])));
   }
 
   public CriteriaQuery<Object> selectAll() {
@@ -108,6 +213,110 @@ public class CriteriaDefinition<T> implements Serializable {
     return criteriaQuery;
   }
 
+  /**
+   * Resolves a property path such as <code>customer.address.city</code>
+   * from the root. Each association along the way is left joined once per
+   * definition, so repeated calls reuse the same joins.
+   */
+  public Path<?> getPath(final String property) {
+    final String[] names = property.split("\\.");
+    From<?, ?> from = root;
+    final StringBuilder prefix = new StringBuilder();
+    for (int i = 0; i < names.length - 1; i++) {
+      if (prefix.length() > 0) {
+        prefix.append('.');
+      }
+      prefix.append(names[i]);
+      From<?, ?> join = joins.get(prefix.toString());
+      if (join == null) {
+        join = from.join(names[i], JoinType.LEFT);
+        joins.put(prefix.toString(), join);
+      }
+      from = join;
+    }
+    return from.get(names[names.length - 1]);
+  }
+
+  /**
+   * Selects the given properties instead of the entity; each result row is an
+   * Object[] in property order. The selection is only distinct when a
+   * collection is joined, where it would otherwise repeat entities; the order
+   * expressions are then selected after the properties, as DISTINCT requires,
+   * so rows may be longer than the properties given.
+   */
+  public CriteriaQuery<Object> selectProjection(final String... properties) {
+    final List<Selection<?>> selections = new ArrayList<Selection<?>>();
+    for (final String property : properties) {
+      selections.add(getPath(property));
+    }
+    final boolean distinct = joinsCollection();
+    if (distinct) {
+      for (final Order order : criteriaQuery.getOrderList()) {
+        selections.add(order.getExpression());
+      }
+    }
+    criteriaQuery.multiselect(selections).distinct(distinct);
+    return criteriaQuery;
+  }
+
+  /**
+   * @return true if a collection is joined from the root, directly or through
+   * another join, so that root entities may repeat in the results
+   */
+  public boolean joinsCollection() {
+    return joinsCollection(root);
+  }
+
+  /**
+   * @return classes of the entities joined from the root so far, directly or
+   *         through another join, in join order
+   */
+  public List<Class<?>> getJoinedClasses() {
+    final List<Class<?>> classes = new ArrayList<Class<?>>();
+    addJoinedClasses(root, classes);
+    return classes;
+  }
+
+  private static void addJoinedClasses(final From<?, ?> from,
+      final List<Class<?>> classes) {
+    for (final Join<?, ?> join : from.getJoins()) {
+      classes.add(getTargetClass(join.getAttribute()));
+      addJoinedClasses(join, classes);
+    }
+  }
+
+  /**
+   * @return class of the attribute's value, or of its elements for a
+   *         collection
+   */
+  static Class<?> getTargetClass(final Attribute<?, ?> attribute) {
+    return attribute instanceof PluralAttribute<?, ?, ?>
+    ? ((PluralAttribute<?, ?, ?>) attribute).getElementType().getJavaType()
+        : attribute.getJavaType();
+  }
+
+  private static boolean joinsCollection(final From<?, ?> from) {
+    for (final Join<?, ?> join : from.getJoins()) {
+      if (join.getAttribute().isCollection() || joinsCollection(join)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Selects the number of distinct root entities, without ordering.
+   */
+  public CriteriaQuery<Object> selectCount() {
+    criteriaQuery.select(criteriaBuilder.countDistinct(root)).distinct(false);
+    criteriaQuery.orderBy(new Order[0]);
+    return criteriaQuery;
+  }
+
+  public TypedQuery<Object> getProjectionQuery() {
+    return getEntityManager().createQuery(criteriaQuery);
+  }
+
   @SuppressWarnings("unchecked")
   public TypedQuery<T> getTypeQuery () {
     return (TypedQuery<T>) getEntityManager().createQuery(criteriaQuery);
@@ -0,0 +1,445 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package net.databinder.util;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.Expression;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.ManagedType;
+import javax.persistence.metamodel.Metamodel;
+
+/**
+ * Immutable description of an entity query: restrictions of the form
+ * <code>property operator value</code>, joined by and, plus an ordering.
+ * Unlike {@link CriteriaDefinition} it holds no criteria objects and is never
+ * changed; where(), orderBy() and the like return new definitions, so one may
+ * be shared between threads and requests.
+ * <p>
+ * The properties, operators and sort of a definition are its shape. Each shape
+ * is rendered to parameterized JPQL once and kept in a static cache; a query
+ * is then created from the cached string and only the values are bound. As
+ * the JPQL string is the same for every query of a shape, the persistence
+ * provider's own query plan cache also hits, and the query is not translated
+ * to SQL again.
+ * <p>
+ * Associations along dotted property paths are left joined, as
+ * {@link CriteriaDefinition#getPath(String)} does, so rows whose association
+ * is null are kept. Queries joining a collection select distinct entities;
+ * those joining only single-valued associations need not, and so may be
+ * ordered by the associations' properties.
+ * <pre>
+ * QueryDefinition&lt;Player&gt; players = new QueryDefinition&lt;Player&gt;(Player.class)
+ *   .where("nameLast", Operator.LOWER_LIKE, "%son%").orderBy("nameFirst", true);
+ * List&lt;Player&gt; page = players.createQuery(em).setMaxResults(25).getResultList();
+ * </pre>
+ */
+public class QueryDefinition<T> implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  /** Comparisons of a property with a value. */
+  public enum Operator {
+    EQUAL("="), NOT_EQUAL("<>"), GREATER_THAN(">"), GREATER_THAN_OR_EQUAL(">="),
+    LESS_THAN("<"), LESS_THAN_OR_EQUAL("<="), LIKE("like"),
+    /** Lower cased property like the value, which is not lower cased. */
+    LOWER_LIKE("like"),
+    /** Takes no value. */
+    IS_NULL("is null"),
+    /** Takes no value. */
+    IS_NOT_NULL("is not null");
+
+    private final String jpql;
+
+    private Operator(final String jpql) {
+      this.jpql = jpql;
+    }
+
+    /** @return true if the operator compares with a value */
+    public boolean hasValue() {
+      return this != IS_NULL && this != IS_NOT_NULL;
+    }
+  }
+
+  /** Most shapes kept; the cache is emptied when full. */
+  private static final int MAX_SHAPES = 1000;
+
+  /** Property paths are written into JPQL, so they must be plain names. */
+  private static final Pattern PROPERTY =
+    Pattern.compile("[\\p{L}_$][\\p{L}\\p{N}_$]*(\\.[\\p{L}_$][\\p{L}\\p{N}_$]*)*");
+
+  /** JPQL by shape, shared by all definitions. */
+  private static final ConcurrentMap<String, String> compiled =
+    new ConcurrentHashMap<String, String>();
+
+  private final Class<T> entityClass;
+
+  private final List<Restriction> restrictions;
+
+  private final List<Sort> sorts;
+
+  /** @param entityClass entity class to select */
+  public QueryDefinition(final Class<T> entityClass) {
+    this(entityClass, Collections.<Restriction> emptyList(), Collections
+        .<Sort> emptyList());
+  }
+
+  private QueryDefinition(final Class<T> entityClass,
+      final List<Restriction> restrictions, final List<Sort> sorts) {
+    this.entityClass = entityClass;
+    this.restrictions = restrictions;
+    this.sorts = sorts;
+  }
+
+  public Class<T> getEntityClass() {
+    return entityClass;
+  }
+
+  /**
+   * @param property property path, e.g. <code>team.name</code>
+   * @param operator comparison
+   * @param value value to compare with, ignored by the null checks
+   * @return a definition with the restriction added
+   */
+  public QueryDefinition<T> where(final String property,
+      final Operator operator, final Object value) {
+    checkProperty(property);
+    final List<Restriction> r = new ArrayList<Restriction>(restrictions);
+    r.add(new Restriction(property, operator, operator.hasValue() ? value
+        : null));
+    return new QueryDefinition<T>(entityClass, Collections
+        .unmodifiableList(r), sorts);
+  }
+
+  /**
+   * @param property property path to order by, after any ordering already
+   *          defined
+   * @param ascending sort direction
+   * @return a definition with the ordering added
+   */
+  public QueryDefinition<T> orderBy(final String property,
+      final boolean ascending) {
+    checkProperty(property);
+    final List<Sort> s = new ArrayList<Sort>(sorts);
+    s.add(new Sort(property, ascending));
+    return new QueryDefinition<T>(entityClass, restrictions, Collections
+        .unmodifiableList(s));
+  }
+
+  /** @return a definition with the same restrictions and no ordering */
+  public QueryDefinition<T> unordered() {
+    return sorts.isEmpty() ? this : new QueryDefinition<T>(entityClass,
+        restrictions, Collections.<Sort> emptyList());
+  }
+
+  /** @return true if there are no restrictions */
+  public boolean isUnrestricted() {
+    return restrictions.isEmpty();
+  }
+
+  /**
+   * @return the entity class, properties, operators and sort, without values;
+   *         definitions of equal shape share their JPQL
+   */
+  public String getShape() {
+    final StringBuilder sb = new StringBuilder(entityClass.getName());
+    for (final Restriction r : restrictions) {
+      sb.append('|').append(r.property).append(' ').append(r.operator.name());
+    }
+    for (final Sort s : sorts) {
+      sb.append(s.ascending ? "|+" : "|-").append(s.property);
+    }
+    return sb.toString();
+  }
+
+  /** @return the values to bind, in parameter order */
+  public List<Object> getParameters() {
+    final List<Object> values = new ArrayList<Object>(restrictions.size());
+    for (final Restriction r : restrictions) {
+      if (r.operator.hasValue()) {
+        values.add(r.value);
+      }
+    }
+    return values;
+  }
+
+  /** @return query for the entities, in order, with values bound */
+  public TypedQuery<T> createQuery(final EntityManager em) {
+    return bind(em.createQuery(getJpql(em, false), entityClass));
+  }
+
+  /** @return query for the number of entities, with values bound */
+  public TypedQuery<Long> createCountQuery(final EntityManager em) {
+    return bind(em.createQuery(getJpql(em, true), Long.class));
+  }
+
+  /**
+   * Builds criteria predicates equal to the restrictions, for adding to a
+   * {@link CriteriaDefinition} of the same entity. The ordering is not
+   * applied.
+   */
+  @SuppressWarnings("unchecked")
+  public List<Predicate> toPredicates(final CriteriaDefinition<T> cd) {
+    final CriteriaBuilder cb = cd.getCriteriaBuilder();
+    final List<Predicate> predicates = new ArrayList<Predicate>();
+    for (final Restriction r : restrictions) {
+      final Expression path = cd.getPath(r.property);
+      final Comparable value = (Comparable) r.value;
+      switch (r.operator) {
+      case EQUAL:
+        predicates.add(cb.equal(path, r.value));
+        break;
+      case NOT_EQUAL:
+        predicates.add(cb.notEqual(path, r.value));
+        break;
+      case GREATER_THAN:
+        predicates.add(cb.greaterThan(path, value));
+        break;
+      case GREATER_THAN_OR_EQUAL:
+        predicates.add(cb.greaterThanOrEqualTo(path, value));
+        break;
+      case LESS_THAN:
+        predicates.add(cb.lessThan(path, value));
+        break;
+      case LESS_THAN_OR_EQUAL:
+        predicates.add(cb.lessThanOrEqualTo(path, value));
+        break;
+      case LIKE:
+        predicates.add(cb.like(path, (String) r.value));
+        break;
+      case LOWER_LIKE:
+        predicates.add(cb.like(cb.lower(path), (String) r.value));
+        break;
+      case IS_NULL:
+        predicates.add(cb.isNull(path));
+        break;
+      case IS_NOT_NULL:
+        predicates.add(cb.isNotNull(path));
+        break;
+      }
+    }
+    return predicates;
+  }
+
+  private static void checkProperty(final String property) {
+    if (property == null || !PROPERTY.matcher(property).matches()) {
+      throw new IllegalArgumentException("Not a property path: " + property);
+    }
+  }
+
+  private <Q extends Query> Q bind(final Q query) {
+    int position = 1;
+    for (final Object value : getParameters()) {
+      query.setParameter(position++, value);
+    }
+    return query;
+  }
+
+  /** @return the cached JPQL of this shape, rendered on first use */
+  private String getJpql(final EntityManager em, final boolean count) {
+    final String key = (count ? "count:" : "select:") + getShape();
+    String jpql = compiled.get(key);
+    if (jpql == null) {
+      jpql = render(em.getMetamodel(), count);
+      if (compiled.size() >= MAX_SHAPES) {
+        compiled.clear();
+      }
+      compiled.put(key, jpql);
+    }
+    return jpql;
+  }
+
+  private String render(final Metamodel metamodel, final boolean count) {
+    final EntityType<T> entity = metamodel.entity(entityClass);
+    // association paths, e.g. "team.league", by alias
+    final Map<String, String> joins = new LinkedHashMap<String, String>();
+    final StringBuilder where = new StringBuilder();
+    int position = 1;
+    for (int i = 0; i < restrictions.size(); i++) {
+      final Restriction r = restrictions.get(i);
+      where.append(i == 0 ? " where " : " and ");
+      if (r.operator == Operator.LOWER_LIKE) {
+        where.append("lower(").append(path(joins, r.property)).append(')');
+      } else {
+        where.append(path(joins, r.property));
+      }
+      where.append(' ').append(r.operator.jpql);
+      if (r.operator.hasValue()) {
+        where.append(" ?").append(position++);
+      }
+    }
+    final StringBuilder order = new StringBuilder();
+    if (!count) {
+      for (int i = 0; i < sorts.size(); i++) {
+        final Sort s = sorts.get(i);
+        order.append(i == 0 ? " order by " : ", ").append(
+            path(joins, s.property)).append(s.ascending ? " asc" : " desc");
+      }
+    }
+    final boolean distinct =
+      joinsCollection(metamodel, entity, joins.keySet());
+    final StringBuilder sb = new StringBuilder("select ");
+    if (count) {
+      sb.append(distinct ? "count(distinct e)" : "count(e)");
+    } else {
+      sb.append(distinct ? "distinct e" : "e");
+    }
+    sb.append(" from ").append(entity.getName()).append(" e");
+    for (final Map.Entry<String, String> join : joins.entrySet()) {
+      final String association = join.getKey();
+      final int dot = association.lastIndexOf('.');
+      final String parent =
+        dot < 0 ? "e" : joins.get(association.substring(0, dot));
+      sb.append(" left join ").append(parent).append('.').append(
+          association.substring(dot + 1)).append(' ').append(join.getValue());
+    }
+    return sb.append(where).append(order).toString();
+  }
+
+  /**
+   * @return true if any of the association paths passes through a
+   *         collection, whose join may repeat rows of the entity
+   */
+  /**
+   * @return classes of the entities along the association paths of the
+   *         restrictions and sorts, which queries of this definition join
+   */
+  public List<Class<?>> getJoinedClasses(final Metamodel metamodel) {
+    final List<String> properties = new ArrayList<String>();
+    for (final Restriction r : restrictions) {
+      properties.add(r.property);
+    }
+    for (final Sort s : sorts) {
+      properties.add(s.property);
+    }
+    final List<Class<?>> classes = new ArrayList<Class<?>>();
+    for (final String property : properties) {
+      final String[] names = property.split("\\.");
+      ManagedType<?> type = metamodel.entity(entityClass);
+      for (int i = 0; i < names.length - 1; i++) {
+        final Class<?> joined =
+          CriteriaDefinition.getTargetClass(type.getAttribute(names[i]));
+        if (!classes.contains(joined)) {
+          classes.add(joined);
+        }
+        type = metamodel.managedType(joined);
+      }
+    }
+    return classes;
+  }
+
+  private static boolean joinsCollection(final Metamodel metamodel,
+      final ManagedType<?> entity, final Iterable<String> associations) {
+    for (final String association : associations) {
+      ManagedType<?> type = entity;
+      for (final String name : association.split("\\.")) {
+        final Attribute<?, ?> attribute = type.getAttribute(name);
+        if (attribute.isCollection()) {
+          return true;
+        }
+        type = metamodel.managedType(attribute.getJavaType());
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param joins aliases of the associations joined so far, by path; those
+   *          along the property are added
+   * @return the property relative to the alias of its last association
+   */
+  private static String path(final Map<String, String> joins,
+      final String property) {
+    final int dot = property.lastIndexOf('.');
+    if (dot < 0) {
+      return "e." + property;
+    }
+    final String association = property.substring(0, dot);
+    int from = 0;
+    while (from >= 0) {
+      final int next = association.indexOf('.', from);
+      final String prefix =
+        next < 0 ? association : association.substring(0, next);
+      if (!joins.containsKey(prefix)) {
+        joins.put(prefix, "j" + joins.size());
+      }
+      from = next < 0 ? -1 : next + 1;
+    }
+    return joins.get(association) + property.substring(dot);
+  }
+
+  @Override
+  public boolean equals(final Object obj) {
+    if (!(obj instanceof QueryDefinition<?>)) {
+      return false;
+    }
+    final QueryDefinition<?> other = (QueryDefinition<?>) obj;
+    return getShape().equals(other.getShape())
+    && getParameters().equals(other.getParameters());
+  }
+
+  @Override
+  public int hashCode() {
+    return getShape().hashCode() * 31 + getParameters().hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return getShape() + " " + getParameters();
+  }
+
+  private static class Restriction implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String property;
+
+    private final Operator operator;
+
+    private final Object value;
+
+    Restriction(final String property, final Operator operator,
+        final Object value) {
+      this.property = property;
+      this.operator = operator;
+      this.value = value;
+    }
+  }
+
+  private static class Sort implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String property;
+
+    private final boolean ascending;
+
+    Sort(final String property, final boolean ascending) {
+      this.property = property;
+      this.ascending = ascending;
+    }
+  }
+}
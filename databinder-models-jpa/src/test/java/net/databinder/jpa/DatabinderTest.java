@@ -0,0 +1,78 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package net.databinder.jpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+
+import javax.persistence.EntityManager;
+
+import org.junit.Test;
+
+public class DatabinderTest extends JPATestCase {
+
+  private static final long TTL = 60 * 1000;
+
+  @Test
+  public void primaryCheckLeavesLazyEntityManagerUnused() {
+    final EntityManagerContext context =
+      Databinder.getEntityManagerContext(SHARDS[0]);
+    final EntityManager bound = context.unbind();
+    final EntityManager lazy =
+      LazyEntityManager.create(bound.getEntityManagerFactory());
+    context.bind(lazy);
+    try {
+      assertFalse(Databinder.isPrimaryRequired(SHARDS[0]));
+      assertFalse(LazyEntityManager.isInitialized(lazy));
+    } finally {
+      context.unbind();
+      lazy.close();
+      context.bind(bound);
+    }
+  }
+
+  @Test
+  public void changesAreInvalidatedAgainAfterCommit() {
+    final CountCache counts = Databinder.getCountCache();
+    final QueryResultCache results = Databinder.getQueryResultCache();
+    final EntityManager em = Databinder.getEntityManager();
+    final List<Player> players =
+      em.createQuery("select p from Player p", Player.class).getResultList();
+    counts.put(Team.class, "all", 2);
+
+    counts.put(Player.class, "all", 14);
+    results.put(em, "all", players, TTL);
+    Databinder.entityChanged(Player.class);
+    assertNull(counts.get(Player.class, "all"));
+    assertEquals(0, results.size());
+
+    // another request caches the state from before this one commits
+    counts.put(Player.class, "all", 14);
+    results.put(em, "all", players, TTL);
+    Databinder.invalidateChanged();
+    assertNull(counts.get(Player.class, "all"));
+    assertEquals(0, results.size());
+
+    // once committed, the changed classes are forgotten
+    counts.put(Player.class, "all", 14);
+    results.put(em, "all", players, TTL);
+    Databinder.invalidateChanged();
+    assertEquals(Integer.valueOf(14), counts.get(Player.class, "all"));
+    assertEquals(1, results.size());
+    assertEquals(Integer.valueOf(2), counts.get(Team.class, "all"));
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package net.databinder.jpa;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import javax.persistence.EntityManager;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.ThreadContext;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.junit.Test;
+
+public class EntityManagerScopeTest extends JPATestCase {
+
+  @Test
+  public void nestedScopesRestoreEarlierBindings() {
+    final EntityManagerContext context =
+      Databinder.getEntityManagerContext(SHARDS[0]);
+    final EntityManager bound = context.currentEntityManager();
+    final EntityManager outer =
+      LazyEntityManager.create(bound.getEntityManagerFactory());
+    final EntityManager inner =
+      LazyEntityManager.create(bound.getEntityManagerFactory());
+
+    final EntityManagerScope.Handle o =
+      EntityManagerScope.of(context, outer).attach();
+    final EntityManagerScope.Handle i =
+      EntityManagerScope.of(context, inner).attach();
+    assertSame(inner, context.currentEntityManager());
+    i.detach();
+    assertSame(outer, context.currentEntityManager());
+    o.detach();
+    assertSame(bound, context.currentEntityManager());
+  }
+
+  @Test
+  public void detachRestoresTheWicketContext() {
+    final Application application = Application.get();
+    final RequestCycle cycle = RequestCycle.get();
+    assertNotNull(cycle);
+    // a scope captured where there is an application but no request
+    final ThreadContext request = ThreadContext.detach();
+    ThreadContext.setApplication(application);
+    final EntityManagerScope scope = EntityManagerScope.capture(SHARDS[0]);
+    ThreadContext.restore(request);
+
+    final EntityManagerScope.Handle handle = scope.attach();
+    assertNull(ThreadContext.getRequestCycle());
+    handle.detach();
+    assertSame(cycle, ThreadContext.getRequestCycle());
+    assertSame(application, ThreadContext.getApplication());
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package net.databinder.jpa;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+
+/**
+ * Base of tests against the test persistence unit. The default factory holds
+ * every player of {@link #players()}; the shard factories hold those whose id
+ * modulo the number of shards is their index. Each test runs in a Wicket
+ * request with an entity manager bound for every factory, and its changes are
+ * rolled back.
+ */
+public abstract class JPATestCase {
+
+  /** Keys of the shard factories. */
+  protected static final String[] SHARDS = { "shard0", "shard1" };
+
+  private static WicketTester tester;
+
+  @BeforeClass
+  public static void startApplication() {
+    final TestApplication app =
+      new TestApplication(Databinder.DEFAULT_PERSISTENCE_UNIT_NAME, SHARDS[0],
+          SHARDS[1]);
+    tester = new WicketTester(app);
+    store(app.getEntityManagerFactory(null), players());
+    for (int i = 0; i < SHARDS.length; i++) {
+      final List<Player> shard = new ArrayList<Player>();
+      for (final Player player : players()) {
+        if (player.getId() % SHARDS.length == i) {
+          shard.add(player);
+        }
+      }
+      store(app.getEntityManagerFactory(SHARDS[i]), shard);
+    }
+  }
+
+  @AfterClass
+  public static void stopApplication() {
+    tester.destroy();
+  }
+
+  @Before
+  public void bindEntityManagers() {
+    Databinder.getCountCache().clear();
+    Databinder.getQueryResultCache().clear();
+    ((TestApplication) tester.getApplication()).bindEntityManagers();
+  }
+
+  @After
+  public void unbindEntityManagers() {
+    ((TestApplication) tester.getApplication()).unbindEntityManagers();
+  }
+
+  /**
+   * @return new, unsaved instances of the stored players; some have no team
+   *         or no number, and some numbers repeat
+   */
+  protected static List<Player> players() {
+    final Team cubs = new Team(1, "Cubs"), sox = new Team(2, "White Sox");
+    return Arrays.asList(new Player(1, "Ernie", "Banks", 14, cubs),
+        new Player(2, "Ron", "Santo", 10, cubs),
+        new Player(3, "Frank", "Thomas", 35, sox),
+        new Player(4, "Nellie", "Fox", 2, sox),
+        new Player(5, "Joe", "Jackson", null, null),
+        new Player(6, "Billy", "Williams", 26, cubs),
+        new Player(7, "Walter", "Johnson", null, null),
+        new Player(8, "Luke", "Appling", 4, sox),
+        new Player(9, "Ryne", "Sandberg", 23, cubs),
+        new Player(10, "Minnie", "Minoso", 9, sox),
+        new Player(11, "Kerry", "Wood", 34, cubs),
+        new Player(12, "Paul", "Konerko", 14, sox),
+        new Player(13, "Ted", "Lyons", 16, sox),
+        new Player(14, "Eddie", "Cicotte", null, sox));
+  }
+
+  /** @return ids of the remaining players, in order */
+  protected static List<Long> ids(final Iterator<Player> players) {
+    final List<Long> ids = new ArrayList<Long>();
+    while (players.hasNext()) {
+      ids.add(players.next().getId());
+    }
+    return ids;
+  }
+
+  /** Commits the players, and their teams, to the factory's database. */
+  private static void store(final EntityManagerFactory factory,
+      final List<Player> players) {
+    final EntityManager em = factory.createEntityManager();
+    try {
+      em.getTransaction().begin();
+      for (final Player player : players) {
+        if (player.getTeam() != null) {
+          em.merge(player.getTeam());
+        }
+        em.merge(player);
+      }
+      em.getTransaction().commit();
+    } finally {
+      em.close();
+    }
+  }
+}
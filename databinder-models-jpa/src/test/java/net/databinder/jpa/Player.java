@@ -0,0 +1,96 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package net.databinder.jpa;
+
+import java.io.Serializable;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.ManyToOne;
+
+/**
+ * Player entity of the test persistence unit. Ids are assigned, so that rows
+ * split over shards keep theirs.
+ */
+@Entity
+public class Player implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  @Id
+  private Long id;
+
+  private String nameFirst;
+
+  private String nameLast;
+
+  /** Jersey number, null for players without one. */
+  private Integer number;
+
+  @ManyToOne
+  private Team team;
+
+  public Player() {
+  }
+
+  public Player(final long id, final String nameFirst, final String nameLast,
+      final Integer number, final Team team) {
+    this.id = id;
+    this.nameFirst = nameFirst;
+    this.nameLast = nameLast;
+    this.number = number;
+    this.team = team;
+  }
+
+  public Long getId() {
+    return id;
+  }
+
+  public String getNameFirst() {
+    return nameFirst;
+  }
+
+  public void setNameFirst(final String nameFirst) {
+    this.nameFirst = nameFirst;
+  }
+
+  public String getNameLast() {
+    return nameLast;
+  }
+
+  public void setNameLast(final String nameLast) {
+    this.nameLast = nameLast;
+  }
+
+  public Integer getNumber() {
+    return number;
+  }
+
+  public void setNumber(final Integer number) {
+    this.number = number;
+  }
+
+  public Team getTeam() {
+    return team;
+  }
+
+  public void setTeam(final Team team) {
+    this.team = team;
+  }
+
+  @Override
+  public String toString() {
+    return nameFirst + " " + nameLast;
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package net.databinder.jpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.persistence.criteria.Predicate;
+
+import net.databinder.models.jpa.BasicPredicateBuilder;
+import net.databinder.models.jpa.JPAProvider;
+import net.databinder.util.CriteriaDefinition;
+
+import org.apache.wicket.model.IModel;
+import org.apache.wicket.model.Model;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SearchIndexTest extends JPATestCase {
+
+  private static final String[] PROPERTIES =
+    { "nameFirst", "nameLast", "team.name" };
+
+  private SearchIndex index;
+
+  @Before
+  public void buildIndex() {
+    index =
+      SearchIndex.register(Databinder.getEntityManagerFactory(),
+          Player.class, PROPERTIES);
+    index.rebuild(2);
+  }
+
+  @After
+  public void dropIndex() {
+    SearchIndex.unregister(Player.class);
+  }
+
+  @Test
+  public void rebuildIndexesPlayersWithoutTeam() {
+    assertEquals(players().size(), index.size());
+    assertEquals(expected("jackson"), index.search("jackson"));
+  }
+
+  @Test
+  public void likeMatchesIndex() {
+    for (final String text : new String[] { "ern", "ERNIE banks", "cubs san",
+        "white fox", "sox", "o_n", "50%", "nobody" }) {
+      final Set<Object> indexed = index.search(text);
+      assertNotNull(text, indexed);
+      assertEquals(text, expected(text), indexed);
+      assertEquals(text, indexed, like(text));
+    }
+  }
+
+  @Test
+  public void likeAnswersShortWords() {
+    for (final String text : new String[] { "so", "ja", "ed x", "_", "%" }) {
+      assertNull(text, index.search(text));
+      assertEquals(text, expected(text), like(text));
+    }
+  }
+
+  @Test
+  public void searchIsBuiltWhenQueried() {
+    final IModel<String> text = new Model<String>("cubs");
+    final CriteriaDefinition<Player> cd =
+      new CriteriaDefinition<Player>(Player.class);
+    cd.addPredicateBuilder(new BasicPredicateBuilder<Player>(cd) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      public void build(final List<Predicate> predicates) {
+        final CriteriaDefinition<Player> c = getCriteriaDefinition();
+        predicates.add(index.createPredicate(c.getCriteriaBuilder(),
+            c.getRoot(), text.getObject()));
+      }
+    });
+    final JPAProvider<Player> provider = new JPAProvider<Player>(cd);
+    assertEquals(expected("cubs").size(), provider.size());
+    assertEquals(expected("cubs"), new HashSet<Object>(ids(provider.iterator(
+        0, 20))));
+    text.setObject("sox");
+    assertEquals(expected("sox").size(), provider.size());
+    assertEquals(expected("sox"), new HashSet<Object>(ids(provider.iterator(
+        0, 20))));
+  }
+
+  /**
+   * @return ids of the players each lower cased word of the text is
+   *         contained in a property of
+   */
+  private static Set<Object> expected(final String text) {
+    final Set<Object> ids = new HashSet<Object>();
+    for (final Player player : players()) {
+      final String[] values =
+        { player.getNameFirst(), player.getNameLast(),
+          player.getTeam() == null ? null : player.getTeam().getName() };
+      boolean all = true;
+      for (final String word : text.toLowerCase().split("\\s+")) {
+        boolean any = false;
+        for (final String value : values) {
+          any |= value != null && value.toLowerCase().contains(word);
+        }
+        all &= any;
+      }
+      if (all) {
+        ids.add(player.getId());
+      }
+    }
+    return ids;
+  }
+
+  /** @return ids of the players the LIKE fallback selects */
+  private static Set<Object> like(final String text) {
+    final CriteriaDefinition<Player> cd =
+      new CriteriaDefinition<Player>(Player.class);
+    cd.addPredicate(SearchIndex.createLikePredicate(cd, text, PROPERTIES));
+    cd.selectAll();
+    cd.perform();
+    return new HashSet<Object>(ids(cd.getTypeQuery().getResultList()
+        .iterator()));
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package net.databinder.jpa;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.apache.wicket.mock.MockApplication;
+
+/**
+ * Application for tests, with an in-memory H2 database and entity manager
+ * factory of the test persistence unit for each key.
+ */
+public class TestApplication extends MockApplication implements
+JPAApplication {
+
+  public static final String PERSISTENCE_UNIT = "databinder-models-jpa-test";
+
+  private final Map<String, EntityManagerFactory> factories =
+    new LinkedHashMap<String, EntityManagerFactory>();
+
+  private final Map<String, EntityManagerContext> contexts =
+    new HashMap<String, EntityManagerContext>();
+
+  /** @param keys factory keys, each given a database of its own */
+  public TestApplication(final String... keys) {
+    for (final String key : keys) {
+      final Map<String, String> properties = new HashMap<String, String>();
+      properties.put("hibernate.connection.url", "jdbc:h2:mem:" + key
+          + ";DB_CLOSE_DELAY=-1");
+      final EntityManagerFactory factory =
+        Persistence.createEntityManagerFactory(PERSISTENCE_UNIT, properties);
+      factories.put(key, factory);
+      contexts.put(key, new DefaultEntityManagerContext(factory));
+    }
+  }
+
+  public EntityManagerFactory getEntityManagerFactory(final String key) {
+    return factories.get(resolve(key));
+  }
+
+  public EntityManagerContext getEntityManagerContext(final String key) {
+    return contexts.get(resolve(key));
+  }
+
+  /** Binds a new entity manager in a transaction for every factory. */
+  public void bindEntityManagers() {
+    for (final Map.Entry<String, EntityManagerFactory> e : factories
+        .entrySet()) {
+      final EntityManager em = e.getValue().createEntityManager();
+      em.getTransaction().begin();
+      contexts.get(e.getKey()).bind(em);
+    }
+  }
+
+  /** Rolls back and closes the bound entity managers. */
+  public void unbindEntityManagers() {
+    for (final EntityManagerContext context : contexts.values()) {
+      final EntityManager em = context.unbind();
+      if (em != null) {
+        if (em.getTransaction().isActive()) {
+          em.getTransaction().rollback();
+        }
+        em.close();
+      }
+    }
+  }
+
+  @Override
+  protected void onDestroy() {
+    super.onDestroy();
+    for (final EntityManagerFactory factory : factories.values()) {
+      Databinder.releaseEntityManagerFactory(factory);
+      factory.close();
+    }
+  }
+
+  private static String resolve(final String key) {
+    return key == null ? Databinder.DEFAULT_PERSISTENCE_UNIT_NAME : key;
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package net.databinder.models.jpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+import net.databinder.jpa.Databinder;
+import net.databinder.jpa.JPATestCase;
+import net.databinder.jpa.Player;
+
+import org.junit.Test;
+
+public class JPAObjectModelTest extends JPATestCase {
+
+  @Test
+  public void modelsOfOneEntityAreEqual() {
+    final JPAObjectModel<Player> byId =
+      new JPAObjectModel<Player>(Player.class, 3L);
+    final JPAObjectModel<Player> byEntity =
+      new JPAObjectModel<Player>(Databinder.getEntityManager().find(
+          Player.class, 3L));
+    final JPAObjectModel<Player> byQuery = byQuery(3L);
+    assertEqual(byId, byEntity);
+    assertEqual(byId, byQuery);
+    assertEqual(byEntity, byQuery);
+    assertFalse(byId.equals(byQuery(4L)));
+    assertFalse(byQuery.equals(byQuery(4L)));
+    assertFalse(byId.equals(new JPAObjectModel<Player>(Player.class, 3L)
+        .setFactoryKey(SHARDS[1])));
+  }
+
+  @Test
+  public void unsavedEntitiesAreNotEqualToSavedOnes() {
+    final Player unsaved = players().get(2);
+    final JPAObjectModel<Player> model = new JPAObjectModel<Player>(unsaved);
+    assertEqual(model, new JPAObjectModel<Player>(unsaved));
+    assertFalse(model.equals(new JPAObjectModel<Player>(Player.class, 3L)));
+    assertFalse(new JPAObjectModel<Player>(Player.class, 3L).equals(model));
+  }
+
+  private static void assertEqual(final JPAObjectModel<?> a,
+      final JPAObjectModel<?> b) {
+    assertEquals(a, b);
+    assertEquals(b, a);
+    assertEquals(a.hashCode(), b.hashCode());
+  }
+
+  private static JPAObjectModel<Player> byQuery(final long id) {
+    return new JPAObjectModel<Player>(new QueryBuilder() {
+      private static final long serialVersionUID = 1L;
+
+      public Query build(final EntityManager em) {
+        return em.createQuery("select p from Player p where p.id = :id")
+        .setParameter("id", id);
+      }
+    });
+  }
+}
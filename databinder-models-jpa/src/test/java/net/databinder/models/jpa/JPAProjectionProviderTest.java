@@ -0,0 +1,83 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package net.databinder.models.jpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.persistence.criteria.Expression;
+import javax.persistence.criteria.Predicate;
+
+import net.databinder.jpa.JPATestCase;
+import net.databinder.jpa.Team;
+import net.databinder.util.CriteriaDefinition;
+
+import org.junit.Test;
+
+public class JPAProjectionProviderTest extends JPATestCase {
+
+  /** Teams with a player wearing a number above the given one. */
+  private static class NumberAbove extends PredicateBuildAndSort<Team> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int number;
+
+    NumberAbove(final int number) {
+      super("name", true, false, new CriteriaDefinition<Team>(Team.class));
+      this.number = number;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void buildUnordered(final List<Predicate> predicates) {
+      super.buildUnordered(predicates);
+      final CriteriaDefinition<Team> cd = getCriteriaDefinition();
+      predicates.add(cd.getCriteriaBuilder().gt(
+          (Expression<Integer>) cd.getPath("players.number"), number));
+    }
+  }
+
+  @Test
+  public void collectionFilterDoesNotRepeatRows() {
+    final NumberAbove builder = new NumberAbove(10);
+    final JPAProjectionProvider<Team> provider =
+      new JPAProjectionProvider<Team>(builder.getCriteriaDefinition(),
+          builder, "name");
+    final List<Object> names = new ArrayList<Object>();
+    final Iterator<ProjectionRow> rows = provider.iterator(0, 20);
+    while (rows.hasNext()) {
+      final ProjectionRow row = rows.next();
+      assertEquals(1, row.size());
+      names.add(row.getValue("name"));
+    }
+    assertEquals(Arrays.asList("Cubs", "White Sox"), names);
+    assertEquals(names.size(), provider.size());
+  }
+
+  @Test
+  public void collectionFilterPagesByEntity() {
+    final NumberAbove builder = new NumberAbove(10);
+    final JPAProjectionProvider<Team> provider =
+      new JPAProjectionProvider<Team>(builder.getCriteriaDefinition(),
+          builder, "name");
+    assertEquals("White Sox", provider.iterator(1, 1).next().getValue("name"));
+    assertFalse(provider.iterator(2, 1).hasNext());
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package net.databinder.models.jpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+
+import net.databinder.jpa.JPATestCase;
+import net.databinder.jpa.Player;
+import net.databinder.util.CriteriaDefinition;
+import net.databinder.util.QueryDefinition;
+import net.databinder.util.QueryDefinition.Operator;
+
+import org.junit.Test;
+
+public class JPAProviderCompiledQueryTest extends JPATestCase {
+
+  @Test
+  public void associationSortKeepsRowsWithoutOne() {
+    final PredicateFilterAndSort<Player> builder =
+      new PredicateFilterAndSort<Player>(new Player(), "team.name", true,
+          false, new CriteriaDefinition<Player>(Player.class));
+    assertNotNull(builder.getQueryDefinition());
+    final JPAProvider<Player> provider = compiled(builder);
+    assertEquals(14, provider.size());
+    assertEquals(14, ids(provider.iterator(0, 20)).size());
+  }
+
+  @Test
+  public void associationRestrictionIsLeftJoined() {
+    final PredicateFilterAndSort<Player> builder =
+      new PredicateFilterAndSort<Player>(new Player(), "nameLast", true,
+          false, new CriteriaDefinition<Player>(Player.class)) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      public QueryDefinition<Player> getQueryDefinition() {
+        return super.getQueryDefinition().where("team.name", Operator.IS_NULL,
+            null);
+      }
+    };
+    final JPAProvider<Player> provider = compiled(builder);
+    assertEquals(Arrays.asList(5L, 7L), ids(provider.iterator(0, 20)));
+    assertEquals(2, provider.size());
+  }
+
+  @Test
+  public void undescribedRestrictionsAreNotCompiled() {
+    final TeamFilter cubs = new TeamFilter("Cubs");
+    assertNull(cubs.getQueryDefinition());
+    final JPAProvider<Player> provider = compiled(cubs);
+    assertEquals(5, provider.size());
+    assertEquals(Arrays.asList(1L, 9L, 2L, 6L, 11L), ids(provider.iterator(0,
+        20)));
+  }
+
+  @Test
+  public void describedRestrictionsAreCompiled() {
+    final TeamFilter cubs = new TeamFilter("Cubs") {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      public QueryDefinition<Player> getQueryDefinition() {
+        return getFilterDefinition().where("team.name", Operator.EQUAL, team)
+        .orderBy("nameLast", true);
+      }
+    };
+    assertNotNull(cubs.getQueryDefinition());
+    final JPAProvider<Player> provider = compiled(cubs);
+    assertEquals(5, provider.size());
+    assertEquals(Arrays.asList(1L, 9L, 2L, 6L, 11L), ids(provider.iterator(0,
+        20)));
+  }
+
+  private static JPAProvider<Player> compiled(
+      final PredicateFilterAndSort<Player> builder) {
+    return new JPAProvider<Player>(builder.getCriteriaDefinition(), builder)
+    .setCompiledQueries(true);
+  }
+}
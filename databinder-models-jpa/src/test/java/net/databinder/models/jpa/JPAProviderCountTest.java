@@ -0,0 +1,136 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package net.databinder.models.jpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.databinder.jpa.Databinder;
+import net.databinder.jpa.JPATestCase;
+import net.databinder.jpa.Player;
+import net.databinder.jpa.Team;
+import net.databinder.util.CriteriaDefinition;
+
+import org.junit.Test;
+
+public class JPAProviderCountTest extends JPATestCase {
+
+  @Test
+  public void countsAreSharedOnlyWhenEnabled() {
+    final PredicateFilterAndSort<Player> builder = filter();
+    final JPAProvider<Player> provider =
+      new JPAProvider<Player>(builder.getCriteriaDefinition(), builder);
+    assertEquals(14, provider.size());
+    assertNull(provider.getCountKey());
+
+    provider.setCountCached(true).detach();
+    final Object key = provider.getCountKey();
+    assertNotNull(key);
+    assertEquals(14, provider.size());
+    assertEquals(Integer.valueOf(14), Databinder.getCountCache().get(
+        Player.class, key));
+  }
+
+  @Test
+  public void equalFiltersGiveEqualKeys() {
+    final Map<String, String> a = new HashMap<String, String>();
+    a.put("nameFirst", "e");
+    a.put("nameLast", "o");
+    final Map<String, String> b = new HashMap<String, String>();
+    b.put("nameLast", "o");
+    b.put("nameFirst", "e");
+    final PredicateFilterAndSort<Player> fa = filter(), fb = filter();
+    fa.setFilterState(a);
+    fb.setFilterState(b);
+    assertEquals(fa.getCountKey(), fb.getCountKey());
+  }
+
+  @Test
+  public void undescribedRestrictionsAreNotShared() {
+    final TeamFilter cubs = new TeamFilter("Cubs"), sox =
+      new TeamFilter("White Sox");
+    assertNull(cubs.getCountKey());
+    final JPAProvider<Player> cubsProvider = provider(cubs), soxProvider =
+      provider(sox);
+    assertEquals(5, cubsProvider.size());
+    assertEquals(7, soxProvider.size());
+    assertEquals(Arrays.asList(1L, 9L, 2L, 6L, 11L), ids(cubsProvider
+        .iterator(0, 20)));
+    assertEquals(0, Databinder.getQueryResultCache().size());
+  }
+
+  @Test
+  public void describedRestrictionsAreShared() {
+    final TeamFilter cubs = new DescribedTeamFilter("Cubs"), sox =
+      new DescribedTeamFilter("White Sox");
+    assertFalse(cubs.getCountKey().equals(sox.getCountKey()));
+    final JPAProvider<Player> cubsProvider = provider(cubs), soxProvider =
+      provider(sox);
+    assertEquals(5, cubsProvider.size());
+    assertEquals(7, soxProvider.size());
+    assertEquals(Integer.valueOf(5), Databinder.getCountCache().get(
+        Player.class, cubsProvider.getCountKey()));
+    cubsProvider.iterator(0, 20);
+    soxProvider.iterator(0, 20);
+    assertEquals(2, Databinder.getQueryResultCache().size());
+  }
+
+  @Test
+  public void joinedClassChangesDropPages() {
+    final JPAProvider<Player> cubs =
+      provider(new DescribedTeamFilter("Cubs"));
+    final PredicateFilterAndSort<Player> byTeam =
+      new PredicateFilterAndSort<Player>(new Player(), "team.name", true,
+          false, new CriteriaDefinition<Player>(Player.class));
+    final JPAProvider<Player> compiled =
+      provider(byTeam).setCompiledQueries(true);
+    cubs.iterator(0, 20);
+    compiled.iterator(0, 20);
+    assertEquals(2, Databinder.getQueryResultCache().size());
+    Databinder.entityChanged(Team.class);
+    assertEquals(0, Databinder.getQueryResultCache().size());
+  }
+
+  private static PredicateFilterAndSort<Player> filter() {
+    return new PredicateFilterAndSort<Player>(new Player(), "nameLast", true,
+        false, new CriteriaDefinition<Player>(Player.class));
+  }
+
+  private static JPAProvider<Player> provider(
+      final PredicateFilterAndSort<Player> builder) {
+    return new JPAProvider<Player>(builder.getCriteriaDefinition(), builder)
+    .setCountCached(true).setResultCacheTtl(60 * 1000);
+  }
+
+  /** Restricts players to a team and adds it to the count key. */
+  private static class DescribedTeamFilter extends TeamFilter {
+
+    private static final long serialVersionUID = 1L;
+
+    DescribedTeamFilter(final String team) {
+      super(team);
+    }
+
+    @Override
+    public Object getCountKey() {
+      return Arrays.asList(super.getCountKey(), team);
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package net.databinder.models.jpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import net.databinder.jpa.Databinder;
+import net.databinder.jpa.JPATestCase;
+import net.databinder.jpa.Player;
+import net.databinder.util.CriteriaDefinition;
+
+import org.apache.wicket.extensions.markup.html.repeater.data.sort.SortOrder;
+import org.apache.wicket.extensions.markup.html.repeater.util.SingleSortState;
+import org.apache.wicket.model.IModel;
+import org.junit.Test;
+
+public class ShardedJPAProviderTest extends JPATestCase {
+
+  @Test
+  public void countsEveryShard() {
+    assertEquals(players().size(), provider("number", true).size());
+  }
+
+  @Test
+  public void pagesFollowOneOrder() {
+    for (final boolean ascending : new boolean[] { true, false }) {
+      final List<Long> expected = expected(ascending);
+      for (int count = 1; count <= 5; count++) {
+        assertEquals("ascending " + ascending + ", count " + count, expected,
+            paged(provider("number", ascending), count));
+      }
+    }
+  }
+
+  @Test
+  public void idSortPagesById() {
+    final List<Long> expected = ids(players().iterator());
+    assertEquals(expected, paged(provider("id", true), 4));
+    Collections.reverse(expected);
+    assertEquals(expected, paged(provider("id", false), 4));
+  }
+
+  @Test
+  public void rowModelsReloadFromTheirShard() {
+    final ShardedJPAProvider<Player> provider = provider("number", true);
+    provider.setWrapWithPropertyModel(false);
+    final List<IModel<Player>> models = new ArrayList<IModel<Player>>();
+    for (final Iterator<Player> it = provider.iterator(0, 20); it.hasNext();) {
+      models.add(provider.model(it.next()));
+    }
+    provider.detach();
+    assertEquals(players().size(), models.size());
+    for (final IModel<Player> model : models) {
+      model.detach();
+      final Player player = model.getObject();
+      final String shard = SHARDS[(int) (player.getId() % SHARDS.length)];
+      assertEquals(shard, ((JPAObjectModel<Player>) model).getFactoryKey());
+      assertTrue(Databinder.getEntityManager(shard).contains(player));
+    }
+  }
+
+  private static ShardedJPAProvider<Player> provider(final String sort,
+      final boolean ascending) {
+    final PredicateFilterAndSort<Player> builder =
+      new PredicateFilterAndSort<Player>(new Player(), "nameLast", true,
+          false, new CriteriaDefinition<Player>(Player.class));
+    ((SingleSortState) builder.getSortState()).setPropertySortOrder(sort,
+        ascending ? SortOrder.ASCENDING : SortOrder.DESCENDING);
+    return new ShardedJPAProvider<Player>(builder.getCriteriaDefinition(),
+        builder).setShardKeys(SHARDS);
+  }
+
+  /** @return ids of all pages of the given size, in order */
+  private static List<Long> paged(final ShardedJPAProvider<Player> provider,
+      final int count) {
+    final List<Long> ids = new ArrayList<Long>();
+    for (int first = 0; first < players().size(); first += count) {
+      ids.addAll(ids(provider.iterator(first, count)));
+    }
+    return ids;
+  }
+
+  /**
+   * @return ids of the players by number, players without one last in either
+   *         direction, then by id in the same direction
+   */
+  private static List<Long> expected(final boolean ascending) {
+    final List<Player> players = new ArrayList<Player>(players());
+    Collections.sort(players, new Comparator<Player>() {
+      public int compare(final Player a, final Player b) {
+        final Integer na = a.getNumber(), nb = b.getNumber();
+        if (na == null || nb == null) {
+          if (na != nb) {
+            return na == null ? 1 : -1;
+          }
+        } else if (!na.equals(nb)) {
+          return ascending ? na.compareTo(nb) : nb.compareTo(na);
+        }
+        return ascending ? a.getId().compareTo(b.getId()) : b.getId()
+            .compareTo(a.getId());
+      }
+    });
+    return ids(players.iterator());
+  }
+}
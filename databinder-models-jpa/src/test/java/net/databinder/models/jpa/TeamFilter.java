@@ -0,0 +1,47 @@
+/*
+ * Databinder: a simple bridge from Wicket to JPA Copyright (C) 2006 Nathan
+ * Hamblen nathan@technically.us This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version. This library is
+ * distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details. You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package net.databinder.models.jpa;
+
+import java.util.List;
+
+import javax.persistence.criteria.Predicate;
+
+import net.databinder.jpa.Player;
+import net.databinder.util.CriteriaDefinition;
+
+/**
+ * Filter builder restricting players to a team in buildUnordered(), as an
+ * application restricts rows to a tenant, without describing the restriction
+ * anywhere else.
+ */
+class TeamFilter extends PredicateFilterAndSort<Player> {
+
+  private static final long serialVersionUID = 1L;
+
+  protected final String team;
+
+  TeamFilter(final String team) {
+    super(new Player(), "nameLast", true, false,
+        new CriteriaDefinition<Player>(Player.class));
+    this.team = team;
+  }
+
+  @Override
+  public void buildUnordered(final List<Predicate> predicates) {
+    super.buildUnordered(predicates);
+    final CriteriaDefinition<Player> cd = getCriteriaDefinition();
+    predicates.add(cd.getCriteriaBuilder().equal(cd.getPath("team.name"),
+        team));
+  }
+}